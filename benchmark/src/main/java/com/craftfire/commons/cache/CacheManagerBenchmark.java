@@ -0,0 +1,94 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the throughput of {@link CacheManager} with the synchronized {@link LegacyCacheManager} from several
+ * threads, for a read-only and a mixed workload. Run with {@code -t} to change the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CacheManagerBenchmark {
+    private static final int ITEMS = 10000;
+    private static final String GROUP = "benchmark";
+
+    private CacheManager cache;
+    private LegacyCacheManager legacy;
+
+    @Setup
+    public void setup() {
+        this.cache = new CacheManager();
+        this.legacy = new LegacyCacheManager();
+        for (int i = 1; i <= ITEMS; i++) {
+            this.cache.put(GROUP, i, "value" + i);
+            this.legacy.put(GROUP, i, "value" + i);
+        }
+    }
+
+    @Benchmark
+    public Object get() {
+        return this.cache.get(GROUP, ThreadLocalRandom.current().nextInt(1, ITEMS + 1));
+    }
+
+    @Benchmark
+    public Object legacyGet() {
+        return this.legacy.get(GROUP, ThreadLocalRandom.current().nextInt(1, ITEMS + 1));
+    }
+
+    @Benchmark
+    public Object mixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int id = random.nextInt(1, ITEMS + 1);
+        if (random.nextInt(10) == 0) {
+            this.cache.put(GROUP, id, "updated");
+        }
+        return this.cache.get(GROUP, id);
+    }
+
+    @Benchmark
+    public Object legacyMixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int id = random.nextInt(1, ITEMS + 1);
+        if (random.nextInt(10) == 0) {
+            this.legacy.put(GROUP, id, "updated");
+        }
+        return this.legacy.get(GROUP, id);
+    }
+}
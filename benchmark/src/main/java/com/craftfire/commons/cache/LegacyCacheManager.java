@@ -0,0 +1,77 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The HashMap-based CacheManager used before it became concurrent, with every method synchronized so it can be
+ * compared with the concurrent implementation from several threads.
+ */
+public class LegacyCacheManager {
+    private final Map<String, Map<Object, CacheItem>> items = new HashMap<String, Map<Object, CacheItem>>();
+    private final Map<Object, Integer> lastID = new HashMap<Object, Integer>();
+    private final int seconds = 300;
+
+    public synchronized int getLastID(String group) {
+        String newGroup = group.toLowerCase();
+        if (this.lastID.containsKey(newGroup)) {
+            return this.lastID.get(newGroup);
+        }
+        this.lastID.put(newGroup, 0);
+        return 0;
+    }
+
+    public synchronized boolean contains(String group, Object id) {
+        String newGroup = group.toLowerCase();
+        if (this.items.containsKey(newGroup) && this.items.get(newGroup).containsKey(id)) {
+            if (this.items.get(newGroup).get(id).getSecondsLeft() >= 1) {
+                return true;
+            } else {
+                this.items.get(newGroup).remove(id);
+            }
+        }
+        return false;
+    }
+
+    public synchronized int put(String group, Object object) {
+        int id = getLastID(group) + 1;
+        put(group, id, object);
+        this.lastID.put(group.toLowerCase(), id);
+        return id;
+    }
+
+    public synchronized void put(String group, Object id, Object object) {
+        String newGroup = group.toLowerCase();
+        if (!this.items.containsKey(newGroup)) {
+            this.items.put(newGroup, new HashMap<Object, CacheItem>());
+        }
+        this.items.get(newGroup).put(id, new CacheItem(id, this.seconds, object));
+    }
+
+    public synchronized Object get(String group, Object id) {
+        String newGroup = group.toLowerCase();
+        if (contains(newGroup, id)) {
+            return this.items.get(newGroup).get(id).getObject();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Creates the in-memory H2 databases used by the benchmarks.
+ */
+public final class BenchmarkDatabase {
+    public static final int WIDE_COLUMNS = 20;
+
+    private BenchmarkDatabase() {
+    }
+
+    /**
+     * Opens a DataManager on a new in-memory H2 database, which lives until the DataManager is closed.
+     *
+     * @param  name  the name of the database
+     * @return       the DataManager
+     */
+    public static DataManager open(final String name) {
+        DataManager dataManager = new DataManager(DataType.H2, "sa", "") {
+            @Override
+            protected String buildURL(String host) {
+                return "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+            }
+        };
+        dataManager.getLogger().getLogger().setLevel(Level.OFF);
+        dataManager.setDatabase(name);
+        dataManager.setDirectory("mem:");
+        dataManager.setKeepAlive(true);
+        dataManager.setTimeout(0);
+        return dataManager;
+    }
+
+    /**
+     * Creates the {@code narrow} table with an id, a string and an integer column.
+     */
+    public static void createNarrow(DataManager dataManager, int rows) throws SQLException {
+        dataManager.executeQuery("CREATE TABLE `narrow` (`id` INT PRIMARY KEY, `name` VARCHAR(32), `value` INT)");
+        List<Map<String, Object>> data = new ArrayList<Map<String, Object>>(rows);
+        for (int i = 0; i < rows; i++) {
+            Map<String, Object> row = new HashMap<String, Object>();
+            row.put("id", i);
+            row.put("name", "row" + i);
+            row.put("value", i * 31);
+            data.add(row);
+        }
+        dataManager.insertBatch(data, "narrow");
+    }
+
+    /**
+     * Creates the {@code wide} table with an id and {@link #WIDE_COLUMNS} columns of mixed types.
+     */
+    public static void createWide(DataManager dataManager, int rows) throws SQLException {
+        StringBuilder columns = new StringBuilder("`id` INT PRIMARY KEY");
+        for (int i = 0; i < WIDE_COLUMNS; i++) {
+            columns.append(", `c").append(i).append("` ").append(wideType(i));
+        }
+        dataManager.executeQuery("CREATE TABLE `wide` (" + columns + ")");
+        List<Map<String, Object>> data = new ArrayList<Map<String, Object>>(rows);
+        for (int i = 0; i < rows; i++) {
+            data.add(wideRow(i));
+        }
+        dataManager.insertBatch(data, "wide");
+    }
+
+    public static Map<String, Object> wideRow(int id) {
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put("id", id);
+        for (int i = 0; i < WIDE_COLUMNS; i++) {
+            Object value;
+            switch (i % 4) {
+                case 0:
+                    value = id + i;
+                    break;
+                case 1:
+                    value = "value " + id + "'" + i;
+                    break;
+                case 2:
+                    value = id * 0.5 + i;
+                    break;
+                default:
+                    value = new Date(1000000000000L + id * 1000L + i);
+            }
+            row.put("c" + i, value);
+        }
+        return row;
+    }
+
+    private static String wideType(int column) {
+        switch (column % 4) {
+            case 0:
+                return "INT";
+            case 1:
+                return "VARCHAR(64)";
+            case 2:
+                return "DOUBLE";
+            default:
+                return "TIMESTAMP";
+        }
+    }
+}
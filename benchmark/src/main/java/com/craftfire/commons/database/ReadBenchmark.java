@@ -0,0 +1,175 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures reading through {@link DataManager}: single fields, wide rows, {@link Results} materialization and
+ * streaming iteration and {@link RowMapper} mapping, with a plain JDBC loop as the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadBenchmark {
+    private static final int TABLE_ROWS = 10000;
+
+    @Param({ "10", "1000" })
+    public int rows;
+
+    private DataManager dataManager;
+    private DataRow wideRow;
+    private String[] wideNames;
+    private String rangeQuery;
+
+    @Setup
+    public void setup() throws SQLException {
+        this.dataManager = BenchmarkDatabase.open("read");
+        BenchmarkDatabase.createNarrow(this.dataManager, TABLE_ROWS);
+        BenchmarkDatabase.createWide(this.dataManager, TABLE_ROWS);
+        this.rangeQuery = "SELECT * FROM `narrow` WHERE `id` < " + this.rows;
+        this.wideRow = this.dataManager.getResults("SELECT * FROM `wide` WHERE `id` = 42").getFirstResult();
+        this.wideNames = new String[BenchmarkDatabase.WIDE_COLUMNS];
+        for (int i = 0; i < this.wideNames.length; i++) {
+            this.wideNames[i] = "c" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.dataManager.close(true);
+    }
+
+    @Benchmark
+    public int singleField() {
+        return this.dataManager.getIntegerField("narrow", "value", "`id` = 42");
+    }
+
+    @Benchmark
+    public DataRow wideRowRead() throws SQLException {
+        return this.dataManager.getResults("SELECT * FROM `wide` WHERE `id` = 42").getFirstResult();
+    }
+
+    @Benchmark
+    public Results resultsMaterialization() throws SQLException {
+        return this.dataManager.getResults(this.rangeQuery);
+    }
+
+    @Benchmark
+    public void resultIteration(Blackhole blackhole) throws SQLException {
+        RowIterator iterator = this.dataManager.stream(this.rangeQuery);
+        try {
+            while (iterator.hasNext()) {
+                blackhole.consume(iterator.next().getIntField(2));
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    @Benchmark
+    public void jdbcBaseline(Blackhole blackhole) throws SQLException {
+        Connection connection = this.dataManager.acquireConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement(this.rangeQuery);
+            try {
+                ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    blackhole.consume(resultSet.getInt(3));
+                }
+                resultSet.close();
+            } finally {
+                statement.close();
+            }
+        } finally {
+            this.dataManager.releaseConnection(connection);
+        }
+    }
+
+    @Benchmark
+    public List<NarrowRow> rowMapper() throws SQLException {
+        return this.dataManager.getObjects(NarrowRow.class, this.rangeQuery);
+    }
+
+    @Benchmark
+    public List<NarrowRow> manualMapping() throws SQLException {
+        List<DataRow> rows = this.dataManager.getResults(this.rangeQuery).getArray();
+        List<NarrowRow> list = new ArrayList<NarrowRow>(rows.size());
+        for (DataRow row : rows) {
+            NarrowRow mapped = new NarrowRow();
+            mapped.id = row.getIntField("id");
+            mapped.name = row.getStringField("name");
+            mapped.value = row.getIntField("value");
+            list.add(mapped);
+        }
+        return list;
+    }
+
+    @Benchmark
+    public void dataRowGet(Blackhole blackhole) {
+        for (String name : this.wideNames) {
+            blackhole.consume(this.wideRow.get(name));
+        }
+    }
+
+    @Benchmark
+    public void dataRowGetIndex(Blackhole blackhole) {
+        for (int i = 1; i <= this.wideNames.length; i++) {
+            blackhole.consume(this.wideRow.get(i));
+        }
+    }
+
+    public static class NarrowRow {
+        private int id;
+        private String name;
+        private int value;
+    }
+
+    @Benchmark
+    public void fieldValueToString(Blackhole blackhole) {
+        blackhole.consume(this.dataManager.fieldValueToString("O'Reilly's 'quoted' value"));
+        blackhole.consume(this.dataManager.fieldValueToString(12345));
+        blackhole.consume(this.dataManager.fieldValueToString(new Date(1000000000000L)));
+    }
+}
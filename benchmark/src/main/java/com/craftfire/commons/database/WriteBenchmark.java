@@ -0,0 +1,91 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures inserting wide rows through {@link DataManager}, batched and one by one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+    @Param({ "100", "1000" })
+    public int rows;
+
+    private DataManager dataManager;
+    private List<Map<String, Object>> data;
+
+    @Setup
+    public void setup() throws SQLException {
+        this.dataManager = BenchmarkDatabase.open("write");
+        BenchmarkDatabase.createWide(this.dataManager, 0);
+        // without a primary key, so the same rows can be inserted over and over
+        this.dataManager.executeQuery("ALTER TABLE `wide` DROP PRIMARY KEY");
+        this.data = new ArrayList<Map<String, Object>>(this.rows);
+        for (int i = 0; i < this.rows; i++) {
+            this.data.add(BenchmarkDatabase.wideRow(i));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void truncate() throws SQLException {
+        this.dataManager.executeQuery("TRUNCATE TABLE `wide`");
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.dataManager.close(true);
+    }
+
+    @Benchmark
+    public BatchResult batchInsert() throws SQLException {
+        return this.dataManager.insertBatch(this.data, "wide");
+    }
+
+    @Benchmark
+    public void singleInserts() throws SQLException {
+        for (Map<String, Object> row : this.data) {
+            this.dataManager.insertFields(row, "wide");
+        }
+    }
+}
@@ -19,14 +19,31 @@
  */
 package com.craftfire.commons.cache;
 
+import java.util.concurrent.TimeUnit;
+
 public class CacheItem {
-    private final int time, cacheTime;
+    private final long time, cacheTime, expires;
     private final Object id, object;
-    
+    private int weight = 1;
+    TimerWheel.Node timer = null;
+
     public CacheItem(Object id, int cacheTime, Object object) {
+        this(id, object, cacheTime, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates an item expiring after the given time, a time of 0 or less means it never expires.
+     *
+     * @param id         the ID of the item
+     * @param object     the cached object
+     * @param cacheTime  the time to keep the item
+     * @param unit       the unit of {@code cacheTime}
+     */
+    public CacheItem(Object id, Object object, long cacheTime, TimeUnit unit) {
         this.id = id;
-        this.time = (int) System.currentTimeMillis() / 1000;
-        this.cacheTime = cacheTime;
+        this.time = System.currentTimeMillis();
+        this.cacheTime = Math.max(0, unit.toMillis(cacheTime));
+        this.expires = this.cacheTime > 0 ? this.time + this.cacheTime : Long.MAX_VALUE;
         this.object = object;
     }
 
@@ -45,23 +62,69 @@ public class CacheItem {
      * @return The time in UNIX of when the cache was created
      */
     public int getTimeAdded() {
+        return (int) (this.time / 1000);
+    }
+
+    public long getTimeAddedMillis() {
         return this.time;
     }
 
+    /**
+     * Returns the time in milliseconds when the item expires, {@link Long#MAX_VALUE} if it never expires.
+     *
+     * @return the expiration time
+     */
+    public long getExpirationTime() {
+        return this.expires;
+    }
+
     /**
      * Returns the amount of seconds left on the cache.
      *
      * @return Seconds left
      */
     public int getSecondsLeft() {
-        return (int) ((System.currentTimeMillis() / 1000) - this.time - this.cacheTime);
+        return (int) Math.min(Integer.MAX_VALUE, getMillisLeft() / 1000);
+    }
+
+    public long getMillisLeft() {
+        return isExpiring() ? this.expires - System.currentTimeMillis() : Long.MAX_VALUE;
     }
-    
+
+    public boolean isExpiring() {
+        return this.expires != Long.MAX_VALUE;
+    }
+
+    public boolean isExpired() {
+        return isExpired(System.currentTimeMillis());
+    }
+
+    public boolean isExpired(long now) {
+        return now >= this.expires;
+    }
+
     public int getCacheTime() {
+        return (int) (this.cacheTime / 1000);
+    }
+
+    public long getCacheTimeMillis() {
         return this.cacheTime;
     }
-    
+
     public Object getObject() {
         return this.object;
     }
+
+    /**
+     * Returns the weight of the item, as computed by the {@link Weigher} of the cache when it was added.
+     *
+     * @return the weight
+     */
+    public int getWeight() {
+        return this.weight;
+    }
+
+    void setWeight(int weight) {
+        this.weight = weight;
+    }
 }
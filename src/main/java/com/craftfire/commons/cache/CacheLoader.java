@@ -0,0 +1,73 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads the objects missing from a {@link CacheManager}, see {@link CacheManager#get(String, Object, CacheLoader)}.
+ */
+public abstract class CacheLoader {
+    /**
+     * Loads an object.
+     *
+     * @param  group      the group of the object
+     * @param  id         the ID of the object
+     * @return            the object, or null if it does not exist
+     * @throws Exception  if the object could not be loaded
+     */
+    public abstract Object load(String group, Object id) throws Exception;
+
+    /**
+     * Loads several objects at once. The default implementation calls {@link #load(String, Object)} for each ID,
+     * override it when the objects can be loaded with a single query.
+     *
+     * @param  group      the group of the objects
+     * @param  ids        the IDs of the objects
+     * @return            the objects by ID, without the ones that do not exist
+     * @throws Exception  if the objects could not be loaded
+     */
+    public Map<Object, Object> loadAll(String group, Collection<Object> ids) throws Exception {
+        Map<Object, Object> objects = new HashMap<Object, Object>();
+        for (Object id : ids) {
+            Object object = load(group, id);
+            if (object != null) {
+                objects.put(id, object);
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Loads a new version of a cached object before it expires. The default implementation calls
+     * {@link #load(String, Object)}.
+     *
+     * @param  group      the group of the object
+     * @param  id         the ID of the object
+     * @param  old        the currently cached object
+     * @return            the new object, or null to keep the cached one until it expires
+     * @throws Exception  if the object could not be loaded
+     */
+    public Object reload(String group, Object id, Object old) throws Exception {
+        return load(group, id);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+/**
+ * This exception is thrown by {@link CacheManager} when a {@link CacheLoader} failed.
+ */
+public class CacheLoaderException extends Exception {
+    private static final long serialVersionUID = -7087995730937389674L;
+    private final String group;
+    private final Object id;
+
+    /**
+     * Default constructor.
+     *
+     * @param group  the group of the objects being loaded
+     * @param id     the ID of the object, or the collection of IDs of a bulk load
+     * @param cause  the exception thrown by the loader
+     */
+    public CacheLoaderException(String group, Object id, Throwable cause) {
+        super("Could not load " + id + " in cache group " + group, cause);
+        this.group = group;
+        this.id = id;
+    }
+
+    public String getGroup() {
+        return this.group;
+    }
+
+    /**
+     * Returns the ID of the object that could not be loaded, or the collection of IDs of a failed bulk load.
+     *
+     * @return the ID or IDs
+     */
+    public Object getID() {
+        return this.id;
+    }
+}
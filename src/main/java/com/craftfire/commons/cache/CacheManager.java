@@ -19,24 +19,309 @@
  */
 package com.craftfire.commons.cache;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
 
+import com.craftfire.commons.util.LoggingManager;
 import com.craftfire.commons.util.Util;
 
+/**
+ * A cache of objects in named groups. All methods may be called concurrently from several threads.
+ * <p>
+ * Groups are unbounded by default. The number of items and their total weight can be bounded per group and for
+ * the whole cache, in which case items are evicted according to the {@link EvictionPolicy} of their group. When
+ * the whole cache is over its bounds, items are evicted from the heaviest group. Bounded groups record every read
+ * in their eviction policy while holding the group's lock.
+ * <p>
+ * Expiring items are kept in a {@link TimerWheel}, and removed about once a second by a maintenance thread shared
+ * by all caches. Expired items are never returned, even if the maintenance thread did not remove them yet.
+ * <p>
+ * Missing objects can be loaded with a {@link CacheLoader}. Concurrent lookups of the same missing object wait for
+ * a single load, and objects older than the refresh time are reloaded in the background while the cached object
+ * is still returned.
+ * <p>
+ * Statistics are recorded per group, see {@link #getStats(String)}. They can be logged periodically with
+ * {@link #setStatsLogger(LoggingManager, long, TimeUnit)}.
+ */
 public class CacheManager {
     protected static final String defaultGroup = "default";
-    private Map<String, Map<Object, CacheItem>> items = new HashMap<String, Map<Object, CacheItem>>();
-    private Map<Object, Integer> lastID = new HashMap<Object, Integer>();
-    private int seconds = 300;
-    private boolean enabled = true;
+    private static final int MAX_PENDING_TIMERS = 4096;
+    private static final int ITEM_OVERHEAD = 120;
+    private final ConcurrentMap<String, Map<Object, CacheItem>> items = new ConcurrentHashMap<String, Map<Object, CacheItem>>();
+    private final ConcurrentMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+    private final ConcurrentMap<String, AtomicInteger> lastID = new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentMap<String, Long> groupMaxEntries = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, Long> groupMaxWeight = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong evictions = new AtomicLong();
+    private final ConcurrentMap<String, StatsCounter> stats = new ConcurrentHashMap<String, StatsCounter>();
+    private volatile boolean recordStats = true;
+    private volatile Maintenance statsDump = null;
+    private volatile LoggingManager statsLogger = null;
+    private volatile long maxEntries = 0, maxWeight = 0;
+    private volatile Weigher weigher = null;
+    private volatile EvictionPolicyFactory evictionPolicy = Eviction.LRU;
+    private final List<RemovalListener> removalListeners = new CopyOnWriteArrayList<RemovalListener>();
+    private final TimerWheel timerWheel = new TimerWheel(System.currentTimeMillis());
+    private final ConcurrentLinkedQueue<TimerWheel.Node> timerBuffer = new ConcurrentLinkedQueue<TimerWheel.Node>();
+    private final AtomicInteger pendingTimers = new AtomicInteger();
+    private final ReentrantLock maintenanceLock = new ReentrantLock();
+    private volatile Maintenance maintenance = null;
+    private volatile long maintenanceInterval = 1000;
+    private final ConcurrentMap<LoadKey, Load> loading = new ConcurrentHashMap<LoadKey, Load>();
+    private volatile Executor refreshExecutor = null;
+    private volatile long refreshTime = 0;
+    private volatile long cacheTime = 300000;
+    private volatile boolean enabled = true;
 
+    /**
+     * Sets the cache time of items added afterwards, 0 means they never expire.
+     *
+     * @param seconds  the cache time in seconds
+     */
     public void setCacheTime(int seconds) {
-        this.seconds = seconds;
+        setCacheTime(seconds, TimeUnit.SECONDS);
+    }
+
+    public void setCacheTime(long cacheTime, TimeUnit unit) {
+        this.cacheTime = Math.max(0, unit.toMillis(cacheTime));
     }
 
     public int getCacheTime() {
-        return this.seconds;
+        return (int) (this.cacheTime / 1000);
+    }
+
+    public long getCacheTimeMillis() {
+        return this.cacheTime;
+    }
+
+    public long getRefreshTimeMillis() {
+        return this.refreshTime;
+    }
+
+    /**
+     * Sets the age after which objects read with a {@link CacheLoader} are reloaded in the background, 0 disables
+     * refreshing. The refresh time should be shorter than the cache time.
+     *
+     * @param refreshTime  the age of the objects
+     * @param unit         the unit of {@code refreshTime}
+     */
+    public void setRefreshTime(long refreshTime, TimeUnit unit) {
+        this.refreshTime = Math.max(0, unit.toMillis(refreshTime));
+    }
+
+    /**
+     * Returns the executor reloading objects in the background, creating a small pool of daemon threads if none
+     * was set.
+     *
+     * @return the executor
+     */
+    public Executor getRefreshExecutor() {
+        if (this.refreshExecutor == null) {
+            synchronized (this) {
+                if (this.refreshExecutor == null) {
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(1000), new ThreadFactory() {
+                                private final AtomicInteger threads = new AtomicInteger();
+
+                                @Override
+                                public Thread newThread(Runnable runnable) {
+                                    Thread thread = new Thread(runnable, "CacheManager-refresh-" + this.threads.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+                    executor.allowCoreThreadTimeOut(true);
+                    this.refreshExecutor = executor;
+                }
+            }
+        }
+        return this.refreshExecutor;
+    }
+
+    public void setRefreshExecutor(Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    public boolean isRecordingStats() {
+        return this.recordStats;
+    }
+
+    public void setRecordStats(boolean recordStats) {
+        this.recordStats = recordStats;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of a group.
+     *
+     * @param  group  the group
+     * @return        the statistics
+     */
+    public CacheStats getStats(String group) {
+        String name = group.toLowerCase();
+        Group existing = this.groups.get(name);
+        long size = existing == null ? 0 : existing.items.size();
+        long weight = existing == null ? 0 : existing.weight.get();
+        long memory = size * ITEM_OVERHEAD + (this.weigher == null ? 0 : weight);
+        return stats(name).snapshot(name, size, weight, memory);
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the whole cache, the sum of the statistics of all groups.
+     *
+     * @return the statistics
+     */
+    public CacheStats getStats() {
+        CacheStats total = new StatsCounter().snapshot(null, 0, 0, 0);
+        for (CacheStats group : getGroupStats().values()) {
+            total = total.plus(group);
+        }
+        return total;
+    }
+
+    /**
+     * Returns snapshots of the statistics of every group that recorded statistics or has items.
+     *
+     * @return the statistics by group
+     */
+    public Map<String, CacheStats> getGroupStats() {
+        Map<String, CacheStats> stats = new TreeMap<String, CacheStats>();
+        for (String group : this.groups.keySet()) {
+            stats.put(group, getStats(group));
+        }
+        for (String group : this.stats.keySet()) {
+            if (!stats.containsKey(group)) {
+                stats.put(group, getStats(group));
+            }
+        }
+        return stats;
+    }
+
+    public void resetStats() {
+        for (StatsCounter counter : this.stats.values()) {
+            counter.reset();
+        }
+    }
+
+    public void resetStats(String group) {
+        StatsCounter counter = this.stats.get(group.toLowerCase());
+        if (counter != null) {
+            counter.reset();
+        }
+    }
+
+    public LoggingManager getStatsLogger() {
+        return this.statsLogger;
+    }
+
+    /**
+     * Logs the statistics of every group and of the whole cache periodically, on the maintenance thread.
+     *
+     * @param logger    the logger, null stops logging
+     * @param interval  the time between two dumps, 0 stops logging
+     * @param unit      the unit of {@code interval}
+     */
+    public synchronized void setStatsLogger(LoggingManager logger, long interval, TimeUnit unit) {
+        if (this.statsDump != null) {
+            this.statsDump.cancel();
+            this.statsDump = null;
+        }
+        long millis = unit.toMillis(interval);
+        this.statsLogger = millis > 0 ? logger : null;
+        if (this.statsLogger != null) {
+            this.statsDump = new Maintenance(this, millis, this.statsLogger);
+        }
+    }
+
+    /**
+     * Logs the statistics of every group and of the whole cache.
+     *
+     * @param logger  the logger
+     */
+    public void logStats(LoggingManager logger) {
+        Map<String, CacheStats> stats = getGroupStats();
+        CacheStats total = new StatsCounter().snapshot(null, 0, 0, 0);
+        for (CacheStats group : stats.values()) {
+            logger.info(group.toString());
+            total = total.plus(group);
+        }
+        logger.info(total.toString());
+    }
+
+    public long getMaintenanceInterval() {
+        return this.maintenanceInterval;
+    }
+
+    /**
+     * Sets how often the maintenance thread removes expired items, 0 stops it. Without the maintenance thread,
+     * expired items are removed when they are looked up or by {@link #cleanUp()}.
+     *
+     * @param millis  the interval in milliseconds
+     */
+    public synchronized void setMaintenanceInterval(long millis) {
+        this.maintenanceInterval = Math.max(0, millis);
+        Maintenance current = this.maintenance;
+        if (current != null) {
+            current.cancel();
+            this.maintenance = null;
+        }
+        if (current != null || this.pendingTimers.get() > 0 || this.timerWheel.size() > 0) {
+            startMaintenance();
+        }
+    }
+
+    public void addRemovalListener(RemovalListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null");
+        }
+        this.removalListeners.add(listener);
+    }
+
+    public void removeRemovalListener(RemovalListener listener) {
+        this.removalListeners.remove(listener);
+    }
+
+    /**
+     * Removes the expired items now, instead of waiting for the maintenance thread.
+     */
+    public void cleanUp() {
+        List<TimerWheel.Node> expired = new ArrayList<TimerWheel.Node>();
+        this.maintenanceLock.lock();
+        try {
+            drainTimers();
+            this.timerWheel.advance(System.currentTimeMillis(), expired);
+        } finally {
+            this.maintenanceLock.unlock();
+        }
+        for (TimerWheel.Node node : expired) {
+            Group group = this.groups.get(node.getGroup());
+            if (group != null) {
+                group.remove(node.getItem().getID(), node.getItem(), RemovalCause.EXPIRED);
+            }
+        }
     }
 
     public void setEnabled(boolean enabled) {
@@ -47,13 +332,136 @@ public class CacheManager {
         return this.enabled;
     }
 
+    public long getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    /**
+     * Sets the maximum number of items in the whole cache, 0 means unbounded.
+     *
+     * @param maxEntries  the maximum number of items
+     */
+    public void setMaxEntries(long maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        boundsChanged();
+    }
+
+    public long getMaxEntries(String group) {
+        Long max = this.groupMaxEntries.get(group.toLowerCase());
+        return max == null ? 0 : max;
+    }
+
+    /**
+     * Sets the maximum number of items in a group, 0 means unbounded.
+     *
+     * @param group       the group
+     * @param maxEntries  the maximum number of items
+     */
+    public void setMaxEntries(String group, long maxEntries) {
+        setBound(this.groupMaxEntries, group, maxEntries);
+    }
+
+    public long getMaxWeight() {
+        return this.maxWeight;
+    }
+
+    /**
+     * Sets the maximum total weight of the items in the whole cache, 0 means unbounded.
+     * Without a {@link Weigher}, every item weighs 1.
+     *
+     * @param maxWeight  the maximum weight
+     */
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = Math.max(0, maxWeight);
+        boundsChanged();
+    }
+
+    public long getMaxWeight(String group) {
+        Long max = this.groupMaxWeight.get(group.toLowerCase());
+        return max == null ? 0 : max;
+    }
+
+    public void setMaxWeight(String group, long maxWeight) {
+        setBound(this.groupMaxWeight, group, maxWeight);
+    }
+
+    public Weigher getWeigher() {
+        return this.weigher;
+    }
+
+    /**
+     * Sets the weigher computing the weight of items added afterwards, {@code null} gives every item a weight of 1.
+     *
+     * @param weigher  the weigher
+     */
+    public void setWeigher(Weigher weigher) {
+        this.weigher = weigher;
+    }
+
+    public EvictionPolicyFactory getEvictionPolicy() {
+        return this.evictionPolicy;
+    }
+
+    /**
+     * Sets the eviction policy of bounded groups, see {@link Eviction} for the built-in policies.
+     *
+     * @param evictionPolicy  the factory creating the policy of each group
+     */
+    public void setEvictionPolicy(EvictionPolicyFactory evictionPolicy) {
+        if (evictionPolicy == null) {
+            throw new IllegalArgumentException("evictionPolicy cannot be null");
+        }
+        this.evictionPolicy = evictionPolicy;
+        boundsChanged();
+    }
+
+    /**
+     * Returns the number of items evicted because of the size bounds.
+     *
+     * @return the number of evicted items
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * Returns the number of items in the whole cache, including expired items that were not removed yet.
+     *
+     * @return the number of items
+     */
+    public long getSize() {
+        long size = 0;
+        for (Group group : this.groups.values()) {
+            size += group.items.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the total weight of the items in the whole cache.
+     *
+     * @return the weight
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Group group : this.groups.values()) {
+            weight += group.weight.get();
+        }
+        return weight;
+    }
+
+    public long getWeight(String group) {
+        Group existing = this.groups.get(group.toLowerCase());
+        return existing == null ? 0 : existing.weight.get();
+    }
+
     public Map<String, Map<Object, CacheItem>> getCache() {
         return this.items;
     }
 
     public Map<Object, CacheItem> getCache(String group) {
         if (this.containsGroup(group)) {
-            return this.items.get(group);
+            return this.items.get(group.toLowerCase());
         }
         return null;
     }
@@ -63,12 +471,7 @@ public class CacheManager {
     }
 
     public int getLastID(String group) {
-        String newGroup = group.toLowerCase();
-        if (this.lastID.containsKey(newGroup)) {
-            return this.lastID.get(newGroup);
-        }
-        this.lastID.put(newGroup, 0);
-        return 0;
+        return counter(group.toLowerCase()).get();
     }
 
     public boolean contains(Object id) {
@@ -76,19 +479,11 @@ public class CacheManager {
     }
 
     public boolean containsGroup(String group) {
-        return this.enabled && this.items.containsKey(group);
+        return this.enabled && this.items.containsKey(group.toLowerCase());
     }
 
     public boolean contains(String group, Object id) {
-        String newGroup = group.toLowerCase();
-        if (this.enabled && containsGroup(newGroup) && this.items.get(newGroup).containsKey(id)) {
-            if (this.items.get(newGroup).get(id).getSecondsLeft() >= 1) {
-                return true;
-            } else {
-                this.items.get(newGroup).remove(id);
-            }
-        }
-        return false;
+        return getLiveItem(group.toLowerCase(), id) != null;
     }
 
     public void put(Object id, Object object) {
@@ -100,23 +495,14 @@ public class CacheManager {
     }
 
     public int put(String group, Object object) {
-        int id = getLastID(group) + 1;
+        int id = counter(group.toLowerCase()).incrementAndGet();
         put(group, id, object);
         return id;
     }
 
     public void put(String group, Object id, Object object) {
         if (this.enabled) {
-            String newGroup = group.toLowerCase();
-            if (!containsGroup(newGroup)) {
-                this.items.put(newGroup, new HashMap<Object, CacheItem>());
-            }
-            Map<Object, CacheItem> temp = this.items.get(newGroup);
-            temp.put(id, new CacheItem(id, this.seconds, object));
-            this.items.put(newGroup, temp);
-            if (id instanceof String && Util.isInteger((String) id)) {
-                this.lastID.put(newGroup, Integer.parseInt((String) id));
-            }
+            store(group.toLowerCase(), id, new CacheItem(id, object, this.cacheTime, TimeUnit.MILLISECONDS));
         }
     }
 
@@ -129,25 +515,15 @@ public class CacheManager {
     }
 
     public int putMetadatable(String group, Object object) {
-        int id = getLastID(group) + 1;
+        int id = counter(group.toLowerCase()).incrementAndGet();
         putMetadatable(group, id, object);
         return id;
     }
 
     public void putMetadatable(String group, Object id, Object object) {
         if (this.enabled) {
-            String newGroup = group.toLowerCase();
-            if (!containsGroup(newGroup)) {
-                this.items.put(newGroup, new HashMap<Object, CacheItem>());
-            }
-            Map<Object, CacheItem> temp = this.items.get(newGroup);
-            temp.put(id, new MetadatableCacheItem(id, this.seconds, object));
-            this.items.put(newGroup, temp);
-            if (id instanceof String && Util.isInteger((String) id)) {
-                this.lastID.put(newGroup, Integer.parseInt((String) id));
-            }
+            store(group.toLowerCase(), id, new MetadatableCacheItem(id, object, this.cacheTime, TimeUnit.MILLISECONDS));
         }
-
     }
 
     public CacheItem getItem(Object id) {
@@ -155,11 +531,7 @@ public class CacheManager {
     }
 
     public CacheItem getItem(String group, Object id) {
-        String newGroup = group.toLowerCase();
-        if (contains(newGroup, id)) {
-            return this.items.get(newGroup).get(id);
-        }
-        return null;
+        return getLiveItem(group.toLowerCase(), id);
     }
 
     public MetadatableCacheItem getMetadatableItem(Object id) {
@@ -167,12 +539,9 @@ public class CacheManager {
     }
 
     public MetadatableCacheItem getMetadatableItem(String group, Object id) {
-        String newGroup = group.toLowerCase();
-        if (contains(newGroup, id)) {
-            CacheItem item = this.items.get(newGroup).get(id);
-            if (item instanceof MetadatableCacheItem) {
-                return (MetadatableCacheItem) item;
-            }
+        CacheItem item = getLiveItem(group.toLowerCase(), id);
+        if (item instanceof MetadatableCacheItem) {
+            return (MetadatableCacheItem) item;
         }
         return null;
     }
@@ -190,19 +559,146 @@ public class CacheManager {
     }
 
     public Object get(String group, Object id) {
-        String newGroup = group.toLowerCase();
-        if (contains(newGroup, id)) {
-            return this.items.get(newGroup).get(id).getObject();
+        CacheItem item = getLiveItem(group.toLowerCase(), id);
+        if (item != null) {
+            return item.getObject();
         }
         return null;
     }
 
+    /**
+     * Returns an object, loading and caching it if it is missing. Concurrent calls for the same missing object wait
+     * for the first one to load it. If the object is older than the refresh time, it is returned and reloaded in
+     * the background.
+     *
+     * @param  group                 the group
+     * @param  id                    the ID of the object
+     * @param  loader                the loader of the object
+     * @return                       the object, or null if the loader returned null
+     * @throws CacheLoaderException  if the loader failed
+     */
+    public Object get(String group, Object id, CacheLoader loader) throws CacheLoaderException {
+        String name = group.toLowerCase();
+        CacheItem item = getLiveItem(name, id);
+        if (item != null) {
+            refreshIfStale(name, id, item, loader);
+            return item.getObject();
+        }
+        LoadKey key = new LoadKey(name, id);
+        Load load = new Load();
+        Load existing = this.loading.putIfAbsent(key, load);
+        if (existing != null) {
+            return existing.get(name, id);
+        }
+        long start = System.nanoTime();
+        try {
+            // the previous load may have finished between the lookup and claiming the key
+            item = getLiveItem(name, id, false);
+            Object object;
+            if (item != null) {
+                object = item.getObject();
+            } else {
+                object = loader.load(name, id);
+                recordLoad(name, start, true);
+                if (object != null) {
+                    put(name, id, object);
+                }
+            }
+            load.set(object);
+            return object;
+        } catch (Exception e) {
+            recordLoad(name, start, false);
+            load.fail(e);
+            throw new CacheLoaderException(name, id, e);
+        } catch (Error e) {
+            load.fail(e);
+            throw e;
+        } finally {
+            this.loading.remove(key, load);
+        }
+    }
+
+    /**
+     * Returns several objects, loading the missing ones with a single call to
+     * {@link CacheLoader#loadAll(String, Collection)}. Objects being loaded by other threads are waited for instead.
+     *
+     * @param  group                 the group
+     * @param  ids                   the IDs of the objects
+     * @param  loader                the loader of the objects
+     * @return                       the objects by ID in the order of {@code ids}, without the ones that do not exist
+     * @throws CacheLoaderException  if the loader failed
+     */
+    public Map<Object, Object> getAll(String group, Collection<?> ids, CacheLoader loader) throws CacheLoaderException {
+        String name = group.toLowerCase();
+        Map<Object, Object> found = new HashMap<Object, Object>();
+        Map<Object, Load> claimed = new LinkedHashMap<Object, Load>();
+        Map<Object, Load> waiting = new HashMap<Object, Load>();
+        for (Object id : ids) {
+            if (found.containsKey(id) || claimed.containsKey(id) || waiting.containsKey(id)) {
+                continue;
+            }
+            CacheItem item = getLiveItem(name, id);
+            if (item != null) {
+                refreshIfStale(name, id, item, loader);
+                found.put(id, item.getObject());
+                continue;
+            }
+            Load load = new Load();
+            Load existing = this.loading.putIfAbsent(new LoadKey(name, id), load);
+            if (existing == null) {
+                claimed.put(id, load);
+            } else {
+                waiting.put(id, existing);
+            }
+        }
+        if (!claimed.isEmpty()) {
+            long start = System.nanoTime();
+            try {
+                Map<Object, Object> loaded = loader.loadAll(name, Collections.unmodifiableSet(claimed.keySet()));
+                recordLoad(name, start, true);
+                for (Map.Entry<Object, Load> entry : claimed.entrySet()) {
+                    Object object = loaded == null ? null : loaded.get(entry.getKey());
+                    if (object != null) {
+                        put(name, entry.getKey(), object);
+                        found.put(entry.getKey(), object);
+                    }
+                    entry.getValue().set(object);
+                }
+            } catch (Exception e) {
+                recordLoad(name, start, false);
+                failAll(claimed.values(), e);
+                throw new CacheLoaderException(name, new ArrayList<Object>(claimed.keySet()), e);
+            } catch (Error e) {
+                failAll(claimed.values(), e);
+                throw e;
+            } finally {
+                for (Map.Entry<Object, Load> entry : claimed.entrySet()) {
+                    this.loading.remove(new LoadKey(name, entry.getKey()), entry.getValue());
+                }
+            }
+        }
+        for (Map.Entry<Object, Load> entry : waiting.entrySet()) {
+            Object object = entry.getValue().get(name, entry.getKey());
+            if (object != null) {
+                found.put(entry.getKey(), object);
+            }
+        }
+        Map<Object, Object> objects = new LinkedHashMap<Object, Object>();
+        for (Object id : ids) {
+            Object object = found.get(id);
+            if (object != null) {
+                objects.put(id, object);
+            }
+        }
+        return objects;
+    }
+
     public Object getLast() {
         return getLast(this.defaultGroup);
     }
 
     public Object getLast(String group) {
-        return get(group, getLastID());
+        return get(group, getLastID(group));
     }
 
     public void remove(Object id) {
@@ -210,23 +706,572 @@ public class CacheManager {
     }
 
     public void remove(String group, Object id) {
-        if (contains(group, id)) {
-            this.items.get(group.toLowerCase()).remove(id);
+        Group existing = this.groups.get(group.toLowerCase());
+        if (existing != null) {
+            existing.remove(id, null, RemovalCause.EXPLICIT);
         }
     }
 
     public void clear(String group) {
         String newGroup = group.toLowerCase();
-        if (containsGroup(newGroup)) {
-            this.items.get(newGroup).clear();
-        }
-        if (this.lastID.containsKey(newGroup)) {
-            this.items.remove(newGroup);
+        this.items.remove(newGroup);
+        Group removed = this.groups.remove(newGroup);
+        if (removed != null) {
+            for (CacheItem item : removed.items.values()) {
+                removed(newGroup, item, RemovalCause.EXPLICIT);
+            }
         }
     }
 
     public void clear() {
+        for (String group : this.groups.keySet()) {
+            clear(group);
+        }
         this.items.clear();
         this.lastID.clear();
     }
+
+    private CacheItem getLiveItem(String group, Object id) {
+        return getLiveItem(group, id, true);
+    }
+
+    /**
+     * Returns the item with the given ID if it has not expired, removing it if it has.
+     */
+    private CacheItem getLiveItem(String group, Object id, boolean record) {
+        if (!this.enabled) {
+            return null;
+        }
+        record &= this.recordStats;
+        Group existing = this.groups.get(group);
+        if (existing == null) {
+            if (record) {
+                stats(group).misses.incrementAndGet();
+            }
+            return null;
+        }
+        CacheItem item = existing.items.get(id);
+        if (item != null && !item.isExpired()) {
+            existing.recordAccess(id);
+            if (record) {
+                existing.stats.hits.incrementAndGet();
+            }
+            return item;
+        }
+        if (item != null) {
+            existing.remove(id, item, RemovalCause.EXPIRED);
+        }
+        if (record) {
+            existing.stats.misses.incrementAndGet();
+        }
+        return null;
+    }
+
+    private void store(String group, Object id, CacheItem item) {
+        Weigher weigher = this.weigher;
+        if (weigher != null) {
+            item.setWeight(Math.max(0, weigher.weigh(id, item.getObject())));
+        }
+        if (item.isExpiring()) {
+            item.timer = new TimerWheel.Node(group, item);
+        }
+        Group target = group(group);
+        if (this.recordStats) {
+            target.stats.puts.incrementAndGet();
+        }
+        CacheItem old;
+        List<CacheItem> evicted = new ArrayList<CacheItem>(0);
+        if (isBounded(group)) {
+            old = target.putBounded(id, item, getMaxEntries(group), getMaxWeight(group), evicted);
+        } else {
+            old = target.items.put(id, item);
+            target.weight.addAndGet(item.getWeight() - (old == null ? 0 : old.getWeight()));
+        }
+        if (item.timer != null) {
+            enqueueTimer(item.timer);
+            startMaintenance();
+        }
+        if (old != null) {
+            removed(group, old, RemovalCause.REPLACED);
+        }
+        for (CacheItem victim : evicted) {
+            removed(group, victim, RemovalCause.SIZE);
+        }
+        if (isBounded(group)) {
+            evictGlobally(target, id);
+        }
+        int numeric;
+        if (id instanceof Integer) {
+            numeric = (Integer) id;
+        } else if (id instanceof String && Util.isInteger((String) id)) {
+            numeric = Integer.parseInt((String) id);
+        } else {
+            return;
+        }
+        AtomicInteger counter = counter(group);
+        int current = counter.get();
+        while (numeric > current && !counter.compareAndSet(current, numeric)) {
+            current = counter.get();
+        }
+    }
+
+    private boolean isBounded(String group) {
+        return this.maxEntries > 0 || this.maxWeight > 0 || this.groupMaxEntries.containsKey(group)
+                || this.groupMaxWeight.containsKey(group);
+    }
+
+    /**
+     * Evicts items from the heaviest groups until the whole cache is within its bounds.
+     */
+    private void evictGlobally(Group origin, Object candidate) {
+        long maxEntries = this.maxEntries, maxWeight = this.maxWeight;
+        if (maxEntries == 0 && maxWeight == 0) {
+            return;
+        }
+        while (true) {
+            long size = 0, weight = 0;
+            Group heaviest = null;
+            for (Group group : this.groups.values()) {
+                size += group.items.size();
+                weight += group.weight.get();
+                if (heaviest == null || groupLoad(group, maxWeight) > groupLoad(heaviest, maxWeight)) {
+                    heaviest = group;
+                }
+            }
+            if (heaviest == null || ((maxEntries == 0 || size <= maxEntries) && (maxWeight == 0 || weight <= maxWeight))) {
+                return;
+            }
+            List<CacheItem> evicted = new ArrayList<CacheItem>(1);
+            if (!heaviest.evictOne(heaviest == origin ? candidate : null, evicted)) {
+                return;
+            }
+            for (CacheItem victim : evicted) {
+                removed(heaviest.name, victim, RemovalCause.SIZE);
+            }
+        }
+    }
+
+    /**
+     * Reloads an object in the background if it is older than the refresh time and is not being loaded already.
+     */
+    private void refreshIfStale(final String group, final Object id, final CacheItem item, final CacheLoader loader) {
+        long refreshTime = this.refreshTime;
+        if (refreshTime == 0 || System.currentTimeMillis() - item.getTimeAddedMillis() < refreshTime) {
+            return;
+        }
+        final LoadKey key = new LoadKey(group, id);
+        final Load load = new Load();
+        if (this.loading.putIfAbsent(key, load) != null) {
+            return;
+        }
+        try {
+            getRefreshExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        Object object = loader.reload(group, id, item.getObject());
+                        recordLoad(group, start, true);
+                        Group existing = CacheManager.this.groups.get(group);
+                        // don't overwrite an object put while reloading
+                        if (object != null && existing != null && existing.items.get(id) == item) {
+                            put(group, id, object);
+                        }
+                        load.set(object);
+                    } catch (Exception e) {
+                        recordLoad(group, start, false);
+                        load.fail(e);
+                    } catch (Error e) {
+                        load.fail(e);
+                        throw e;
+                    } finally {
+                        CacheManager.this.loading.remove(key, load);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.loading.remove(key, load);
+            load.set(item.getObject());
+        }
+    }
+
+    private void recordLoad(String group, long start, boolean success) {
+        if (this.recordStats) {
+            stats(group).recordLoad(System.nanoTime() - start, success);
+        }
+    }
+
+    private static void failAll(Collection<Load> loads, Throwable cause) {
+        for (Load load : loads) {
+            load.fail(cause);
+        }
+    }
+
+    /**
+     * Cancels the timer of a removed item and notifies the removal listeners.
+     */
+    private void removed(String group, CacheItem item, RemovalCause cause) {
+        TimerWheel.Node node = item.timer;
+        if (node != null && !node.cancelled) {
+            node.cancelled = true;
+            enqueueTimer(node);
+        }
+        if (this.recordStats) {
+            stats(group).removals.incrementAndGet(cause.ordinal());
+        }
+        for (RemovalListener listener : this.removalListeners) {
+            listener.onRemoval(group, item, cause);
+        }
+    }
+
+    /**
+     * Queues a timer to be scheduled or cancelled in the wheel, which is only touched while holding the maintenance
+     * lock. Writers drain the queue themselves when the maintenance thread falls behind.
+     */
+    private void enqueueTimer(TimerWheel.Node node) {
+        this.timerBuffer.add(node);
+        if (this.pendingTimers.incrementAndGet() > MAX_PENDING_TIMERS && this.maintenanceLock.tryLock()) {
+            try {
+                drainTimers();
+            } finally {
+                this.maintenanceLock.unlock();
+            }
+        }
+    }
+
+    private void drainTimers() {
+        TimerWheel.Node node;
+        while ((node = this.timerBuffer.poll()) != null) {
+            this.pendingTimers.decrementAndGet();
+            if (node.cancelled) {
+                this.timerWheel.deschedule(node);
+            } else {
+                this.timerWheel.schedule(node);
+            }
+        }
+    }
+
+    private void startMaintenance() {
+        if (this.maintenance != null || this.maintenanceInterval == 0) {
+            return;
+        }
+        synchronized (this) {
+            if (this.maintenance == null && this.maintenanceInterval > 0) {
+                this.maintenance = new Maintenance(this, this.maintenanceInterval, null);
+            }
+        }
+    }
+
+    private static long groupLoad(Group group, long maxWeight) {
+        return maxWeight > 0 ? group.weight.get() : group.items.size();
+    }
+
+    private void setBound(ConcurrentMap<String, Long> bounds, String group, long max) {
+        if (max > 0) {
+            bounds.put(group.toLowerCase(), max);
+        } else {
+            bounds.remove(group.toLowerCase());
+        }
+        boundsChanged();
+    }
+
+    /**
+     * Drops the eviction policies, which are rebuilt from the current items when a bounded group is next written.
+     */
+    private void boundsChanged() {
+        for (Group group : this.groups.values()) {
+            synchronized (group) {
+                group.policy = null;
+            }
+        }
+    }
+
+    private Group group(String name) {
+        Group group = this.groups.get(name);
+        if (group == null) {
+            group = new Group(name);
+            Group existing = this.groups.putIfAbsent(name, group);
+            if (existing != null) {
+                return existing;
+            }
+            this.items.put(name, group.items);
+        }
+        return group;
+    }
+
+    private StatsCounter stats(String group) {
+        StatsCounter counter = this.stats.get(group);
+        if (counter == null) {
+            counter = new StatsCounter();
+            StatsCounter existing = this.stats.putIfAbsent(group, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    private AtomicInteger counter(String group) {
+        AtomicInteger counter = this.lastID.get(group);
+        if (counter == null) {
+            counter = new AtomicInteger();
+            AtomicInteger existing = this.lastID.putIfAbsent(group, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * The items of a group with their total weight and, once the group is bounded, its eviction policy.
+     */
+    private final class Group {
+        private final String name;
+        private final ConcurrentHashMap<Object, CacheItem> items = new ConcurrentHashMap<Object, CacheItem>();
+        private final AtomicLong weight = new AtomicLong();
+        private final StatsCounter stats;
+        private volatile EvictionPolicy policy = null;
+
+        Group(String name) {
+            this.name = name;
+            this.stats = stats(name);
+        }
+
+        void recordAccess(Object id) {
+            if (this.policy == null) {
+                return;
+            }
+            synchronized (this) {
+                if (this.policy != null && this.items.containsKey(id)) {
+                    this.policy.recordAccess(id);
+                }
+            }
+        }
+
+        /**
+         * Removes an item, or the given item only if it is still cached when {@code expected} is not null.
+         */
+        void remove(Object id, CacheItem expected, RemovalCause cause) {
+            CacheItem removed;
+            if (this.policy == null) {
+                removed = removeItem(id, expected);
+                if (removed != null) {
+                    this.weight.addAndGet(-removed.getWeight());
+                }
+            } else {
+                synchronized (this) {
+                    removed = removeItem(id, expected);
+                    if (removed != null) {
+                        this.weight.addAndGet(-removed.getWeight());
+                        if (this.policy != null) {
+                            this.policy.recordRemoval(id);
+                        }
+                    }
+                }
+            }
+            if (removed != null) {
+                removed(this.name, removed, cause);
+            }
+        }
+
+        private CacheItem removeItem(Object id, CacheItem expected) {
+            if (expected == null) {
+                return this.items.remove(id);
+            }
+            return this.items.remove(id, expected) ? expected : null;
+        }
+
+        /**
+         * Adds an item, evicting items until the group is within its bounds. Returns the replaced item.
+         */
+        synchronized CacheItem putBounded(Object id, CacheItem item, long maxEntries, long maxWeight,
+                List<CacheItem> evicted) {
+            EvictionPolicy policy = policy();
+            CacheItem old = this.items.put(id, item);
+            this.weight.addAndGet(item.getWeight() - (old == null ? 0 : old.getWeight()));
+            if (old == null) {
+                policy.recordInsert(id);
+            } else {
+                policy.recordAccess(id);
+            }
+            while ((maxEntries > 0 && this.items.size() > maxEntries) || (maxWeight > 0 && this.weight.get() > maxWeight)) {
+                if (!evictOne(id, evicted)) {
+                    break;
+                }
+            }
+            return old;
+        }
+
+        synchronized boolean evictOne(Object candidate, List<CacheItem> evicted) {
+            Object victim = policy().selectVictim(candidate);
+            if (victim == null) {
+                return false;
+            }
+            CacheItem removed = this.items.remove(victim);
+            this.policy.recordRemoval(victim);
+            if (removed != null) {
+                this.weight.addAndGet(-removed.getWeight());
+                CacheManager.this.evictions.incrementAndGet();
+                evicted.add(removed);
+            }
+            return true;
+        }
+
+        private EvictionPolicy policy() {
+            if (this.policy == null) {
+                this.policy = CacheManager.this.evictionPolicy.create(this.name);
+                for (Object id : this.items.keySet()) {
+                    this.policy.recordInsert(id);
+                }
+            }
+            return this.policy;
+        }
+    }
+
+    /**
+     * The group and ID of an object being loaded.
+     */
+    private static final class LoadKey {
+        private final String group;
+        private final Object id;
+
+        LoadKey(String group, Object id) {
+            this.group = group;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof LoadKey)) {
+                return false;
+            }
+            LoadKey key = (LoadKey) other;
+            return this.group.equals(key.group) && (this.id == null ? key.id == null : this.id.equals(key.id));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.group.hashCode() + (this.id == null ? 0 : this.id.hashCode());
+        }
+    }
+
+    /**
+     * The outcome of a load, waited for by the threads that looked up the object while it was loading.
+     */
+    private static final class Load {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Object object = null;
+        private volatile Throwable cause = null;
+
+        void set(Object object) {
+            this.object = object;
+            this.done.countDown();
+        }
+
+        void fail(Throwable cause) {
+            this.cause = cause;
+            this.done.countDown();
+        }
+
+        Object get(String group, Object id) throws CacheLoaderException {
+            try {
+                this.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CacheLoaderException(group, id, e);
+            }
+            if (this.cause != null) {
+                throw new CacheLoaderException(group, id, this.cause);
+            }
+            return this.object;
+        }
+    }
+
+    /**
+     * The statistics counters of a group, kept when the group is cleared.
+     */
+    private static final class StatsCounter {
+        private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), puts = new AtomicLong();
+        private final AtomicLong loads = new AtomicLong(), loadFailures = new AtomicLong(), loadTime = new AtomicLong();
+        private final AtomicLongArray removals = new AtomicLongArray(RemovalCause.values().length);
+
+        void recordLoad(long nanos, boolean success) {
+            (success ? this.loads : this.loadFailures).incrementAndGet();
+            this.loadTime.addAndGet(nanos);
+        }
+
+        CacheStats snapshot(String group, long size, long weight, long memory) {
+            long[] removals = new long[this.removals.length()];
+            for (int i = 0; i < removals.length; i++) {
+                removals[i] = this.removals.get(i);
+            }
+            return new CacheStats(group, this.hits.get(), this.misses.get(), this.puts.get(), this.loads.get(),
+                    this.loadFailures.get(), this.loadTime.get(), removals, size, weight, memory);
+        }
+
+        void reset() {
+            for (AtomicLong counter : new AtomicLong[] { this.hits, this.misses, this.puts, this.loads,
+                    this.loadFailures, this.loadTime }) {
+                counter.set(0);
+            }
+            for (int i = 0; i < this.removals.length(); i++) {
+                this.removals.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Periodically cleans up a cache, or logs its statistics, on the shared maintenance thread, until the cache is
+     * garbage collected.
+     */
+    private static final class Maintenance implements Runnable {
+        private static final ScheduledThreadPoolExecutor executor = createExecutor();
+        private final WeakReference<CacheManager> manager;
+        private final LoggingManager statsLogger;
+        private final ScheduledFuture<?> future;
+
+        Maintenance(CacheManager manager, long interval, LoggingManager statsLogger) {
+            this.manager = new WeakReference<CacheManager>(manager);
+            this.statsLogger = statsLogger;
+            this.future = executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            CacheManager manager = this.manager.get();
+            if (manager == null) {
+                cancel();
+                return;
+            }
+            try {
+                if (this.statsLogger != null) {
+                    manager.logStats(this.statsLogger);
+                } else {
+                    manager.cleanUp();
+                }
+            } catch (RuntimeException e) {
+                // A failing removal listener must not stop the maintenance of the cache.
+            }
+        }
+
+        void cancel() {
+            if (this.future != null) {
+                this.future.cancel(false);
+            }
+        }
+
+        private static ScheduledThreadPoolExecutor createExecutor() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CacheManager-maintenance");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
 }
@@ -0,0 +1,176 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+import java.util.Locale;
+
+/**
+ * A snapshot of the statistics of a {@link CacheManager} group, or of the whole cache.
+ * <p>
+ * Every lookup counts as a hit or a miss, including {@link CacheManager#contains(String, Object)}. Loads are the
+ * calls to a {@link CacheLoader}, a bulk load counting as one load.
+ */
+public class CacheStats {
+    private final String group;
+    private final long hits, misses, puts, loads, loadFailures, loadTime, size, weight, memory;
+    private final long[] removals;
+
+    protected CacheStats(String group, long hits, long misses, long puts, long loads, long loadFailures, long loadTime,
+            long[] removals, long size, long weight, long memory) {
+        this.group = group;
+        this.hits = hits;
+        this.misses = misses;
+        this.puts = puts;
+        this.loads = loads;
+        this.loadFailures = loadFailures;
+        this.loadTime = loadTime;
+        this.removals = removals.clone();
+        this.size = size;
+        this.weight = weight;
+        this.memory = memory;
+    }
+
+    /**
+     * Returns the group of these statistics.
+     *
+     * @return the group, or null for the whole cache
+     */
+    public String getGroup() {
+        return this.group;
+    }
+
+    public long getHitCount() {
+        return this.hits;
+    }
+
+    public long getMissCount() {
+        return this.misses;
+    }
+
+    public long getRequestCount() {
+        return this.hits + this.misses;
+    }
+
+    /**
+     * Returns the fraction of the lookups that found a live item, 1 if there were no lookups.
+     *
+     * @return the hit rate, between 0 and 1
+     */
+    public double getHitRate() {
+        long requests = getRequestCount();
+        return requests == 0 ? 1 : (double) this.hits / requests;
+    }
+
+    public long getPutCount() {
+        return this.puts;
+    }
+
+    /**
+     * Returns the number of successful loads, including background refreshes.
+     *
+     * @return the number of loads
+     */
+    public long getLoadCount() {
+        return this.loads;
+    }
+
+    public long getLoadFailureCount() {
+        return this.loadFailures;
+    }
+
+    /**
+     * Returns the total time spent loading, in nanoseconds.
+     *
+     * @return the total load time in nanoseconds
+     */
+    public long getTotalLoadTime() {
+        return this.loadTime;
+    }
+
+    /**
+     * Returns the average time of a load, successful or not, in nanoseconds.
+     *
+     * @return the average load penalty in nanoseconds
+     */
+    public long getAverageLoadPenalty() {
+        long total = this.loads + this.loadFailures;
+        return total == 0 ? 0 : this.loadTime / total;
+    }
+
+    public long getRemovalCount(RemovalCause cause) {
+        return this.removals[cause.ordinal()];
+    }
+
+    public long getEvictionCount() {
+        return getRemovalCount(RemovalCause.SIZE);
+    }
+
+    public long getExpirationCount() {
+        return getRemovalCount(RemovalCause.EXPIRED);
+    }
+
+    /**
+     * Returns the number of items when the snapshot was taken, including expired items that were not removed yet.
+     *
+     * @return the number of items
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    public long getWeight() {
+        return this.weight;
+    }
+
+    /**
+     * Returns an estimate of the memory used by the items, in bytes: a fixed overhead per item, plus the weight of
+     * the items if the cache has a {@link Weigher}, whose weights are then taken as sizes in bytes.
+     *
+     * @return the estimated memory in bytes
+     */
+    public long getEstimatedMemory() {
+        return this.memory;
+    }
+
+    /**
+     * Returns the sum of these statistics and other statistics, for the whole cache.
+     *
+     * @param  other  the other statistics
+     * @return        the sum
+     */
+    public CacheStats plus(CacheStats other) {
+        long[] removals = new long[this.removals.length];
+        for (int i = 0; i < removals.length; i++) {
+            removals[i] = this.removals[i] + other.removals[i];
+        }
+        return new CacheStats(null, this.hits + other.hits, this.misses + other.misses, this.puts + other.puts,
+                this.loads + other.loads, this.loadFailures + other.loadFailures, this.loadTime + other.loadTime,
+                removals, this.size + other.size, this.weight + other.weight, this.memory + other.memory);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "CacheStats %s: %d hits, %d misses (%.1f%% hit rate), %d puts, %d loads, "
+                + "%d failed loads, avg load %.2f ms, %d evicted, %d expired, %d items, weight %d, ~%d KB",
+                this.group == null ? "(all)" : "'" + this.group + "'", this.hits, this.misses, getHitRate() * 100,
+                this.puts, this.loads, this.loadFailures, getAverageLoadPenalty() / 1000000.0, getEvictionCount(),
+                getExpirationCount(), this.size, this.weight, this.memory / 1024);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+/**
+ * The built-in eviction policies.
+ */
+public enum Eviction implements EvictionPolicyFactory {
+    /**
+     * Evicts the least recently used item.
+     */
+    LRU {
+        @Override
+        public EvictionPolicy create(String group) {
+            return new LruPolicy();
+        }
+    },
+    /**
+     * Evicts the least frequently used item, the least recently used one among equally used items.
+     */
+    LFU {
+        @Override
+        public EvictionPolicy create(String group) {
+            return new LfuPolicy();
+        }
+    },
+    /**
+     * Window TinyLFU: new items enter a small LRU window, and only replace an item of the main LRU area
+     * if they were used more often, which keeps one-off reads from flushing frequently used items.
+     */
+    TINY_LFU {
+        @Override
+        public EvictionPolicy create(String group) {
+            return new TinyLfuPolicy();
+        }
+    };
+}
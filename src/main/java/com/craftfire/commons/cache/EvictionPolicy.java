@@ -0,0 +1,56 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+/**
+ * Decides which item of a size-bounded cache group is evicted. {@link CacheManager} creates one policy per group
+ * and calls it while holding the group's lock, so implementations don't need to be thread-safe.
+ */
+public interface EvictionPolicy {
+    /**
+     * Called after an item with a new ID was added to the group.
+     *
+     * @param id  the ID of the item
+     */
+    void recordInsert(Object id);
+
+    /**
+     * Called when an item was read or replaced.
+     *
+     * @param id  the ID of the item
+     */
+    void recordAccess(Object id);
+
+    /**
+     * Called after an item was removed from the group, whether it was evicted, expired or removed explicitly.
+     *
+     * @param id  the ID of the item
+     */
+    void recordRemoval(Object id);
+
+    /**
+     * Selects the item to evict while the group is over its bounds.
+     *
+     * @param  candidate  the ID of the item whose insertion exceeded the bounds, or {@code null}
+     * @return            the ID of the item to evict, which may be the candidate, or {@code null} if the policy
+     *                    tracks no items
+     */
+    Object selectVictim(Object candidate);
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+/**
+ * A count-min sketch estimating how often items were used recently, with 4-bit counters that are halved
+ * periodically so old popularity fades.
+ */
+public class FrequencySketch {
+    private static final int[] SEEDS = { 0x97cb3127, 0xb4b82e8d, 0x8c4a5f27, 0xe5a7b9c3 };
+    private static final int MAX_COUNT = 15;
+    private int[] table;
+    private int mask, additions, sampleSize;
+
+    public FrequencySketch(int expectedItems) {
+        ensureCapacity(expectedItems);
+    }
+
+    /**
+     * Grows the sketch to track about the given number of items accurately. Growing forgets the recorded
+     * frequencies.
+     *
+     * @param expectedItems  the number of items
+     */
+    public void ensureCapacity(int expectedItems) {
+        int width = Integer.highestOneBit(Math.max(16, Math.min(expectedItems, 1 << 28)) - 1) << 1;
+        if (this.table != null && this.table.length >= width) {
+            return;
+        }
+        this.table = new int[width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+        this.additions = 0;
+    }
+
+    public int frequency(Object item) {
+        int hash = spread(item.hashCode());
+        int frequency = MAX_COUNT;
+        for (int seed : SEEDS) {
+            frequency = Math.min(frequency, this.table[index(hash, seed)]);
+        }
+        return frequency;
+    }
+
+    public void increment(Object item) {
+        int hash = spread(item.hashCode());
+        boolean added = false;
+        for (int seed : SEEDS) {
+            int index = index(hash, seed);
+            if (this.table[index] < MAX_COUNT) {
+                this.table[index]++;
+                added = true;
+            }
+        }
+        if (added && ++this.additions >= this.sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < this.table.length; i++) {
+            this.table[i] >>>= 1;
+        }
+        this.additions /= 2;
+    }
+
+    private int index(int hash, int seed) {
+        int h = hash * seed;
+        return (h ^ (h >>> 17)) & this.mask;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Evicts the least frequently used item, and the least recently inserted or used one among equally used items.
+ * The item being inserted is only evicted if it is the only one.
+ */
+public class LfuPolicy implements EvictionPolicy {
+    private final Map<Object, Integer> counts = new HashMap<Object, Integer>();
+    private final TreeMap<Integer, LinkedHashSet<Object>> buckets = new TreeMap<Integer, LinkedHashSet<Object>>();
+
+    @Override
+    public void recordInsert(Object id) {
+        if (!this.counts.containsKey(id)) {
+            this.counts.put(id, 1);
+            bucket(1).add(id);
+        }
+    }
+
+    @Override
+    public void recordAccess(Object id) {
+        Integer count = this.counts.get(id);
+        if (count == null || count == Integer.MAX_VALUE) {
+            return;
+        }
+        removeFromBucket(id, count);
+        this.counts.put(id, count + 1);
+        bucket(count + 1).add(id);
+    }
+
+    @Override
+    public void recordRemoval(Object id) {
+        Integer count = this.counts.remove(id);
+        if (count != null) {
+            removeFromBucket(id, count);
+        }
+    }
+
+    @Override
+    public Object selectVictim(Object candidate) {
+        for (LinkedHashSet<Object> bucket : this.buckets.values()) {
+            for (Object id : bucket) {
+                if (candidate == null || !candidate.equals(id)) {
+                    return id;
+                }
+            }
+        }
+        return this.counts.containsKey(candidate) ? candidate : null;
+    }
+
+    private LinkedHashSet<Object> bucket(int count) {
+        LinkedHashSet<Object> bucket = this.buckets.get(count);
+        if (bucket == null) {
+            bucket = new LinkedHashSet<Object>();
+            this.buckets.put(count, bucket);
+        }
+        return bucket;
+    }
+
+    private void removeFromBucket(Object id, int count) {
+        LinkedHashSet<Object> bucket = this.buckets.get(count);
+        bucket.remove(id);
+        if (bucket.isEmpty()) {
+            this.buckets.remove(count);
+        }
+    }
+}
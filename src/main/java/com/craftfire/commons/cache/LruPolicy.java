@@ -0,0 +1,51 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used item.
+ */
+public class LruPolicy implements EvictionPolicy {
+    private final LinkedHashMap<Object, Boolean> order = new LinkedHashMap<Object, Boolean>(16, 0.75f, true);
+
+    @Override
+    public void recordInsert(Object id) {
+        this.order.put(id, Boolean.TRUE);
+    }
+
+    @Override
+    public void recordAccess(Object id) {
+        this.order.get(id);
+    }
+
+    @Override
+    public void recordRemoval(Object id) {
+        this.order.remove(id);
+    }
+
+    @Override
+    public Object selectVictim(Object candidate) {
+        Iterator<Object> iterator = this.order.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+}
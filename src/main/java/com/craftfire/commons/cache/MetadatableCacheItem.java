@@ -21,6 +21,7 @@ package com.craftfire.commons.cache;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class MetadatableCacheItem extends CacheItem {
     private Map<String, Object> metaMap = new HashMap<String, Object>();
@@ -29,6 +30,10 @@ public class MetadatableCacheItem extends CacheItem {
         super(id, cacheTime, object);
     }
 
+    public MetadatableCacheItem(Object id, Object object, long cacheTime, TimeUnit unit) {
+        super(id, object, cacheTime, unit);
+    }
+
     public Object getMetaData(String metaKey) {
         return this.metaMap.get(metaKey);
     }
@@ -0,0 +1,42 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+/**
+ * The reason a {@link CacheItem} was removed from a {@link CacheManager}.
+ */
+public enum RemovalCause {
+    /**
+     * The item was removed with {@link CacheManager#remove(String, Object)} or one of the clear methods.
+     */
+    EXPLICIT,
+    /**
+     * The item was replaced by another item with the same ID.
+     */
+    REPLACED,
+    /**
+     * The cache time of the item ran out.
+     */
+    EXPIRED,
+    /**
+     * The item was evicted because its group or the whole cache was over its bounds.
+     */
+    SIZE;
+}
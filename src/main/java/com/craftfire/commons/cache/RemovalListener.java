@@ -0,0 +1,35 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+/**
+ * Listens for items being removed from a {@link CacheManager}.
+ */
+public interface RemovalListener {
+    /**
+     * Called after an item was removed, on the thread that removed it. Expired items are usually removed by the
+     * maintenance thread of the cache.
+     *
+     * @param group  the group of the item
+     * @param item   the removed item
+     * @param cause  why the item was removed
+     */
+    void onRemoval(String group, CacheItem item, RemovalCause cause);
+}
@@ -0,0 +1,195 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel of expiring cache items. Scheduling, cancelling and expiring an item take
+ * amortized constant time.
+ * <p>
+ * The wheel has levels of buckets of increasing length: 64 buckets of about a second, 64 of about a minute,
+ * 64 of about 70 minutes and one overflow bucket for anything later than about 3 days. As time advances, the
+ * buckets that passed are emptied, expiring their items or moving them down to the more precise levels.
+ * <p>
+ * The wheel is not thread-safe.
+ */
+public class TimerWheel {
+    private static final int[] BUCKETS = { 64, 64, 64, 1 };
+    private static final int[] SHIFTS = { 10, 16, 22, 28 };
+    private final Node[][] wheel;
+    private long time;
+    private int size = 0;
+
+    /**
+     * Creates an empty wheel.
+     *
+     * @param time  the current time in milliseconds
+     */
+    public TimerWheel(long time) {
+        this.time = time;
+        this.wheel = new Node[BUCKETS.length][];
+        for (int i = 0; i < BUCKETS.length; i++) {
+            this.wheel[i] = new Node[BUCKETS[i]];
+            for (int j = 0; j < BUCKETS[i]; j++) {
+                this.wheel[i][j] = new Node(null, null);
+            }
+        }
+    }
+
+    public long getTime() {
+        return this.time;
+    }
+
+    /**
+     * Returns the number of scheduled nodes.
+     *
+     * @return the number of nodes
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Schedules a node to expire at the expiration time of its item. Does nothing if it is already scheduled.
+     *
+     * @param node  the node
+     */
+    public void schedule(Node node) {
+        if (node.isScheduled()) {
+            return;
+        }
+        link(node);
+        this.size++;
+    }
+
+    /**
+     * Cancels a node. Does nothing if it is not scheduled.
+     *
+     * @param node  the node
+     */
+    public void deschedule(Node node) {
+        if (!node.isScheduled()) {
+            return;
+        }
+        unlink(node);
+        this.size--;
+    }
+
+    /**
+     * Advances the wheel, removing the nodes which expire at or before the new time.
+     *
+     * @param now      the current time in milliseconds
+     * @param expired  the list to add the expired nodes to
+     */
+    public void advance(long now, List<Node> expired) {
+        long previous = this.time;
+        if (now <= previous) {
+            return;
+        }
+        this.time = now;
+        for (int i = 0; i < SHIFTS.length; i++) {
+            long previousTicks = previous >>> SHIFTS[i];
+            long ticks = now >>> SHIFTS[i];
+            if (ticks == previousTicks) {
+                break;
+            }
+            expire(i, previousTicks, ticks - previousTicks, now, expired);
+        }
+    }
+
+    private void expire(int level, long previousTicks, long delta, long now, List<Node> expired) {
+        Node[] buckets = this.wheel[level];
+        int mask = buckets.length - 1;
+        int steps = (int) Math.min(delta + 1, buckets.length);
+        int start = (int) (previousTicks & mask);
+        for (int i = start; i < start + steps; i++) {
+            Node sentinel = buckets[i & mask];
+            Node node = sentinel.next;
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            while (node != sentinel) {
+                Node next = node.next;
+                node.prev = null;
+                node.next = null;
+                if (node.item.isExpired(now)) {
+                    this.size--;
+                    expired.add(node);
+                } else {
+                    link(node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    private void link(Node node) {
+        long expires = Math.max(node.item.getExpirationTime(), this.time);
+        long delay = expires - this.time;
+        int level = 0;
+        while (level < SHIFTS.length - 1 && delay >= (1L << SHIFTS[level + 1])) {
+            level++;
+        }
+        Node[] buckets = this.wheel[level];
+        Node sentinel = buckets[(int) ((expires >>> SHIFTS[level]) & (buckets.length - 1))];
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    private static void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    /**
+     * An item scheduled in a wheel.
+     */
+    public static final class Node {
+        private final String group;
+        private final CacheItem item;
+        private Node prev, next;
+        volatile boolean cancelled = false;
+
+        public Node(String group, CacheItem item) {
+            this.group = group;
+            this.item = item;
+            if (item == null) {
+                this.prev = this;
+                this.next = this;
+            }
+        }
+
+        public String getGroup() {
+            return this.group;
+        }
+
+        public CacheItem getItem() {
+            return this.item;
+        }
+
+        public boolean isScheduled() {
+            return this.prev != null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Window TinyLFU eviction. New items enter an LRU window holding about 1% of the group; items leaving the window
+ * move to the main LRU area. When the group is full, the item that just moved to the main area must have been
+ * used more often than the main area's least recently used item, according to a {@link FrequencySketch},
+ * or it is evicted instead.
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+    private final LinkedHashMap<Object, Boolean> window = new LinkedHashMap<Object, Boolean>(16, 0.75f, true);
+    private final LinkedHashMap<Object, Boolean> main = new LinkedHashMap<Object, Boolean>(16, 0.75f, true);
+    private final FrequencySketch sketch = new FrequencySketch(16);
+    private Object promoted = null;
+
+    @Override
+    public void recordInsert(Object id) {
+        this.sketch.increment(id);
+        this.window.put(id, Boolean.TRUE);
+        int size = this.window.size() + this.main.size();
+        this.sketch.ensureCapacity(size);
+        int windowSize = Math.max(1, size / 100);
+        while (this.window.size() > windowSize) {
+            Object oldest = first(this.window);
+            this.window.remove(oldest);
+            this.main.put(oldest, Boolean.TRUE);
+            this.promoted = oldest;
+        }
+    }
+
+    @Override
+    public void recordAccess(Object id) {
+        this.sketch.increment(id);
+        if (this.window.get(id) == null) {
+            this.main.get(id);
+        }
+    }
+
+    @Override
+    public void recordRemoval(Object id) {
+        if (this.window.remove(id) == null) {
+            this.main.remove(id);
+        }
+        if (id.equals(this.promoted)) {
+            this.promoted = null;
+        }
+    }
+
+    @Override
+    public Object selectVictim(Object candidate) {
+        Object victim = first(this.main);
+        Object promoted = this.promoted;
+        this.promoted = null;
+        if (victim == null) {
+            return first(this.window);
+        }
+        if (promoted == null || promoted.equals(victim) || !this.main.containsKey(promoted)) {
+            return victim;
+        }
+        return this.sketch.frequency(promoted) > this.sketch.frequency(victim) ? victim : promoted;
+    }
+
+    private static Object first(LinkedHashMap<Object, Boolean> map) {
+        Iterator<Object> iterator = map.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.cache;
+
+/**
+ * Computes the weight of cached objects, for caches bounded by weight instead of number of entries.
+ */
+public interface Weigher {
+    /**
+     * Returns the weight of an object, for example its approximate size in bytes. It must not change while the
+     * object is cached.
+     *
+     * @param  id      the ID of the object
+     * @param  object  the object
+     * @return         the weight, at least 0
+     */
+    int weigh(Object id, Object object);
+}
@@ -0,0 +1,112 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of a batch operation executed by {@link DataManager}.
+ */
+public class BatchResult {
+    private final long start = System.nanoTime();
+    private long end, rows, affected;
+    private int batches;
+    private long[] batchTimes = new long[16];
+
+    protected void addBatch(int rows, int affected, long nanos) {
+        if (this.batches == this.batchTimes.length) {
+            this.batchTimes = Arrays.copyOf(this.batchTimes, this.batches * 2);
+        }
+        this.batchTimes[this.batches++] = nanos;
+        this.rows += rows;
+        this.affected += affected;
+    }
+
+    protected void finish() {
+        this.end = System.nanoTime();
+    }
+
+    public long getRows() {
+        return this.rows;
+    }
+
+    /**
+     * Returns the number of rows the database reported as affected, which may be lower than {@link #getRows()}
+     * if the driver does not report counts for batched statements.
+     *
+     * @return the number of affected rows
+     */
+    public long getAffectedRows() {
+        return this.affected;
+    }
+
+    public int getBatches() {
+        return this.batches;
+    }
+
+    /**
+     * Returns the total time of the operation, in nanoseconds.
+     *
+     * @return the total time in nanoseconds
+     */
+    public long getTime() {
+        return (this.end == 0 ? System.nanoTime() : this.end) - this.start;
+    }
+
+    public double getRowsPerSecond() {
+        long time = getTime();
+        return time == 0 ? 0 : this.rows * 1000000000d / time;
+    }
+
+    /**
+     * Returns how long each batch took to execute and commit, in nanoseconds.
+     *
+     * @return the batch latencies in nanoseconds
+     */
+    public long[] getBatchTimes() {
+        return Arrays.copyOf(this.batchTimes, this.batches);
+    }
+
+    public long getAverageBatchTime() {
+        if (this.batches == 0) {
+            return 0;
+        }
+        long total = 0;
+        for (int i = 0; i < this.batches; i++) {
+            total += this.batchTimes[i];
+        }
+        return total / this.batches;
+    }
+
+    public long getMaxBatchTime() {
+        long max = 0;
+        for (int i = 0; i < this.batches; i++) {
+            max = Math.max(max, this.batchTimes[i]);
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult " + this.rows + " rows in " + this.batches + " batches, "
+                + String.format("%.1f", getRowsPerSecond()) + " rows/s, average batch "
+                + (getAverageBatchTime() / 1000000) + " ms, max batch " + (getMaxBatchTime() / 1000000) + " ms";
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * A stream reading a BLOB directly from the database, returned by {@link DataManager#openBlobInputStream(String, String, String)}.
+ * <p>
+ * The stream holds a database connection until it is closed, so it should be used in a try-with-resources block.
+ */
+public class BlobInputStream extends FilterInputStream {
+    private final DataManager dataManager;
+    private final Connection connection;
+    private final Statement statement;
+    private final ResultSet resultSet;
+    private boolean closed = false;
+
+    protected BlobInputStream(DataManager dataManager, Connection connection, Statement statement, ResultSet resultSet,
+            InputStream in) {
+        super(in);
+        this.dataManager = dataManager;
+        this.connection = connection;
+        this.statement = statement;
+        this.resultSet = resultSet;
+    }
+
+    /**
+     * Closes the stream and gives the connection back to the DataManager. Calling it more than once has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            super.close();
+        } finally {
+            this.dataManager.close(this.resultSet, this.statement);
+            this.dataManager.releaseDedicatedConnection(this.connection);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A stream writing a BLOB to the database, returned by {@link DataManager#openBlobOutputStream(String, String, String)}.
+ * <p>
+ * The data is written to a driver-managed {@link Blob} and stored in the row when the stream is closed.
+ * The stream holds a database connection until then, so it should be used in a try-with-resources block.
+ * <p>
+ * Whether the data is kept in memory until then depends on the driver. MySQL Connector/J backs its {@link Blob}s
+ * with a byte array, so on MySQL the whole BLOB is buffered in the heap and copied again when it is stored. For
+ * large BLOBs on MySQL, use {@link DataManager#updateBlob(String, String, String, java.io.InputStream, long)},
+ * which passes the stream to the driver directly.
+ */
+public class BlobOutputStream extends FilterOutputStream {
+    private final DataManager dataManager;
+    private final Connection connection;
+    private final Blob blob;
+    private final String query;
+    private boolean closed = false;
+    private long written = 0;
+
+    protected BlobOutputStream(DataManager dataManager, Connection connection, Blob blob, String query) throws SQLException {
+        super(blob.setBinaryStream(1));
+        this.dataManager = dataManager;
+        this.connection = connection;
+        this.blob = blob;
+        this.query = query;
+    }
+
+    public long getBytesWritten() {
+        return this.written;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.out.write(b);
+        this.written++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.out.write(b, off, len);
+        this.written += len;
+    }
+
+    /**
+     * Stores the written data in the row and gives the connection back to the DataManager.
+     * Calling it more than once has no effect.
+     *
+     * @throws IOException  if the data could not be stored, with the {@link SQLException} as cause
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.out.close();
+            this.dataManager.storeBlob(this.connection, this.query, this.blob);
+        } catch (SQLException e) {
+            throw new IOException("Could not store the BLOB with '" + this.query + "'", e);
+        } finally {
+            try {
+                this.blob.free();
+            } catch (SQLException ignore) {
+            }
+            this.dataManager.releaseDedicatedConnection(this.connection);
+        }
+    }
+}
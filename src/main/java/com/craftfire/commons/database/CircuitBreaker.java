@@ -0,0 +1,166 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fails connection attempts fast while the database is known to be down.
+ * <p>
+ * After {@link #getFailureThreshold()} consecutive failures the breaker opens and rejects all attempts. Once
+ * {@link #getOpenTime()} has passed it becomes half-open and lets a single trial attempt through, which closes it
+ * again on success or reopens it on failure.
+ */
+public class CircuitBreaker {
+    private final List<CircuitBreakerListener> listeners = new CopyOnWriteArrayList<CircuitBreakerListener>();
+    private int failureThreshold = 5, failures = 0;
+    private long openTime = 30000, openedAt = 0;
+    private CircuitState state = CircuitState.CLOSED;
+    private boolean trial = false;
+
+    public synchronized int getFailureThreshold() {
+        return this.failureThreshold;
+    }
+
+    /**
+     * Sets how many consecutive connection failures open the breaker.
+     *
+     * @param failureThreshold  the number of failures, at least 1
+     */
+    public synchronized void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be at least 1");
+        }
+        this.failureThreshold = failureThreshold;
+    }
+
+    public synchronized long getOpenTime() {
+        return this.openTime;
+    }
+
+    /**
+     * Sets how long in milliseconds the breaker stays open before a trial attempt is allowed.
+     *
+     * @param openTime  the time in milliseconds
+     */
+    public synchronized void setOpenTime(long openTime) {
+        this.openTime = Math.max(0, openTime);
+    }
+
+    public synchronized CircuitState getState() {
+        return this.state;
+    }
+
+    public synchronized int getFailures() {
+        return this.failures;
+    }
+
+    /**
+     * Returns how long the breaker will still reject attempts.
+     *
+     * @return the time in milliseconds, 0 if attempts are allowed
+     */
+    public synchronized long getRemainingOpenTime() {
+        if (this.state != CircuitState.OPEN) {
+            return 0;
+        }
+        return Math.max(0, this.openedAt + this.openTime - System.currentTimeMillis());
+    }
+
+    public void addListener(CircuitBreakerListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(CircuitBreakerListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Checks whether a connection may be attempted. If this returns true, the outcome must be reported with
+     * {@link #recordSuccess()} or {@link #recordFailure(Throwable)}.
+     *
+     * @return true if the attempt is allowed
+     */
+    public boolean allowRequest() {
+        synchronized (this) {
+            switch (this.state) {
+                case CLOSED:
+                    return true;
+                case HALF_OPEN:
+                    if (this.trial) {
+                        return false;
+                    }
+                    this.trial = true;
+                    return true;
+                default:
+                    if (System.currentTimeMillis() - this.openedAt < this.openTime) {
+                        return false;
+                    }
+                    this.state = CircuitState.HALF_OPEN;
+                    this.trial = true;
+            }
+        }
+        fireStateChanged(CircuitState.OPEN, CircuitState.HALF_OPEN, null);
+        return true;
+    }
+
+    public void recordSuccess() {
+        CircuitState from;
+        synchronized (this) {
+            this.failures = 0;
+            this.trial = false;
+            from = this.state;
+            if (from == CircuitState.CLOSED) {
+                return;
+            }
+            this.state = CircuitState.CLOSED;
+        }
+        fireStateChanged(from, CircuitState.CLOSED, null);
+    }
+
+    public void recordFailure(Throwable cause) {
+        CircuitState from;
+        synchronized (this) {
+            this.failures++;
+            this.trial = false;
+            from = this.state;
+            if (from == CircuitState.OPEN || (from == CircuitState.CLOSED && this.failures < this.failureThreshold)) {
+                return;
+            }
+            this.state = CircuitState.OPEN;
+            this.openedAt = System.currentTimeMillis();
+        }
+        fireStateChanged(from, CircuitState.OPEN, cause);
+    }
+
+    /**
+     * Closes the breaker and forgets previous failures.
+     */
+    public void reset() {
+        recordSuccess();
+    }
+
+    protected void fireStateChanged(CircuitState from, CircuitState to, Throwable cause) {
+        for (CircuitBreakerListener listener : this.listeners) {
+            listener.stateChanged(this, from, to, cause);
+        }
+    }
+}
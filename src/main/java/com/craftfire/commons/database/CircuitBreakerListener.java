@@ -0,0 +1,35 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+/**
+ * Receives the state changes of a {@link CircuitBreaker}.
+ */
+public interface CircuitBreakerListener {
+    /**
+     * Called after the state of the circuit breaker changed.
+     *
+     * @param breaker  the circuit breaker
+     * @param from     the previous state
+     * @param to       the new state
+     * @param cause    the connection failure that caused the change, or {@code null}
+     */
+    void stateChanged(CircuitBreaker breaker, CircuitState from, CircuitState to, Throwable cause);
+}
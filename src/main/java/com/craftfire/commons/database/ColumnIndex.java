@@ -0,0 +1,90 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A case-insensitive map of column names to column indexes, built once per result set and shared by its rows.
+ * <p>
+ * If several columns have the same name, the first one wins, like in {@link DataRow#get(String)}.
+ */
+public class ColumnIndex {
+    private final String[] names;
+    private final Map<String, Integer> exact = new HashMap<String, Integer>();
+    private final Map<String, Integer> lowerCase = new HashMap<String, Integer>();
+
+    public ColumnIndex(String... names) {
+        this.names = names.clone();
+        for (int i = 0; i < this.names.length; i++) {
+            if (!this.exact.containsKey(this.names[i])) {
+                this.exact.put(this.names[i], i);
+            }
+            String key = this.names[i].toLowerCase(Locale.ENGLISH);
+            if (!this.lowerCase.containsKey(key)) {
+                this.lowerCase.put(key, i);
+            }
+        }
+    }
+
+    /**
+     * Creates an index of the column labels of a result set.
+     *
+     * @param  metaData      the metadata of the result set
+     * @return               the column index
+     * @throws SQLException  if a database error occurs
+     */
+    public static ColumnIndex of(ResultSetMetaData metaData) throws SQLException {
+        String[] names = new String[metaData.getColumnCount()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = metaData.getColumnLabel(i + 1);
+        }
+        return new ColumnIndex(names);
+    }
+
+    public int size() {
+        return this.names.length;
+    }
+
+    public String getName(int column) {
+        return this.names[column];
+    }
+
+    /**
+     * Returns the index of the first column with the given name, ignoring case.
+     *
+     * @param  name  the column name
+     * @return       the column index, or -1 if there is no such column
+     */
+    public int indexOf(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer column = this.exact.get(name);
+        if (column == null) {
+            column = this.lowerCase.get(name.toLowerCase(Locale.ENGLISH));
+        }
+        return column == null ? -1 : column;
+    }
+}
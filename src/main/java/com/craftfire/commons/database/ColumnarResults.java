@@ -0,0 +1,477 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Blob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.craftfire.commons.util.ValueType;
+
+/**
+ * A read-only variant of {@link Results} storing values column by column in primitive arrays.
+ * <p>
+ * Column metadata is read once per result set, and rows are exposed as {@link ColumnarRow} views
+ * that only create {@link DataField}s when a value can't be served from the primitive arrays.
+ */
+public class ColumnarResults implements Iterable<ColumnarRow> {
+    private static final int INT = 0, LONG = 1, DOUBLE = 2, BOOLEAN = 3, STRING = 4, DATE = 5, OBJECT = 6;
+    private final String query;
+    private final int columns;
+    private final String[] names, tables, classNames;
+    private final int[] sqltypes, sizes, storage;
+    private final boolean[] unsigned;
+    private final ValueType[] types;
+    private final ColumnIndex index;
+    private final Object[] values;
+    private final int[][] nanos;
+    private final BitSet[] nulls;
+    private int size = 0;
+
+    public ColumnarResults(String query, ResultSet rs) throws SQLException {
+        this(query, rs, new ResultMetadata(rs.getMetaData()));
+    }
+
+    public ColumnarResults(String query, ResultSet rs, ResultMetadata metadata) throws SQLException {
+        this.query = query;
+        this.columns = metadata.getColumnCount();
+        this.names = new String[this.columns];
+        this.tables = new String[this.columns];
+        this.classNames = new String[this.columns];
+        this.sqltypes = new int[this.columns];
+        this.sizes = new int[this.columns];
+        this.storage = new int[this.columns];
+        this.unsigned = new boolean[this.columns];
+        this.types = new ValueType[this.columns];
+        this.values = new Object[this.columns];
+        this.nanos = new int[this.columns][];
+        this.nulls = new BitSet[this.columns];
+        for (int i = 0; i < this.columns; i++) {
+            this.names[i] = metadata.getName(i + 1);
+            this.tables[i] = metadata.getTable(i + 1);
+            this.classNames[i] = metadata.getColumnClassName(i + 1);
+            this.sqltypes[i] = metadata.getSQLType(i + 1);
+            this.sizes[i] = metadata.getSize(i + 1);
+            this.unsigned[i] = metadata.isUnsigned(i + 1);
+            this.types[i] = metadata.getType(i + 1);
+            this.storage[i] = storageOf(this.types[i], this.classNames[i]);
+            this.nulls[i] = new BitSet();
+        }
+        this.index = metadata.getColumns();
+        int capacity = 16;
+        allocate(capacity);
+        while (rs.next()) {
+            if (this.size == capacity) {
+                capacity *= 2;
+                allocate(capacity);
+            }
+            for (int i = 0; i < this.columns; i++) {
+                read(rs, i);
+            }
+            this.size++;
+        }
+        allocate(this.size);
+    }
+
+    private static int storageOf(ValueType type, String className) {
+        if (type == ValueType.INTEGER) {
+            if ("java.lang.Integer".equals(className) || "java.lang.Short".equals(className) || "java.lang.Byte".equals(className)) {
+                return INT;
+            } else if ("java.lang.Long".equals(className)) {
+                return LONG;
+            }
+        } else if (type == ValueType.REAL) {
+            if ("java.lang.Double".equals(className) || "java.lang.Float".equals(className)) {
+                return DOUBLE;
+            }
+        } else if (type == ValueType.BOOLEAN) {
+            if ("java.lang.Boolean".equals(className)) {
+                return BOOLEAN;
+            }
+        } else if (type == ValueType.STRING) {
+            return STRING;
+        } else if (type == ValueType.DATE) {
+            if ("java.sql.Timestamp".equals(className) || "java.sql.Date".equals(className) || "java.sql.Time".equals(className)) {
+                return DATE;
+            }
+        }
+        return OBJECT;
+    }
+
+    private void allocate(int capacity) {
+        for (int i = 0; i < this.columns; i++) {
+            Object array = this.values[i];
+            switch (this.storage[i]) {
+            case INT:
+                this.values[i] = array == null ? new int[capacity] : Arrays.copyOf((int[]) array, capacity);
+                break;
+            case LONG:
+            case DATE:
+                this.values[i] = array == null ? new long[capacity] : Arrays.copyOf((long[]) array, capacity);
+                if (this.nanos[i] != null) {
+                    this.nanos[i] = Arrays.copyOf(this.nanos[i], capacity);
+                }
+                break;
+            case DOUBLE:
+                this.values[i] = array == null ? new double[capacity] : Arrays.copyOf((double[]) array, capacity);
+                break;
+            case BOOLEAN:
+                this.values[i] = array == null ? new boolean[capacity] : Arrays.copyOf((boolean[]) array, capacity);
+                break;
+            case STRING:
+                this.values[i] = array == null ? new String[capacity] : Arrays.copyOf((String[]) array, capacity);
+                break;
+            default:
+                this.values[i] = array == null ? new Object[capacity] : Arrays.copyOf((Object[]) array, capacity);
+                break;
+            }
+        }
+    }
+
+    private void read(ResultSet rs, int column) throws SQLException {
+        int i = column + 1;
+        switch (this.storage[column]) {
+        case INT:
+            ((int[]) this.values[column])[this.size] = rs.getInt(i);
+            break;
+        case LONG:
+            ((long[]) this.values[column])[this.size] = rs.getLong(i);
+            break;
+        case DOUBLE:
+            ((double[]) this.values[column])[this.size] = rs.getDouble(i);
+            break;
+        case BOOLEAN:
+            ((boolean[]) this.values[column])[this.size] = rs.getBoolean(i);
+            break;
+        case STRING:
+            ((String[]) this.values[column])[this.size] = rs.getString(i);
+            break;
+        case DATE:
+            Date date;
+            if (this.sqltypes[column] == Types.DATE) {
+                date = rs.getDate(i);
+            } else if (this.sqltypes[column] == Types.TIME) {
+                date = rs.getTime(i);
+            } else {
+                date = rs.getTimestamp(i);
+            }
+            if (date != null) {
+                ((long[]) this.values[column])[this.size] = date.getTime();
+                if (date instanceof Timestamp && ((Timestamp) date).getNanos() % 1000000 != 0) {
+                    if (this.nanos[column] == null) {
+                        this.nanos[column] = new int[((long[]) this.values[column]).length];
+                    }
+                    this.nanos[column][this.size] = ((Timestamp) date).getNanos();
+                }
+            }
+            break;
+        default:
+            Object data;
+            if (this.sqltypes[column] == Types.BLOB || this.sqltypes[column] == Types.LONGVARBINARY) {
+                data = rs.getBlob(i);
+            } else if (this.sqltypes[column] == Types.CLOB) {
+                data = rs.getString(i);
+            } else {
+                data = rs.getObject(i);
+            }
+            ((Object[]) this.values[column])[this.size] = data;
+            if (data == null) {
+                this.nulls[column].set(this.size);
+                return;
+            }
+            break;
+        }
+        if (rs.wasNull()) {
+            this.nulls[column].set(this.size);
+        }
+    }
+
+    public String getQuery() {
+        return this.query;
+    }
+
+    public int getColumnCount() {
+        return this.columns;
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public ColumnIndex getColumns() {
+        return this.index;
+    }
+
+    public String getColumnName(int column) {
+        return this.names[column];
+    }
+
+    /**
+     * Returns the index of the first column with the given name, ignoring case.
+     *
+     * @param name  the column name
+     * @return      the column index, or -1 if there is no such column
+     */
+    public int getColumnIndex(String name) {
+        return this.index.indexOf(name);
+    }
+
+    public ColumnarRow getRow(int row) {
+        if (row < 0 || row >= this.size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + this.size);
+        }
+        return new ColumnarRow(this, row);
+    }
+
+    public ColumnarRow getFirstResult() {
+        return this.size > 0 ? getRow(0) : null;
+    }
+
+    public ColumnarRow getLastResult() {
+        return this.size > 0 ? getRow(this.size - 1) : null;
+    }
+
+    @Override
+    public Iterator<ColumnarRow> iterator() {
+        return new Iterator<ColumnarRow>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.next < ColumnarResults.this.size;
+            }
+
+            @Override
+            public ColumnarRow next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return new ColumnarRow(ColumnarResults.this, this.next++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    boolean isNull(int row, int column) {
+        return this.nulls[column].get(row);
+    }
+
+    ValueType getType(int row, int column) {
+        return isNull(row, column) ? ValueType.NULL : this.types[column];
+    }
+
+    String getTable(int column) {
+        return this.tables[column];
+    }
+
+    int getSize(int column) {
+        return this.sizes[column];
+    }
+
+    int getSQLType(int column) {
+        return this.sqltypes[column];
+    }
+
+    Object getValue(int row, int column) {
+        if (isNull(row, column)) {
+            return null;
+        }
+        Object array = this.values[column];
+        String className = this.classNames[column];
+        switch (this.storage[column]) {
+        case INT:
+            int i = ((int[]) array)[row];
+            if ("java.lang.Byte".equals(className)) {
+                return Byte.valueOf((byte) i);
+            } else if ("java.lang.Short".equals(className)) {
+                return Short.valueOf((short) i);
+            }
+            return Integer.valueOf(i);
+        case LONG:
+            return Long.valueOf(((long[]) array)[row]);
+        case DOUBLE:
+            double d = ((double[]) array)[row];
+            if ("java.lang.Float".equals(className)) {
+                return Float.valueOf((float) d);
+            }
+            return Double.valueOf(d);
+        case BOOLEAN:
+            return Boolean.valueOf(((boolean[]) array)[row]);
+        case STRING:
+            return ((String[]) array)[row];
+        case DATE:
+            long millis = ((long[]) array)[row];
+            if (this.sqltypes[column] == Types.DATE) {
+                return new java.sql.Date(millis);
+            } else if (this.sqltypes[column] == Types.TIME) {
+                return new Time(millis);
+            }
+            Timestamp timestamp = new Timestamp(millis);
+            if (this.nanos[column] != null && this.nanos[column][row] != 0) {
+                timestamp.setNanos(this.nanos[column][row]);
+            }
+            return timestamp;
+        default:
+            return ((Object[]) array)[row];
+        }
+    }
+
+    DataField getField(int row, int column) {
+        return new DataField(this.types[column], this.names[column], this.tables[column], this.sizes[column],
+                this.sqltypes[column], this.unsigned[column], getValue(row, column));
+    }
+
+    long getLong(int row, int column) {
+        if (isNull(row, column)) {
+            return 0;
+        }
+        switch (this.storage[column]) {
+        case INT:
+            return ((int[]) this.values[column])[row];
+        case LONG:
+        case DATE:
+            return ((long[]) this.values[column])[row];
+        case DOUBLE:
+            return (long) ((double[]) this.values[column])[row];
+        case BOOLEAN:
+            return ((boolean[]) this.values[column])[row] ? 1 : 0;
+        default:
+            return getField(row, column).getLong();
+        }
+    }
+
+    int getInt(int row, int column) {
+        if (this.storage[column] == INT) {
+            return isNull(row, column) ? 0 : ((int[]) this.values[column])[row];
+        } else if (this.storage[column] == STRING || this.storage[column] == OBJECT) {
+            return getField(row, column).getInt();
+        }
+        return (int) getLong(row, column);
+    }
+
+    double getDouble(int row, int column) {
+        if (isNull(row, column)) {
+            return 0;
+        }
+        switch (this.storage[column]) {
+        case INT:
+            return ((int[]) this.values[column])[row];
+        case LONG:
+        case DATE:
+            return ((long[]) this.values[column])[row];
+        case DOUBLE:
+            return ((double[]) this.values[column])[row];
+        case BOOLEAN:
+            return ((boolean[]) this.values[column])[row] ? 1 : 0;
+        default:
+            return getField(row, column).getDouble();
+        }
+    }
+
+    float getFloat(int row, int column) {
+        if (this.storage[column] == STRING || this.storage[column] == OBJECT) {
+            return getField(row, column).getFloat();
+        }
+        return (float) getDouble(row, column);
+    }
+
+    boolean getBool(int row, int column) {
+        if (isNull(row, column)) {
+            return false;
+        }
+        switch (this.storage[column]) {
+        case INT:
+        case LONG:
+        case DATE:
+        case DOUBLE:
+            return getLong(row, column) != 0;
+        case BOOLEAN:
+            return ((boolean[]) this.values[column])[row];
+        default:
+            return getField(row, column).getBool();
+        }
+    }
+
+    String getString(int row, int column) {
+        if (isNull(row, column)) {
+            return null;
+        }
+        switch (this.storage[column]) {
+        case INT:
+        case LONG:
+        case BOOLEAN:
+        case STRING:
+            return String.valueOf(getValue(row, column));
+        case DOUBLE:
+            double d = ((double[]) this.values[column])[row];
+            return "java.lang.Float".equals(this.classNames[column]) ? Float.toString((float) d) : Double.toString(d);
+        default:
+            return getField(row, column).getString();
+        }
+    }
+
+    byte[] getBytes(int row, int column) {
+        return isNull(row, column) ? null : getField(row, column).getBytes();
+    }
+
+    Blob getBlob(int row, int column) {
+        return isNull(row, column) ? null : getField(row, column).getBlob();
+    }
+
+    Date getDate(int row, int column) {
+        if (isNull(row, column)) {
+            return null;
+        } else if (this.storage[column] == DATE) {
+            return (Date) getValue(row, column);
+        }
+        return getField(row, column).getDate();
+    }
+
+    BigInteger getBigInt(int row, int column) {
+        return isNull(row, column) ? null : getField(row, column).getBigInt();
+    }
+
+    BigDecimal getDecimal(int row, int column) {
+        return isNull(row, column) ? null : getField(row, column).getDecimal();
+    }
+}
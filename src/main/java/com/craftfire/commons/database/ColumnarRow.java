@@ -0,0 +1,206 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Blob;
+import java.util.Date;
+
+import com.craftfire.commons.util.ValueType;
+
+/**
+ * A view of a single row of {@link ColumnarResults}, with the same accessors as {@link DataRow}.
+ */
+public class ColumnarRow {
+    private final ColumnarResults results;
+    private final int row;
+
+    protected ColumnarRow(ColumnarResults results, int row) {
+        this.results = results;
+        this.row = row;
+    }
+
+    public ColumnarResults getResults() {
+        return this.results;
+    }
+
+    public int getRowIndex() {
+        return this.row;
+    }
+
+    public int size() {
+        return this.results.getColumnCount();
+    }
+
+    public DataField get(int column) {
+        return this.results.getField(this.row, column);
+    }
+
+    public DataField get(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? null : get(column);
+    }
+
+    /**
+     * Copies the row into a {@link DataRow}.
+     *
+     * @return the row as a DataRow
+     */
+    public DataRow toDataRow() {
+        DataRow dataRow = new DataRow(this.results.getColumns());
+        for (int i = 0; i < size(); i++) {
+            dataRow.add(get(i));
+        }
+        return dataRow;
+    }
+
+    public int getIntField(int column) {
+        return this.results.getInt(this.row, column);
+    }
+
+    public int getIntField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? 0 : getIntField(column);
+    }
+
+    public long getLongField(int column) {
+        return this.results.getLong(this.row, column);
+    }
+
+    public long getLongField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? 0 : getLongField(column);
+    }
+
+    public double getDoubleField(int column) {
+        return this.results.getDouble(this.row, column);
+    }
+
+    public double getDoubleField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? 0 : getDoubleField(column);
+    }
+
+    public float getFloatField(int column) {
+        return this.results.getFloat(this.row, column);
+    }
+
+    public float getFloatField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? 0 : getFloatField(column);
+    }
+
+    public boolean getBoolField(int column) {
+        return this.results.getBool(this.row, column);
+    }
+
+    public boolean getBoolField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column >= 0 && getBoolField(column);
+    }
+
+    public String getStringField(int column) {
+        return this.results.getString(this.row, column);
+    }
+
+    public String getStringField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? null : getStringField(column);
+    }
+
+    public byte[] getBinaryField(int column) {
+        return this.results.getBytes(this.row, column);
+    }
+
+    public byte[] getBinaryField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? null : getBinaryField(column);
+    }
+
+    public Blob getBlobField(int column) {
+        return this.results.getBlob(this.row, column);
+    }
+
+    public Blob getBlobField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? null : getBlobField(column);
+    }
+
+    public Date getDateField(int column) {
+        return this.results.getDate(this.row, column);
+    }
+
+    public Date getDateField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? null : getDateField(column);
+    }
+
+    public BigInteger getBigIntField(int column) {
+        return this.results.getBigInt(this.row, column);
+    }
+
+    public BigInteger getBigIntField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? null : getBigIntField(column);
+    }
+
+    public BigDecimal getDecimalField(int column) {
+        return this.results.getDecimal(this.row, column);
+    }
+
+    public BigDecimal getDecimalField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? null : getDecimalField(column);
+    }
+
+    public boolean isNullField(int column) {
+        return this.results.isNull(this.row, column);
+    }
+
+    public boolean isNullField(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column >= 0 && isNullField(column);
+    }
+
+    public boolean fieldExist(String fieldName) {
+        return this.results.getColumnIndex(fieldName) >= 0;
+    }
+
+    public ValueType getFieldType(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? null : this.results.getType(this.row, column);
+    }
+
+    public int getFieldSize(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? 0 : this.results.getSize(column);
+    }
+
+    public int getFieldSQLType(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? 0 : this.results.getSQLType(column);
+    }
+
+    public String getTable(String fieldName) {
+        int column = this.results.getColumnIndex(fieldName);
+        return column < 0 ? null : this.results.getTable(column);
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A simple pool of JDBC connections used by {@link DataManager} when pooling is enabled.
+ * <p>
+ * Physical connections are opened through the owning DataManager, so the pool works for every {@link DataType}.
+ */
+public class ConnectionPool {
+    private final DataManager dataManager;
+    private final String url;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = this.lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+    private final Map<Connection, PooledConnection> active = new IdentityHashMap<Connection, PooledConnection>();
+    private int minIdle = 0, maxIdle = 8, maxActive = 8, pending = 0, waiters = 0;
+    private long maxLifetime = 30 * 60 * 1000, borrowTimeout = 30 * 1000, validationInterval = 5000;
+    private String validationQuery = null;
+    private boolean closed = false;
+    private final AtomicLong borrowCount = new AtomicLong(), borrowTime = new AtomicLong(), maxBorrowTime = new AtomicLong(),
+            timeouts = new AtomicLong(), created = new AtomicLong(), destroyed = new AtomicLong();
+
+    public ConnectionPool(DataManager dataManager) {
+        this(dataManager, null);
+    }
+
+    /**
+     * Creates a new pool opening connections to the given URL.
+     *
+     * @param dataManager  the DataManager used to open physical connections
+     * @param url          the JDBC URL to connect to, or {@code null} to use the DataManager's URL
+     */
+    public ConnectionPool(DataManager dataManager, String url) {
+        if (dataManager == null) {
+            throw new IllegalArgumentException("Parameter 'dataManager' cannot be null.");
+        }
+        this.dataManager = dataManager;
+        this.url = url;
+    }
+
+    public int getMinIdle() {
+        return this.minIdle;
+    }
+
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    public int getMaxIdle() {
+        return this.maxIdle;
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    public int getMaxActive() {
+        return this.maxActive;
+    }
+
+    public void setMaxActive(int maxActive) {
+        if (maxActive < 1) {
+            throw new IllegalArgumentException("Parameter 'maxActive' must be at least 1.");
+        }
+        this.maxActive = maxActive;
+    }
+
+    public long getMaxLifetime() {
+        return this.maxLifetime;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a physical connection is kept open, 0 means forever.
+     *
+     * @param maxLifetime  the lifetime in milliseconds
+     */
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public long getBorrowTimeout() {
+        return this.borrowTimeout;
+    }
+
+    /**
+     * Sets how long in milliseconds {@link #borrow()} waits for a free connection, 0 means forever.
+     *
+     * @param borrowTimeout  the timeout in milliseconds
+     */
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public String getValidationQuery() {
+        return this.validationQuery;
+    }
+
+    /**
+     * Sets the query used to validate idle connections, {@code null} uses {@link Connection#isValid(int)}.
+     *
+     * @param validationQuery  the validation query
+     */
+    public void setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    public long getValidationInterval() {
+        return this.validationInterval;
+    }
+
+    /**
+     * Sets how long in milliseconds a connection may stay idle before it is validated on borrow.
+     *
+     * @param validationInterval  the interval in milliseconds
+     */
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    public String getURL() {
+        return this.url;
+    }
+
+    public int getActiveCount() {
+        this.lock.lock();
+        try {
+            return this.active.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getIdleCount() {
+        this.lock.lock();
+        try {
+            return this.idle.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getWaitersCount() {
+        this.lock.lock();
+        try {
+            return this.waiters;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long getBorrowCount() {
+        return this.borrowCount.get();
+    }
+
+    /**
+     * Returns the average time a {@link #borrow()} call took, in nanoseconds.
+     *
+     * @return the average borrow latency in nanoseconds
+     */
+    public long getAverageBorrowTime() {
+        long count = this.borrowCount.get();
+        return count == 0 ? 0 : this.borrowTime.get() / count;
+    }
+
+    /**
+     * Returns the longest time a {@link #borrow()} call took, in nanoseconds.
+     *
+     * @return the maximum borrow latency in nanoseconds
+     */
+    public long getMaxBorrowTime() {
+        return this.maxBorrowTime.get();
+    }
+
+    public long getTimeoutsCount() {
+        return this.timeouts.get();
+    }
+
+    public long getCreatedCount() {
+        return this.created.get();
+    }
+
+    public long getDestroyedCount() {
+        return this.destroyed.get();
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Opens connections until the pool holds at least {@link #getMinIdle()} idle connections.
+     */
+    public void fill() {
+        while (true) {
+            this.lock.lock();
+            try {
+                if (this.closed || this.idle.size() + this.pending >= this.minIdle
+                        || this.idle.size() + this.active.size() + this.pending >= this.maxActive) {
+                    return;
+                }
+                this.pending++;
+            } finally {
+                this.lock.unlock();
+            }
+            PooledConnection pooled = null;
+            try {
+                pooled = open();
+            } catch (SQLException e) {
+                this.dataManager.getLogger().error("Could not fill the connection pool: " + e.getMessage());
+            }
+            this.lock.lock();
+            try {
+                this.pending--;
+                if (pooled == null) {
+                    return;
+                }
+                this.idle.push(pooled);
+                this.available.signal();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool, opening a new one if there is no idle connection and the pool is not full.
+     *
+     * @return              a connection, which must be given back with {@link #release(Connection)}
+     * @throws SQLException if no connection could be opened or the borrow timeout elapsed
+     */
+    public Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = this.borrowTimeout > 0 ? start + TimeUnit.MILLISECONDS.toNanos(this.borrowTimeout) : 0;
+        while (true) {
+            PooledConnection pooled = null;
+            boolean create = false;
+            this.lock.lock();
+            try {
+                while (true) {
+                    if (this.closed) {
+                        throw new SQLException("The connection pool is closed");
+                    }
+                    pooled = this.idle.poll();
+                    if (pooled != null) {
+                        break;
+                    }
+                    if (this.active.size() + this.pending < this.maxActive) {
+                        this.pending++;
+                        create = true;
+                        break;
+                    }
+                    this.waiters++;
+                    try {
+                        if (deadline == 0) {
+                            this.available.await();
+                        } else {
+                            long left = deadline - System.nanoTime();
+                            if (left <= 0) {
+                                this.timeouts.incrementAndGet();
+                                throw new SQLException("Timed out after " + this.borrowTimeout + " ms waiting for a connection");
+                            }
+                            this.available.awaitNanos(left);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection", e);
+                    } finally {
+                        this.waiters--;
+                    }
+                }
+            } finally {
+                this.lock.unlock();
+            }
+            if (create) {
+                try {
+                    pooled = open();
+                } finally {
+                    this.lock.lock();
+                    try {
+                        this.pending--;
+                        if (pooled != null) {
+                            this.active.put(pooled.connection, pooled);
+                        } else {
+                            this.available.signal();
+                        }
+                    } finally {
+                        this.lock.unlock();
+                    }
+                }
+            } else if (isUsable(pooled)) {
+                this.lock.lock();
+                try {
+                    this.active.put(pooled.connection, pooled);
+                } finally {
+                    this.lock.unlock();
+                }
+            } else {
+                destroy(pooled);
+                this.lock.lock();
+                try {
+                    this.available.signal();
+                } finally {
+                    this.lock.unlock();
+                }
+                continue;
+            }
+            long took = System.nanoTime() - start;
+            this.borrowCount.incrementAndGet();
+            this.borrowTime.addAndGet(took);
+            long max;
+            while (took > (max = this.maxBorrowTime.get()) && !this.maxBorrowTime.compareAndSet(max, took)) {
+                continue;
+            }
+            return pooled.connection;
+        }
+    }
+
+    /**
+     * Gives a borrowed connection back to the pool.
+     *
+     * @param connection  the connection returned by {@link #borrow()}
+     */
+    public void release(Connection connection) {
+        release(connection, false);
+    }
+
+    /**
+     * Removes a borrowed connection from the pool and closes it.
+     *
+     * @param connection  the connection returned by {@link #borrow()}
+     */
+    public void invalidate(Connection connection) {
+        release(connection, true);
+    }
+
+    protected void release(Connection connection, boolean invalidate) {
+        if (connection == null) {
+            return;
+        }
+        PooledConnection pooled;
+        boolean keep = !invalidate && reset(connection);
+        this.lock.lock();
+        try {
+            pooled = this.active.remove(connection);
+            if (pooled == null) {
+                return;
+            }
+            keep = keep && !this.closed && this.idle.size() < this.maxIdle && !isExpired(pooled);
+            if (keep) {
+                pooled.lastUsed = System.currentTimeMillis();
+                this.idle.push(pooled);
+            }
+            this.available.signal();
+        } finally {
+            this.lock.unlock();
+        }
+        if (!keep) {
+            destroy(pooled);
+            fill();
+        }
+    }
+
+    /**
+     * Closes all idle connections and refuses further borrows; borrowed connections are closed when released.
+     */
+    public void close() {
+        List<PooledConnection> toClose;
+        this.lock.lock();
+        try {
+            this.closed = true;
+            toClose = new ArrayList<PooledConnection>(this.idle);
+            this.idle.clear();
+            this.available.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        for (PooledConnection pooled : toClose) {
+            destroy(pooled);
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = this.dataManager.newConnection(this.url);
+        this.created.incrementAndGet();
+        return new PooledConnection(connection);
+    }
+
+    private void destroy(PooledConnection pooled) {
+        this.destroyed.incrementAndGet();
+        this.dataManager.connectionClosed(pooled.connection);
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            this.dataManager.getLogger().debug("Could not close pooled connection: " + e.getMessage());
+        }
+    }
+
+    private boolean isExpired(PooledConnection pooled) {
+        return this.maxLifetime > 0 && System.currentTimeMillis() - pooled.created >= this.maxLifetime;
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        if (isExpired(pooled)) {
+            return false;
+        }
+        if (System.currentTimeMillis() - pooled.lastUsed < this.validationInterval) {
+            return true;
+        }
+        try {
+            if (pooled.connection.isClosed()) {
+                return false;
+            }
+            if (this.validationQuery == null) {
+                return pooled.connection.isValid(5);
+            }
+            Statement statement = pooled.connection.createStatement();
+            try {
+                statement.execute(this.validationQuery);
+            } finally {
+                statement.close();
+            }
+            return true;
+        } catch (SQLException e) {
+            this.dataManager.getLogger().debug("Pooled connection failed validation: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean reset(Connection connection) {
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static class PooledConnection {
+        private final Connection connection;
+        private final long created;
+        private long lastUsed;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.created = System.currentTimeMillis();
+            this.lastUsed = this.created;
+        }
+    }
+}
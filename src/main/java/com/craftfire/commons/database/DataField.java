@@ -19,6 +19,8 @@
  */
 package com.craftfire.commons.database;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.sql.Blob;
@@ -40,11 +42,11 @@ public class DataField extends AbstractValueHolder {
 
     public DataField(int column, ResultSetMetaData metaData, Object data) throws SQLException {
         this.size = metaData.getColumnDisplaySize(column);
+        this.sqltype = metaData.getColumnType(column);
         ValueType vtype = sqlTypeParse(this.sqltype, this.size, data);
         String name = metaData.getColumnLabel(column);
         boolean unsigned = metaData.getColumnTypeName(column).contains("UNSIGNED");
         this.holder = new ValueHolderBase(vtype, name, unsigned, data);
-        this.sqltype = metaData.getColumnType(column);
         this.table = metaData.getTableName(column);
     }
 
@@ -65,8 +67,13 @@ public class DataField extends AbstractValueHolder {
 
     public DataField(ValueType type, String name, String table, int size,
             boolean unsigned, Object data) {
+        this(type, name, table, size, Types.NULL, unsigned, data);
+    }
+
+    public DataField(ValueType type, String name, String table, int size,
+            int sqltype, boolean unsigned, Object data) {
         this.holder = new ValueHolderBase(type, name, unsigned, data);
-        this.sqltype = Types.NULL;
+        this.sqltype = sqltype;
         this.table = table;
         this.size = size;
     }
@@ -91,6 +98,30 @@ public class DataField extends AbstractValueHolder {
         this.size = size;
     }
 
+    /**
+     * Reads a column of the current row, using metadata resolved beforehand instead of querying the driver.
+     *
+     * @param  column        the column, starting at 1
+     * @param  resultset     the result set, positioned on a row
+     * @param  metadata      the metadata of the result set
+     * @throws SQLException  if a database error occurs
+     */
+    public DataField(int column, ResultSet resultset, ResultMetadata metadata) throws SQLException {
+        this.sqltype = metadata.getSQLType(column);
+        Object data;
+        if (this.sqltype == Types.BLOB || this.sqltype == Types.LONGVARBINARY) {
+            data = resultset.getBlob(column);
+        } else if (this.sqltype == Types.CLOB) {
+            data = resultset.getString(column);
+        } else {
+            data = resultset.getObject(column);
+        }
+        ValueType vtype = data == null || resultset.wasNull() ? ValueType.NULL : metadata.getType(column);
+        this.holder = new ValueHolderBase(vtype, metadata.getName(column), metadata.isUnsigned(column), data);
+        this.table = metadata.getTable(column);
+        this.size = metadata.getSize(column);
+    }
+
     private static ValueType sqlTypeParse(int sqltype, int size, Object data, boolean wasNull) {
         if (wasNull) {
             return ValueType.NULL;
@@ -102,6 +133,17 @@ public class DataField extends AbstractValueHolder {
         if (data == null) {
             return ValueType.NULL;
         }
+        return sqlTypeParse(sqltype, size);
+    }
+
+    /**
+     * Returns the ValueType used for non-null values of a column.
+     *
+     * @param sqltype  the SQL type of the column, see {@link Types}
+     * @param size     the display size of the column
+     * @return         the ValueType
+     */
+    static ValueType sqlTypeParse(int sqltype, int size) {
         switch (sqltype) {
         case Types.CHAR:
         case Types.VARCHAR:
@@ -142,11 +184,46 @@ public class DataField extends AbstractValueHolder {
         case Types.NULL:
             return ValueType.NULL;
         default:
-            // TODO: DataManager.getLogManager().warning("Unknown SQL type: " + sqltype + " Field data:" + data.toString());
+            // TODO: DataManager.getLogManager().warning("Unknown SQL type: " + sqltype);
             return ValueType.UNKNOWN;
         }
     }
 
+    /**
+     * Returns a stream reading the binary value of the field. For BLOBs the data is read from the
+     * {@link Blob} as the stream is consumed, instead of being copied into a byte array.
+     *
+     * @return               the stream, or null if the field has no binary value
+     * @throws SQLException  if the BLOB could not be read
+     */
+    public InputStream getBinaryStream() throws SQLException {
+        Object value = getValue();
+        if (value instanceof Blob) {
+            return ((Blob) value).getBinaryStream();
+        } else if (value instanceof byte[]) {
+            return new ByteArrayInputStream((byte[]) value);
+        }
+        byte[] bytes = getBytes();
+        return bytes == null ? null : new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * Returns the length of the binary value of the field, without reading a BLOB's data.
+     *
+     * @return               the length in bytes, or -1 if the field has no binary value
+     * @throws SQLException  if the BLOB length could not be read
+     */
+    public long getBinaryLength() throws SQLException {
+        Object value = getValue();
+        if (value instanceof Blob) {
+            return ((Blob) value).length();
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        byte[] bytes = getBytes();
+        return bytes == null ? -1 : bytes.length;
+    }
+
     public int getSQLType() {
         return this.sqltype;
     }
@@ -19,8 +19,22 @@
  */
 package com.craftfire.commons.database;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.Driver;
@@ -29,17 +43,41 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableModel;
@@ -49,18 +87,63 @@ import com.craftfire.commons.util.ValueType;
 import com.craftfire.commons.util.LoggingManager;
 
 public class DataManager {
-    private boolean keepAlive, reconnect;
-    private String host, username, password, database, prefix = "", lastQuery,
-            directory;
+    private static final int MAX_PARAMETERS = 65535, DEFAULT_FETCH_SIZE = 1000;
+    private static final int EXPORT_BUFFER_SIZE = 65536, EXPORT_PROGRESS_ROWS = 10000;
+    private static final Pattern READ_ONLY = Pattern.compile("\\s*SELECT\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LOCKING_READ = Pattern.compile("\\bFOR\\s+UPDATE\\b|\\bLOCK\\s+IN\\s+SHARE\\s+MODE\\b",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern DDL = Pattern.compile("\\s*(?:ALTER|CREATE|DROP|RENAME)\\b", Pattern.CASE_INSENSITIVE);
+    private boolean keepAlive, reconnect, rewriteBatchedInserts;
+    private volatile boolean pooled;
+    private String host, username, password, database, prefix = "", directory;
+    private volatile String lastQuery;
     private String url = null;
-    private Map<Long, String> queries = new HashMap<Long, String>();
+    private volatile QueryLog queryLog = new QueryLog(100, 1000);
+    private volatile long slowQueryThreshold = 0;
+    private volatile QueryCache queryCache = null;
+    private final Map<String, ResultMetadata> metadataCache = new LinkedHashMap<String, ResultMetadata>(16, 0.75f, true);
+    private int metadataCacheSize = 256;
+    private final List<Replica> replicas = new CopyOnWriteArrayList<Replica>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private volatile ReplicaSelection replicaSelection = ReplicaSelection.ROUND_ROBIN;
+    private volatile long readYourWritesWindow = 1000, replicaDownTime = 30000, lastWrite = 0;
     private long startup;
-    private int timeout = 0, port = 3306, queriesCount = 0;
-    private Connection con = null;
+    private int timeout = 0, port = 3306, users = 0;
+    private final AtomicInteger queriesCount = new AtomicInteger();
+    private final AtomicLong statementCacheHits = new AtomicLong(), statementCacheMisses = new AtomicLong();
+    private final Map<Connection, StatementCache> statementCaches = new IdentityHashMap<Connection, StatementCache>();
+    private int statementCacheSize = 32, batchSize = 1000, asyncThreads = 4, asyncQueueSize = 1000;
+    private ExecutorService executor = null;
+    private volatile Connection con = null;
+    private volatile ConnectionPool pool = null;
+    private volatile ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    private volatile CircuitBreaker circuitBreaker = null;
+    private final CircuitBreakerListener circuitLogger = new CircuitBreakerListener() {
+        @Override
+        public void stateChanged(CircuitBreaker breaker, CircuitState from, CircuitState to, Throwable cause) {
+            switch (to) {
+                case OPEN:
+                    getLogger().error("The database for '" + DataManager.this.datatype + "' is unavailable"
+                            + (cause == null ? "" : " (" + cause.getMessage() + ")") + ", failing fast for "
+                            + breaker.getOpenTime() + " ms.");
+                    break;
+                case HALF_OPEN:
+                    getLogger().debug("Checking whether the database for '" + DataManager.this.datatype + "' is available again.");
+                    break;
+                default:
+                    getLogger().info("The database for '" + DataManager.this.datatype + "' is available again.");
+            }
+        }
+    };
     private final DataType datatype;
-    private PreparedStatement pStmt = null;
-    private Statement stmt = null;
-    private ResultSet rs = null;
+    private final Object lock = new Object();
+    private final ThreadLocal<Transaction> transactions = new ThreadLocal<Transaction>();
+    private final ThreadLocal<List<OpenResult>> openResults = new ThreadLocal<List<OpenResult>>() {
+        @Override
+        protected List<OpenResult> initialValue() {
+            return new ArrayList<OpenResult>();
+        }
+    };
     private LoggingManager loggingManager = new LoggingManager("CraftFire.DataManager", "[DataManager]");
 
     public DataManager(String username, String password) {
@@ -71,6 +154,7 @@ public class DataManager {
         this.datatype = type;
         this.username = username;
         this.password = password;
+        setCircuitBreaker(new CircuitBreaker());
         if (!getLogger().isLogging()) {
             getLogger().setDirectory(this.directory);
             getLogger().setLogging(true);
@@ -106,6 +190,32 @@ public class DataManager {
         }
     }
 
+    public boolean isPooled() {
+        return this.pooled;
+    }
+
+    public void setPooled(boolean pooled) {
+        if (this.pooled == pooled) {
+            return;
+        }
+        close(true);
+        if (!pooled && this.pool != null) {
+            this.pool.close();
+            this.pool = null;
+        }
+        this.pooled = pooled;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        synchronized (this.lock) {
+            if (this.pooled && this.pool == null) {
+                this.pool = new ConnectionPool(this);
+                this.startup = System.currentTimeMillis() / 1000;
+            }
+            return this.pool;
+        }
+    }
+
     public int getTimeout() {
         return this.timeout;
     }
@@ -188,11 +298,320 @@ public class DataManager {
     }
 
     public int getQueriesCount() {
-        return this.queriesCount;
+        return this.queriesCount.get();
     }
 
+    public int getStatementCacheSize() {
+        return this.statementCacheSize;
+    }
+
+    /**
+     * Sets how many idle prepared statements are cached per connection, 0 disables the cache.
+     *
+     * @param statementCacheSize  the number of statements to cache per connection
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+        List<StatementCache> caches;
+        synchronized (this.statementCaches) {
+            caches = new ArrayList<StatementCache>(this.statementCaches.values());
+            this.statementCaches.clear();
+        }
+        for (StatementCache cache : caches) {
+            cache.clear();
+        }
+    }
+
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * Sets how many rows the batch methods send and commit at once.
+     *
+     * @param batchSize  the number of rows per batch
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Parameter 'batchSize' must be at least 1.");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public boolean isRewriteBatchedInserts() {
+        return this.rewriteBatchedInserts;
+    }
+
+    /**
+     * Sets whether {@link #insertBatch(Iterator, String)} sends each batch as one multi-row INSERT on MySQL.
+     *
+     * @param rewriteBatchedInserts  true to rewrite batched inserts
+     */
+    public void setRewriteBatchedInserts(boolean rewriteBatchedInserts) {
+        this.rewriteBatchedInserts = rewriteBatchedInserts;
+    }
+
+    public int getAsyncThreads() {
+        return this.asyncThreads;
+    }
+
+    /**
+     * Sets how many threads the default executor uses for asynchronous queries.
+     * Has no effect once the executor was created.
+     *
+     * @param asyncThreads  the number of threads
+     */
+    public void setAsyncThreads(int asyncThreads) {
+        if (asyncThreads < 1) {
+            throw new IllegalArgumentException("Parameter 'asyncThreads' must be at least 1.");
+        }
+        this.asyncThreads = asyncThreads;
+    }
+
+    public int getAsyncQueueSize() {
+        return this.asyncQueueSize;
+    }
+
+    /**
+     * Sets how many asynchronous queries the default executor queues before rejecting new ones.
+     * Has no effect once the executor was created.
+     *
+     * @param asyncQueueSize  the maximum number of waiting queries
+     */
+    public void setAsyncQueueSize(int asyncQueueSize) {
+        if (asyncQueueSize < 1) {
+            throw new IllegalArgumentException("Parameter 'asyncQueueSize' must be at least 1.");
+        }
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+    /**
+     * Returns the executor running asynchronous queries, creating a bounded pool of
+     * {@link #getAsyncThreads()} daemon threads if none was set.
+     *
+     * @return the executor
+     */
+    public ExecutorService getExecutor() {
+        synchronized (this.lock) {
+            if (this.executor == null) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(this.asyncThreads, this.asyncThreads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(this.asyncQueueSize), new ThreadFactory() {
+                            private final AtomicInteger threads = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                Thread thread = new Thread(runnable, "DataManager-async-" + this.threads.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+                executor.allowCoreThreadTimeOut(true);
+                this.executor = executor;
+            }
+            return this.executor;
+        }
+    }
+
+    /**
+     * Sets the executor running asynchronous queries. The DataManager doesn't shut down executors set this way.
+     *
+     * @param executor  the executor, or null to use the default one
+     */
+    public void setExecutor(ExecutorService executor) {
+        synchronized (this.lock) {
+            this.executor = executor;
+        }
+    }
+
+    public long getStatementCacheHits() {
+        return this.statementCacheHits.get();
+    }
+
+    public long getStatementCacheMisses() {
+        return this.statementCacheMisses.get();
+    }
+
+    /**
+     * Returns the most recently executed queries, oldest first, keyed by their sequence number.
+     *
+     * @return the recent queries
+     */
     public Map<Long, String> getQueries() {
-        return this.queries;
+        return this.queryLog.getRecent();
+    }
+
+    public QueryLog getQueryLog() {
+        return this.queryLog;
+    }
+
+    /**
+     * Sets the log recording the recent queries and the latency statistics of each query shape.
+     *
+     * @param queryLog  the query log
+     */
+    public void setQueryLog(QueryLog queryLog) {
+        if (queryLog == null) {
+            throw new IllegalArgumentException("Parameter 'queryLog' cannot be null.");
+        }
+        this.queryLog = queryLog;
+    }
+
+    public QueryCache getQueryCache() {
+        return this.queryCache;
+    }
+
+    /**
+     * Sets the cache for the results of {@link #query(String, Object...)}, {@link #queryField(ValueType, String, Object...)}
+     * and the methods using them. Cached results are shared between callers, so they must not be modified.
+     * <p>
+     * Queries inside a transaction bypass the cache.
+     *
+     * @param queryCache  the cache, or null to disable caching
+     */
+    public void setQueryCache(QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    public int getMetadataCacheSize() {
+        return this.metadataCacheSize;
+    }
+
+    /**
+     * Sets for how many distinct queries the resolved column metadata is cached, 0 disables the cache.
+     *
+     * @param metadataCacheSize  the number of queries
+     */
+    public void setMetadataCacheSize(int metadataCacheSize) {
+        synchronized (this.metadataCache) {
+            this.metadataCacheSize = metadataCacheSize;
+            this.metadataCache.clear();
+        }
+    }
+
+    public void clearMetadataCache() {
+        synchronized (this.metadataCache) {
+            this.metadataCache.clear();
+        }
+    }
+
+    /**
+     * Adds a read replica of the database, on another MySQL host or in another H2 directory.
+     * The replica uses the database name and credentials of this DataManager.
+     *
+     * @param  host  the MySQL host, or the H2 directory
+     * @return       the replica
+     */
+    public Replica addReplica(String host) {
+        return addReplicaURL(buildURL(host));
+    }
+
+    /**
+     * Adds a read replica of the database by its JDBC URL.
+     *
+     * @param  url  the JDBC URL of the replica
+     * @return      the replica
+     */
+    public Replica addReplicaURL(String url) {
+        Replica replica = new Replica(this, url);
+        this.replicas.add(replica);
+        return replica;
+    }
+
+    public List<Replica> getReplicas() {
+        return Collections.unmodifiableList(this.replicas);
+    }
+
+    /**
+     * Removes all replicas and closes their connections, so all queries go to the primary database again.
+     */
+    public void clearReplicas() {
+        List<Replica> removed = new ArrayList<Replica>(this.replicas);
+        this.replicas.clear();
+        for (Replica replica : removed) {
+            replica.getConnectionPool().close();
+        }
+    }
+
+    public ReplicaSelection getReplicaSelection() {
+        return this.replicaSelection;
+    }
+
+    public void setReplicaSelection(ReplicaSelection replicaSelection) {
+        this.replicaSelection = replicaSelection;
+    }
+
+    public long getReadYourWritesWindow() {
+        return this.readYourWritesWindow;
+    }
+
+    /**
+     * Sets for how long after a write all reads go to the primary database, so they see the write even if
+     * the replicas lag behind.
+     *
+     * @param millis  the window in milliseconds
+     */
+    public void setReadYourWritesWindow(long millis) {
+        this.readYourWritesWindow = millis;
+    }
+
+    public long getReplicaDownTime() {
+        return this.replicaDownTime;
+    }
+
+    /**
+     * Sets for how long a replica is skipped after a connection to it failed.
+     *
+     * @param millis  the time in milliseconds
+     */
+    public void setReplicaDownTime(long millis) {
+        this.replicaDownTime = millis;
+    }
+
+    public ReconnectPolicy getReconnectPolicy() {
+        return this.reconnectPolicy;
+    }
+
+    /**
+     * Sets how connections to the database are retried, {@code null} disables retrying.
+     *
+     * @param reconnectPolicy  the policy
+     */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Sets the circuit breaker guarding connections to the database, {@code null} disables it.
+     * Its state changes are logged by this DataManager.
+     *
+     * @param circuitBreaker  the circuit breaker
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        CircuitBreaker old = this.circuitBreaker;
+        if (old != null) {
+            old.removeListener(this.circuitLogger);
+        }
+        if (circuitBreaker != null) {
+            circuitBreaker.addListener(this.circuitLogger);
+        }
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public long getSlowQueryThreshold() {
+        return this.slowQueryThreshold;
+    }
+
+    /**
+     * Sets how long a query may take before it is logged as a warning, 0 disables slow query logging.
+     *
+     * @param millis  the threshold in milliseconds
+     */
+    public void setSlowQueryThreshold(long millis) {
+        this.slowQueryThreshold = millis;
     }
 
     public String getLastQuery() {
@@ -203,6 +622,11 @@ public class DataManager {
         return this.datatype;
     }
 
+    /**
+     * Returns the shared connection used when pooling is disabled.
+     *
+     * @return the shared connection, or {@code null} if not connected or pooled
+     */
     public Connection getConnection() {
         return this.con;
     }
@@ -214,12 +638,7 @@ public class DataManager {
                     getLogger().debug("Could not set mySQL URL. Host: " + this.host + ", Database: " + this.database);
                     return false;
                 }
-                this.url = "jdbc:mysql://" + this.host + "/" + this.database
-                        + "?zeroDateTimeBehavior=convertToNull"
-                        + "&jdbcCompliantTruncation=false"
-                        + "&autoReconnect=true"
-                        + "&characterEncoding=UTF-8"
-                        + "&characterSetResults=UTF-8";
+                this.url = buildURL(this.host);
                 outputDrivers();
                 return true;
             case H2:
@@ -227,18 +646,39 @@ public class DataManager {
                     getLogger().debug("Could not set H2 URL. Host: " + this.directory + ", Database: " + this.database);
                     return false;
                 }
-                this.url = "jdbc:h2:" + this.directory + this.database + ";AUTO_RECONNECT=TRUE";
+                this.url = buildURL(this.directory);
                 outputDrivers();
                 return true;
         }
         return false;
     }
 
+    /**
+     * Builds the JDBC URL of the database on another host, or in another directory for H2.
+     *
+     * @param  host  the MySQL host, or the H2 directory
+     * @return       the URL
+     */
+    protected String buildURL(String host) {
+        switch (this.datatype) {
+            case MYSQL:
+                return "jdbc:mysql://" + host + "/" + this.database
+                        + "?zeroDateTimeBehavior=convertToNull"
+                        + "&jdbcCompliantTruncation=false"
+                        + "&autoReconnect=true"
+                        + "&characterEncoding=UTF-8"
+                        + "&characterSetResults=UTF-8";
+            case H2:
+                return "jdbc:h2:" + host + this.database + ";AUTO_RECONNECT=TRUE";
+        }
+        return null;
+    }
+
     public boolean exist(String table, String field, Object value) {
         try {
-            return getField(ValueType.STRING, "SELECT `" + field + "` " +
+            return queryField(ValueType.STRING, "SELECT `" + field + "` " +
                     "FROM `" + getPrefix() + table + "` " +
-                    "WHERE `" + field + "` = '" + value + "' " + "LIMIT 1") != null;
+                    "WHERE `" + field + "` = ? " + "LIMIT 1", value) != null;
         } catch (SQLException e) {
             return false;
         }
@@ -503,51 +943,296 @@ public class DataManager {
     }
 
     public DataField getField(ValueType type, String query) throws SQLException {
-        try {
-            this.rs = getResultSet(query);
-            if (this.rs.next()) {
-                Object value;
-                if (type.equals(ValueType.STRING)) {
-                    value = this.rs.getString(1);
-                } else if (type.equals(ValueType.INTEGER)) {
-                    value = this.rs.getInt(1);
-                } else if (type.equals(ValueType.DATE)) {
-                    value = this.rs.getTimestamp(1);
-                } else if (type.equals(ValueType.BLOB)) {
-                    value = this.rs.getBlob(1);
-                } else if (type.equals(ValueType.BINARY)) {
-                    value = this.rs.getBytes(1);
-                } else if (type.equals(ValueType.BOOLEAN)) {
-                    value = this.rs.getBoolean(1);
-                } else if (type.equals(ValueType.REAL)) {
-                    value = this.rs.getDouble(1);
-                } else if (type.equals(ValueType.UNKNOWN)) {
-                    DataField dataField = new DataField(1, this.rs);
-                    close();
-                    return dataField;
-                } else {
-                    close();
-                    return null;
+        return queryField(type, query);
+    }
+
+    /**
+     * Executes a parameterized query and returns the first column of the first row.
+     *
+     * @param  type          the type to read the column as, {@link ValueType#UNKNOWN} to detect it
+     * @param  sql           the query, with {@code ?} placeholders for the parameters
+     * @param  params        the parameters
+     * @return               the field, or {@code null} if the query returned no rows
+     * @throws SQLException  if a database error occurs
+     */
+    public DataField queryField(final ValueType type, String sql, Object... params) throws SQLException {
+        return cachedQuery("field:" + type, sql, params, new ResultHandler<DataField>() {
+            @Override
+            public DataField handle(ResultSet resultSet, ResultMetadata metadata) throws SQLException {
+                if (resultSet.next()) {
+                    return readField(type, resultSet, metadata);
                 }
-                DataField dataField = new DataField(type, this.rs.getMetaData().getColumnDisplaySize(1), value);
-                close();
-                return dataField;
+                return null;
             }
-        } finally {
-            close();
+        });
+    }
+
+    private DataField readField(ValueType type, ResultSet resultSet, ResultMetadata metadata) throws SQLException {
+        Object value;
+        if (type.equals(ValueType.STRING)) {
+            value = resultSet.getString(1);
+        } else if (type.equals(ValueType.INTEGER)) {
+            value = resultSet.getInt(1);
+        } else if (type.equals(ValueType.DATE)) {
+            value = resultSet.getTimestamp(1);
+        } else if (type.equals(ValueType.BLOB)) {
+            value = resultSet.getBlob(1);
+        } else if (type.equals(ValueType.BINARY)) {
+            value = resultSet.getBytes(1);
+        } else if (type.equals(ValueType.BOOLEAN)) {
+            value = resultSet.getBoolean(1);
+        } else if (type.equals(ValueType.REAL)) {
+            value = resultSet.getDouble(1);
+        } else if (type.equals(ValueType.UNKNOWN)) {
+            return new DataField(1, resultSet, metadata);
+        } else {
+            return null;
         }
-        return null;
+        return new DataField(type, metadata.getSize(1), value);
     }
 
     public void executeQuery(String query) throws SQLException {
-        connect();
-        log(query);
-        if (this.con == null) {
-            throw new SQLException("Unable to connect to the database");
+        update(query);
+    }
+
+    /**
+     * Executes a parameterized query and returns its results.
+     *
+     * @param  sql           the query, with {@code ?} placeholders for the parameters
+     * @param  params        the parameters
+     * @return               the results
+     * @throws SQLException  if a database error occurs
+     */
+    public Results query(final String sql, Object... params) throws SQLException {
+        return cachedQuery("results", sql, params, new ResultHandler<Results>() {
+            @Override
+            public Results handle(ResultSet resultSet, ResultMetadata metadata) throws SQLException {
+                return new Results(sql, resultSet, metadata);
+            }
+        });
+    }
+
+    /**
+     * Executes a parameterized query and returns its results stored column by column in primitive arrays.
+     *
+     * @param  sql           the query, with {@code ?} placeholders for the parameters
+     * @param  params        the parameters
+     * @return               the results
+     * @throws SQLException  if a database error occurs
+     */
+    public ColumnarResults getColumnarResults(final String sql, Object... params) throws SQLException {
+        return cachedQuery("columnar", sql, params, new ResultHandler<ColumnarResults>() {
+            @Override
+            public ColumnarResults handle(ResultSet resultSet, ResultMetadata metadata) throws SQLException {
+                return new ColumnarResults(sql, resultSet, metadata);
+            }
+        });
+    }
+
+    /**
+     * Executes a parameterized query and maps each row to an object. Mapped objects are never taken from the
+     * query cache, since they may be modified by the caller.
+     *
+     * @param  mapper        the mapper
+     * @param  sql           the query, with {@code ?} placeholders for the parameters
+     * @param  params        the parameters
+     * @return               the mapped objects
+     * @throws SQLException  if a database error occurs
+     */
+    public <T> List<T> getObjects(final RowMapper<T> mapper, String sql, Object... params) throws SQLException {
+        return query(sql, params, new ResultHandler<List<T>>() {
+            @Override
+            public List<T> handle(ResultSet resultSet, ResultMetadata metadata) throws SQLException {
+                return mapper.mapAll(resultSet, metadata);
+            }
+        });
+    }
+
+    public <T> List<T> getObjects(Class<T> type, String sql, Object... params) throws SQLException {
+        return getObjects(RowMapper.of(type), sql, params);
+    }
+
+    /**
+     * Executes a parameterized query and maps its first row to an object.
+     *
+     * @param  mapper        the mapper
+     * @param  sql           the query, with {@code ?} placeholders for the parameters
+     * @param  params        the parameters
+     * @return               the mapped object, or null if the query returned no rows
+     * @throws SQLException  if a database error occurs
+     */
+    public <T> T getObject(final RowMapper<T> mapper, String sql, Object... params) throws SQLException {
+        return query(sql, params, new ResultHandler<T>() {
+            @Override
+            public T handle(ResultSet resultSet, ResultMetadata metadata) throws SQLException {
+                return resultSet.next() ? mapper.map(resultSet, metadata) : null;
+            }
+        });
+    }
+
+    public <T> T getObject(Class<T> type, String sql, Object... params) throws SQLException {
+        return getObject(RowMapper.of(type), sql, params);
+    }
+
+    /**
+     * Executes a query through the query cache, if one is set and no transaction is active.
+     *
+     * @param  kind          identifies the handler, since the same query can be read in different ways
+     * @param  sql           the query
+     * @param  params        the parameters
+     * @param  handler       the handler reading the results
+     * @return               the result of the handler, possibly from the cache
+     * @throws SQLException  if a database error occurs
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> T cachedQuery(String kind, String sql, Object[] params, ResultHandler<T> handler) throws SQLException {
+        QueryCache cache = this.queryCache;
+        if (cache == null || isInTransaction()) {
+            return query(sql, params, handler);
+        }
+        QueryCache.Entry entry = cache.get(kind, sql, params);
+        if (entry != null) {
+            return (T) entry.getValue();
+        }
+        long generation = cache.getGeneration();
+        T result = query(sql, params, handler);
+        cache.put(kind, sql, params, result, generation);
+        return result;
+    }
+
+    protected <T> T query(String sql, Object[] params, ResultHandler<T> handler) throws SQLException {
+        log(sql);
+        Replica replica = chooseReplica(sql);
+        Connection connection = null;
+        if (replica != null) {
+            try {
+                connection = replica.getConnectionPool().borrow();
+            } catch (SQLException e) {
+                getLogger().warning("Could not connect to " + replica + ", using the primary database: " + e.getMessage());
+                replica.markDown(this.replicaDownTime);
+                replica = null;
+            }
+        }
+        if (connection == null) {
+            connection = acquireConnection();
+        }
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        boolean failed = true;
+        long start = System.nanoTime();
+        try {
+            statement = prepareStatement(connection, sql);
+            setParameters(statement, params);
+            statementStarted(statement);
+            resultSet = statement.executeQuery();
+            T result = handler.handle(resultSet, getMetadata(sql, resultSet));
+            failed = false;
+            long time = System.nanoTime() - start;
+            queryFinished(sql, time, rowCount(result));
+            if (replica != null) {
+                replica.recordLatency(time);
+            }
+            return result;
+        } finally {
+            close(resultSet, null);
+            statementFinished(statement);
+            releaseStatement(connection, sql, statement, failed);
+            if (replica != null) {
+                replica.getConnectionPool().release(connection);
+            } else {
+                releaseConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * Executes a parameterized INSERT, UPDATE, DELETE or DDL statement.
+     *
+     * @param  sql           the statement, with {@code ?} placeholders for the parameters
+     * @param  params        the parameters
+     * @return               the number of affected rows
+     * @throws SQLException  if a database error occurs
+     */
+    public int update(String sql, Object... params) throws SQLException {
+        log(sql);
+        Connection connection = acquireConnection();
+        PreparedStatement statement = null;
+        boolean failed = true;
+        long start = System.nanoTime();
+        try {
+            statement = prepareStatement(connection, sql);
+            setParameters(statement, params);
+            statementStarted(statement);
+            int rows = statement.executeUpdate();
+            failed = false;
+            queryFinished(sql, System.nanoTime() - start, rows);
+            return rows;
+        } finally {
+            tablesWritten(sql);
+            if (DDL.matcher(sql).lookingAt()) {
+                clearMetadataCache();
+            }
+            statementFinished(statement);
+            releaseStatement(connection, sql, statement, failed);
+            releaseConnection(connection);
         }
-        this.pStmt = this.con.prepareStatement(query);
-        this.pStmt.executeUpdate();
-        close();
+    }
+
+    public QueryFuture<Results> getResultsAsync(String sql, Object... params) {
+        return getResultsAsync(sql, params, 0, TimeUnit.SECONDS, null);
+    }
+
+    /**
+     * Executes a parameterized query on the executor and returns a future of its results.
+     *
+     * @param  sql                         the query, with {@code ?} placeholders for the parameters
+     * @param  params                      the parameters
+     * @param  timeout                     the query timeout, rounded up to seconds, 0 for no timeout
+     * @param  unit                        the unit of the timeout
+     * @param  callback                    the callback to notify when the query completes, or null
+     * @return                             the future of the results
+     * @throws RejectedExecutionException  if the executor queue is full
+     */
+    public QueryFuture<Results> getResultsAsync(final String sql, final Object[] params, long timeout, TimeUnit unit,
+            QueryCallback<Results> callback) {
+        return submit(sql, timeout, unit, new Callable<Results>() {
+            @Override
+            public Results call() throws SQLException {
+                return query(sql, params);
+            }
+        }, callback);
+    }
+
+    public QueryFuture<Integer> executeQueryAsync(String sql, Object... params) {
+        return executeQueryAsync(sql, params, 0, TimeUnit.SECONDS, null);
+    }
+
+    /**
+     * Executes a parameterized INSERT, UPDATE, DELETE or DDL statement on the executor.
+     *
+     * @param  sql                         the statement, with {@code ?} placeholders for the parameters
+     * @param  params                      the parameters
+     * @param  timeout                     the query timeout, rounded up to seconds, 0 for no timeout
+     * @param  unit                        the unit of the timeout
+     * @param  callback                    the callback to notify when the statement completes, or null
+     * @return                             the future of the number of affected rows
+     * @throws RejectedExecutionException  if the executor queue is full
+     */
+    public QueryFuture<Integer> executeQueryAsync(final String sql, final Object[] params, long timeout, TimeUnit unit,
+            QueryCallback<Integer> callback) {
+        return submit(sql, timeout, unit, new Callable<Integer>() {
+            @Override
+            public Integer call() throws SQLException {
+                return update(sql, params);
+            }
+        }, callback);
+    }
+
+    protected <T> QueryFuture<T> submit(String sql, long timeout, TimeUnit unit, Callable<T> callable, QueryCallback<T> callback) {
+        int seconds = (int) Math.min(Integer.MAX_VALUE, (unit.toMillis(timeout) + 999) / 1000);
+        QueryFuture<T> future = new QueryFuture<T>(sql, seconds, callable, callback);
+        getExecutor().execute(future);
+        return future;
     }
 
     public void executeQueryVoid(String query) {
@@ -560,140 +1245,1013 @@ public class DataManager {
 
     public void updateBlob(String table, String field, String where, String data) {
         try {
-            String query = "UPDATE `" + getPrefix() + table + "` " + "SET `" + field + "` = ? " + "WHERE " + where;
             byte[] array = data.getBytes();
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(array);
-            connect();
-            log(query);
-            if (this.con == null) {
-                throw new SQLException("Unable to connect to the database");
-            }
-            this.stmt = this.con.createStatement();
-            this.pStmt = this.con.prepareStatement(query);
-            this.pStmt.setBlob(1, inputStream, array.length);
-            this.pStmt.executeUpdate();
-            close();
+            updateBlob(table, field, where, new ByteArrayInputStream(array), array.length);
         } catch (SQLException e) {
             getLogger().stackTrace(e);
         }
     }
 
+    /**
+     * Sets a BLOB field from a stream, without reading the whole stream into memory first.
+     *
+     * @param  table         the table, without prefix
+     * @param  field         the BLOB field
+     * @param  where         the condition selecting the rows to update
+     * @param  data          the stream to read the data from, it is not closed
+     * @param  length        the number of bytes to read, or -1 to read until the end of the stream
+     * @return               the number of updated rows
+     * @throws SQLException  if a database error occurs
+     */
+    public int updateBlob(String table, String field, String where, InputStream data, long length) throws SQLException {
+        String query = "UPDATE `" + getPrefix() + table + "` " + "SET `" + field + "` = ? " + "WHERE " + where;
+        log(query);
+        Connection connection = acquireConnection();
+        PreparedStatement statement = null;
+        boolean failed = true;
+        long start = System.nanoTime();
+        try {
+            statement = prepareStatement(connection, query);
+            if (length < 0) {
+                statement.setBinaryStream(1, data);
+            } else {
+                statement.setBinaryStream(1, data, length);
+            }
+            int rows = statement.executeUpdate();
+            failed = false;
+            queryFinished(query, System.nanoTime() - start, rows);
+            return rows;
+        } finally {
+            tablesWritten(query);
+            releaseStatement(connection, query, statement, failed);
+            releaseConnection(connection);
+        }
+    }
+
+    public int updateBlob(String table, String field, String where, ReadableByteChannel data, long length) throws SQLException {
+        return updateBlob(table, field, where, Channels.newInputStream(data), length);
+    }
+
+    /**
+     * Opens a stream reading a BLOB field of the first row matching a condition, without loading it into memory.
+     * The stream holds a connection and must be closed.
+     *
+     * @param  table         the table, without prefix
+     * @param  field         the BLOB field
+     * @param  where         the condition selecting the row
+     * @return               the stream, or null if no row matched or the field is null
+     * @throws SQLException  if a database error occurs
+     */
+    public BlobInputStream openBlobInputStream(String table, String field, String where) throws SQLException {
+        String query = "SELECT `" + field + "` FROM `" + getPrefix() + table + "` WHERE " + where + " LIMIT 1";
+        log(query);
+        Connection connection = acquireDedicatedConnection();
+        Statement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            if (this.datatype == DataType.MYSQL) {
+                statement.setFetchSize(Integer.MIN_VALUE);
+            }
+            resultSet = statement.executeQuery(query);
+            InputStream in = resultSet.next() ? resultSet.getBinaryStream(1) : null;
+            if (in != null) {
+                return new BlobInputStream(this, connection, statement, resultSet, in);
+            }
+        } catch (SQLException e) {
+            close(resultSet, statement);
+            releaseDedicatedConnection(connection);
+            throw e;
+        }
+        close(resultSet, statement);
+        releaseDedicatedConnection(connection);
+        return null;
+    }
+
+    /**
+     * Copies a BLOB field of the first row matching a condition to a stream, without loading it into memory.
+     *
+     * @param  table         the table, without prefix
+     * @param  field         the BLOB field
+     * @param  where         the condition selecting the row
+     * @param  out           the stream to write to, it is not closed
+     * @return               the number of bytes copied, or -1 if no row matched or the field is null
+     * @throws SQLException  if a database error occurs
+     * @throws IOException   if the data could not be written
+     */
+    public long readBlob(String table, String field, String where, OutputStream out) throws SQLException, IOException {
+        BlobInputStream in = openBlobInputStream(table, field, where);
+        if (in == null) {
+            return -1;
+        }
+        try {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
+            }
+            return total;
+        } finally {
+            in.close();
+        }
+    }
+
+    public long readBlob(String table, String field, String where, WritableByteChannel out) throws SQLException, IOException {
+        return readBlob(table, field, where, Channels.newOutputStream(out));
+    }
+
+    /**
+     * Opens a stream writing a BLOB field of the rows matching a condition. The data is stored when the stream
+     * is closed, and the stream holds a connection until then.
+     * <p>
+     * The data goes to a {@link Blob} created by the driver. On MySQL, that BLOB is a byte array, so the whole data
+     * is held in memory; use {@link #updateBlob(String, String, String, InputStream, long)} for large BLOBs on MySQL.
+     *
+     * @param  table         the table, without prefix
+     * @param  field         the BLOB field
+     * @param  where         the condition selecting the rows to update
+     * @return               the stream
+     * @throws SQLException  if a database error occurs
+     */
+    public BlobOutputStream openBlobOutputStream(String table, String field, String where) throws SQLException {
+        String query = "UPDATE `" + getPrefix() + table + "` " + "SET `" + field + "` = ? " + "WHERE " + where;
+        Connection connection = acquireDedicatedConnection();
+        try {
+            return new BlobOutputStream(this, connection, connection.createBlob(), query);
+        } catch (SQLException e) {
+            releaseDedicatedConnection(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Stores a BLOB written through a {@link BlobOutputStream}.
+     */
+    protected void storeBlob(Connection connection, String query, Blob blob) throws SQLException {
+        log(query);
+        PreparedStatement statement = null;
+        boolean failed = true;
+        long start = System.nanoTime();
+        try {
+            statement = prepareStatement(connection, query);
+            statement.setBlob(1, blob);
+            int rows = statement.executeUpdate();
+            failed = false;
+            queryFinished(query, System.nanoTime() - start, rows);
+        } finally {
+            tablesWritten(query);
+            releaseStatement(connection, query, statement, failed);
+        }
+    }
+
     public void updateField(String table, String field, Object value, String where) throws SQLException {
-        executeQuery("UPDATE `" + getPrefix() + table + "` SET `" + field + "` = " + fieldValueToString(value) + " WHERE " + where);
+        update("UPDATE `" + getPrefix() + table + "` SET `" + field + "` = ? WHERE " + where, value);
     }
 
     public void updateFields(Map<String, Object> data, String table, String where) throws SQLException {
-        String update = updateFieldsString(data);
-        executeQuery("UPDATE `" + getPrefix() + table + "`" + update + " WHERE " + where);
+        StringBuilder query = new StringBuilder("UPDATE `").append(getPrefix()).append(table).append("` SET");
+        Object[] params = new Object[data.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            query.append(i == 0 ? " `" : ", `").append(entry.getKey()).append("` = ?");
+            params[i++] = entry.getValue();
+        }
+        update(query.append(" WHERE ").append(where).toString(), params);
     }
 
     public void insertField(String table, String field, Object value) throws SQLException {
-        executeQuery("INSERT INTO `" + getPrefix() + table + "` (`" + field + "`) VALUES (" + fieldValueToString(value) + ")");
+        update("INSERT INTO `" + getPrefix() + table + "` (`" + field + "`) VALUES (?)", value);
     }
 
     public void insertFields(Map<String, Object> data, String table) throws SQLException {
-        String insert = insertFieldString(data);
-        executeQuery("INSERT INTO `" + getPrefix() + table + "` " + insert);
+        StringBuilder fields = new StringBuilder(), values = new StringBuilder();
+        Object[] params = new Object[data.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            fields.append(i == 0 ? "`" : ", `").append(entry.getKey()).append("`");
+            values.append(i == 0 ? "?" : ", ?");
+            params[i++] = entry.getValue();
+        }
+        update("INSERT INTO `" + getPrefix() + table + "` (" + fields + ") VALUES (" + values + ")", params);
+    }
+
+    public BatchResult insertBatch(List<Map<String, Object>> rows, String table) throws SQLException {
+        return insertBatch(rows.iterator(), table);
+    }
+
+    /**
+     * Inserts rows in batches of {@link #getBatchSize()}, committing once per batch.
+     * <p>
+     * All rows must have the same columns as the first one. On MySQL, the batches are sent as multi-row INSERTs
+     * if {@link #isRewriteBatchedInserts()} is enabled.
+     *
+     * @param  rows          the rows, as maps of column names to values
+     * @param  table         the table, without prefix
+     * @return               the statistics of the operation
+     * @throws SQLException  if a database error occurs, batches committed before the error are kept
+     */
+    public BatchResult insertBatch(Iterator<Map<String, Object>> rows, String table) throws SQLException {
+        if (!rows.hasNext()) {
+            return new BatchResult();
+        }
+        Map<String, Object> first = rows.next();
+        List<String> columns = new ArrayList<String>(first.keySet());
+        Iterator<Object[]> values = new RowValuesIterator(first, rows, columns);
+        if (this.rewriteBatchedInserts && this.datatype == DataType.MYSQL) {
+            return executeBatch(insertPrefix(table, columns), columns.size(), "", values);
+        }
+        return executeBatch(insertPrefix(table, columns) + rowPlaceholders(columns.size()), values);
+    }
+
+    public BatchResult updateBatch(List<Map<String, Object>> rows, String table, String keyField) throws SQLException {
+        return updateBatch(rows.iterator(), table, keyField);
+    }
+
+    /**
+     * Updates rows identified by a key field in batches of {@link #getBatchSize()}, committing once per batch.
+     * <p>
+     * All rows must have the same columns as the first one, including the key field.
+     *
+     * @param  rows          the rows, as maps of column names to values
+     * @param  table         the table, without prefix
+     * @param  keyField      the column identifying the row to update
+     * @return               the statistics of the operation
+     * @throws SQLException  if a database error occurs, batches committed before the error are kept
+     */
+    public BatchResult updateBatch(Iterator<Map<String, Object>> rows, String table, String keyField) throws SQLException {
+        if (!rows.hasNext()) {
+            return new BatchResult();
+        }
+        Map<String, Object> first = rows.next();
+        if (!first.containsKey(keyField)) {
+            throw new IllegalArgumentException("Rows must contain the key field '" + keyField + "'.");
+        }
+        List<String> columns = new ArrayList<String>(first.keySet());
+        columns.remove(keyField);
+        columns.add(keyField);
+        StringBuilder query = new StringBuilder("UPDATE `").append(getPrefix()).append(table).append("` SET");
+        for (int i = 0; i < columns.size() - 1; i++) {
+            query.append(i == 0 ? " `" : ", `").append(columns.get(i)).append("` = ?");
+        }
+        query.append(" WHERE `").append(keyField).append("` = ?");
+        return executeBatch(query.toString(), new RowValuesIterator(first, rows, columns));
+    }
+
+    public BatchResult executeBatch(String sql, List<Object[]> params) throws SQLException {
+        return executeBatch(sql, params.iterator());
+    }
+
+    /**
+     * Executes a parameterized statement once for every parameter set using JDBC batches of {@link #getBatchSize()},
+     * committing once per batch.
+     *
+     * @param  sql           the statement, with {@code ?} placeholders for the parameters
+     * @param  params        the parameter sets
+     * @return               the statistics of the operation
+     * @throws SQLException  if a database error occurs, batches committed before the error are kept
+     */
+    public BatchResult executeBatch(String sql, Iterator<Object[]> params) throws SQLException {
+        return executeBatch(sql, 0, "", params);
+    }
+
+    /**
+     * Executes the batch, either as a JDBC batch ({@code rowColumns} 0) or by appending one placeholder row
+     * per parameter set and then {@code suffix} to {@code sql} (multi-row INSERT). Inside a transaction,
+     * the batches are left for the transaction to commit.
+     */
+    private BatchResult executeBatch(String sql, int rowColumns, String suffix, Iterator<Object[]> params) throws SQLException {
+        BatchResult result = new BatchResult();
+        int size = this.batchSize;
+        if (rowColumns > 0) {
+            size = Math.max(1, Math.min(size, MAX_PARAMETERS / rowColumns));
+        }
+        List<Object[]> chunk = new ArrayList<Object[]>(size);
+        Connection connection = acquireDedicatedConnection();
+        boolean transaction = isTransactionConnection(connection);
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            if (!transaction) {
+                connection.setAutoCommit(false);
+            }
+            while (params.hasNext()) {
+                chunk.clear();
+                while (chunk.size() < size && params.hasNext()) {
+                    chunk.add(params.next());
+                }
+                String query = sql;
+                if (rowColumns > 0) {
+                    StringBuilder builder = new StringBuilder(sql);
+                    String placeholders = rowPlaceholders(rowColumns);
+                    for (int i = 0; i < chunk.size(); i++) {
+                        builder.append(i == 0 ? "" : ", ").append(placeholders);
+                    }
+                    query = builder.append(suffix).toString();
+                }
+                log(query);
+                long start = System.nanoTime();
+                int affected = 0;
+                PreparedStatement statement = null;
+                boolean failed = true;
+                try {
+                    statement = prepareStatement(connection, query);
+                    if (rowColumns > 0) {
+                        int index = 0;
+                        for (Object[] row : chunk) {
+                            for (Object value : row) {
+                                setParameter(statement, ++index, value);
+                            }
+                        }
+                        affected = statement.executeUpdate();
+                    } else {
+                        for (Object[] row : chunk) {
+                            setParameters(statement, row);
+                            statement.addBatch();
+                        }
+                        for (int count : statement.executeBatch()) {
+                            affected += Math.max(count, 0);
+                        }
+                    }
+                    if (!transaction) {
+                        connection.commit();
+                    }
+                    failed = false;
+                } finally {
+                    if (failed && !transaction) {
+                        try {
+                            connection.rollback();
+                        } catch (SQLException e) {
+                            getLogger().debug("Could not roll back the failed batch: " + e.getMessage());
+                        }
+                    }
+                    releaseStatement(connection, query, statement, failed);
+                }
+                result.addBatch(chunk.size(), affected, System.nanoTime() - start);
+                queryFinished(sql, System.nanoTime() - start, chunk.size());
+            }
+        } finally {
+            if (!transaction) {
+                try {
+                    connection.setAutoCommit(autoCommit);
+                } catch (SQLException e) {
+                    getLogger().debug("Could not restore auto-commit: " + e.getMessage());
+                }
+            }
+            tablesWritten(sql);
+            releaseDedicatedConnection(connection);
+        }
+        result.finish();
+        getLogger().debug("Executed " + result + ".");
+        return result;
+    }
+
+    /**
+     * Inserts a row, or updates the existing row with the same key.
+     * <p>
+     * On MySQL this is an {@code INSERT ... ON DUPLICATE KEY UPDATE}, which matches rows on any unique key of the
+     * table, so {@code keyFields} are only left out of the update. On H2 this is a {@code MERGE INTO ... KEY(...)},
+     * which matches rows on {@code keyFields}, or on the primary key if none are given.
+     *
+     * @param  data          the row, as a map of column names to values
+     * @param  table         the table, without prefix
+     * @param  keyFields     the columns identifying the row
+     * @return               the number of affected rows, as reported by the database
+     * @throws SQLException  if a database error occurs
+     */
+    public int upsertFields(Map<String, Object> data, String table, String... keyFields) throws SQLException {
+        List<String> columns = new ArrayList<String>(data.keySet());
+        checkKeyFields(columns, keyFields);
+        Object[] params = new Object[columns.size()];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = data.get(columns.get(i));
+        }
+        return update(upsertPrefix(table, columns, keyFields) + rowPlaceholders(columns.size())
+                + upsertSuffix(columns, keyFields), params);
+    }
+
+    public BatchResult upsertBatch(List<Map<String, Object>> rows, String table, String... keyFields) throws SQLException {
+        return upsertBatch(rows.iterator(), table, keyFields);
+    }
+
+    /**
+     * Inserts or updates rows in batches of {@link #getBatchSize()}, committing once per batch.
+     * See {@link #upsertFields(Map, String, String...)} for how rows are matched.
+     * <p>
+     * All rows must have the same columns as the first one. On MySQL, the batches are sent as multi-row statements
+     * if {@link #isRewriteBatchedInserts()} is enabled.
+     *
+     * @param  rows          the rows, as maps of column names to values
+     * @param  table         the table, without prefix
+     * @param  keyFields     the columns identifying the rows
+     * @return               the statistics of the operation
+     * @throws SQLException  if a database error occurs, batches committed before the error are kept
+     */
+    public BatchResult upsertBatch(Iterator<Map<String, Object>> rows, String table, String... keyFields) throws SQLException {
+        if (!rows.hasNext()) {
+            return new BatchResult();
+        }
+        Map<String, Object> first = rows.next();
+        List<String> columns = new ArrayList<String>(first.keySet());
+        checkKeyFields(columns, keyFields);
+        Iterator<Object[]> values = new RowValuesIterator(first, rows, columns);
+        String prefix = upsertPrefix(table, columns, keyFields), suffix = upsertSuffix(columns, keyFields);
+        if (this.rewriteBatchedInserts && this.datatype == DataType.MYSQL) {
+            return executeBatch(prefix, columns.size(), suffix, values);
+        }
+        return executeBatch(prefix + rowPlaceholders(columns.size()) + suffix, values);
+    }
+
+    private static void checkKeyFields(List<String> columns, String[] keyFields) {
+        for (String keyField : keyFields) {
+            if (!columns.contains(keyField)) {
+                throw new IllegalArgumentException("Rows must contain the key field '" + keyField + "'.");
+            }
+        }
+    }
+
+    private String upsertPrefix(String table, List<String> columns, String[] keyFields) {
+        if (this.datatype != DataType.H2) {
+            return insertPrefix(table, columns);
+        }
+        StringBuilder query = new StringBuilder("MERGE INTO `").append(getPrefix()).append(table).append("` (");
+        for (int i = 0; i < columns.size(); i++) {
+            query.append(i == 0 ? "`" : ", `").append(columns.get(i)).append("`");
+        }
+        query.append(")");
+        for (int i = 0; i < keyFields.length; i++) {
+            query.append(i == 0 ? " KEY(`" : ", `").append(keyFields[i]).append(i == keyFields.length - 1 ? "`)" : "`");
+        }
+        return query.append(" VALUES ").toString();
+    }
+
+    private String upsertSuffix(List<String> columns, String[] keyFields) {
+        if (this.datatype != DataType.MYSQL) {
+            return "";
+        }
+        List<String> keys = Arrays.asList(keyFields);
+        StringBuilder suffix = new StringBuilder(" ON DUPLICATE KEY UPDATE ");
+        boolean first = true;
+        for (String column : columns) {
+            if (!keys.contains(column)) {
+                suffix.append(first ? "`" : ", `").append(column).append("` = VALUES(`").append(column).append("`)");
+                first = false;
+            }
+        }
+        if (first) {
+            String column = columns.get(0);
+            suffix.append("`").append(column).append("` = `").append(column).append("`");
+        }
+        return suffix.toString();
+    }
+
+    private String insertPrefix(String table, List<String> columns) {
+        StringBuilder query = new StringBuilder("INSERT INTO `").append(getPrefix()).append(table).append("` (");
+        for (int i = 0; i < columns.size(); i++) {
+            query.append(i == 0 ? "`" : ", `").append(columns.get(i)).append("`");
+        }
+        return query.append(") VALUES ").toString();
+    }
+
+    private static String rowPlaceholders(int columns) {
+        StringBuilder placeholders = new StringBuilder("(");
+        for (int i = 0; i < columns; i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        return placeholders.append(")").toString();
     }
 
     @Deprecated
     public TableModel resultSetToTableModel(String query) {
+        Connection connection = null;
+        Statement statement = null;
+        ResultSet resultSet = null;
         try {
-            this.rs = getResultSet(query);
-            ResultSetMetaData metaData = this.rs.getMetaData();
+            log(query);
+            connection = acquireConnection();
+            statement = connection.createStatement();
+            resultSet = statement.executeQuery(query);
+            ResultSetMetaData metaData = resultSet.getMetaData();
             int numberOfColumns = metaData.getColumnCount();
             Vector<String> columnNames = new Vector<String>();
             for (int column = 0; column < numberOfColumns; column++) {
                 columnNames.addElement(metaData.getColumnLabel(column + 1));
             }
             Vector<Vector<Object>> rows = new Vector<Vector<Object>>();
-            while (this.rs.next()) {
+            while (resultSet.next()) {
                 Vector<Object> newRow = new Vector<Object>();
                 for (int i = 1; i <= numberOfColumns; i++) {
-                    newRow.addElement(this.rs.getObject(i));
+                    newRow.addElement(resultSet.getObject(i));
                 }
                 rows.addElement(newRow);
             }
-            close();
             return new DefaultTableModel(rows, columnNames);
         } catch (Exception e) {
             getLogger().stackTrace(e);
-            close();
             return null;
+        } finally {
+            close(resultSet, statement);
+            releaseConnection(connection);
         }
     }
 
     public Results getResults(String query) throws SQLException {
+        return query(query);
+    }
+
+    /**
+     * Executes a query and returns an iterator reading its rows lazily, using the driver's streaming mode on MySQL.
+     *
+     * @param  sql           the query
+     * @return               the row iterator, which must be closed
+     * @throws SQLException  if a database error occurs
+     */
+    public RowIterator stream(String sql) throws SQLException {
+        return stream(sql, this.datatype == DataType.MYSQL ? Integer.MIN_VALUE : DEFAULT_FETCH_SIZE);
+    }
+
+    /**
+     * Executes a parameterized query and returns an iterator reading its rows lazily.
+     * <p>
+     * The query runs on its own connection, which is held until the iterator is exhausted or closed.
+     * On MySQL, a fetch size of {@link Integer#MIN_VALUE} streams rows one by one; positive fetch sizes
+     * are only honored by MySQL if {@code useCursorFetch} is enabled.
+     *
+     * @param  sql           the query, with {@code ?} placeholders for the parameters
+     * @param  fetchSize     the number of rows the driver fetches at once
+     * @param  params        the parameters
+     * @return               the row iterator, which must be closed
+     * @throws SQLException  if a database error occurs
+     */
+    public RowIterator stream(String sql, int fetchSize, Object... params) throws SQLException {
+        log(sql);
+        Connection connection = acquireDedicatedConnection();
+        PreparedStatement statement = null;
         try {
-            this.rs = getResultSet(query);
-            Results results = new Results(query, this.rs);
-            close();
-            return results;
+            statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            setParameters(statement, params);
+            ResultSet resultSet = statement.executeQuery();
+            return new RowIterator(this, sql, connection, statement, resultSet, getMetadata(sql, resultSet));
+        } catch (SQLException e) {
+            close(null, statement);
+            releaseDedicatedConnection(connection);
+            throw e;
+        }
+    }
+
+    public Results getPage(String table, String keyField, Object afterKey, int pageSize) throws SQLException {
+        return getPage(table, keyField, afterKey, null, pageSize);
+    }
+
+    /**
+     * Returns the rows following a key, ordered by the key field, without the cost of OFFSET paging.
+     *
+     * @param  table         the table, without prefix
+     * @param  keyField      the key field, which should be indexed
+     * @param  afterKey      the last key of the previous page, or null for the first page
+     * @param  range         the range of keys to limit the page to, or null
+     * @param  pageSize      the maximum number of rows
+     * @return               the page
+     * @throws SQLException  if a database error occurs
+     */
+    public Results getPage(String table, String keyField, Object afterKey, KeyRange range, int pageSize) throws SQLException {
+        StringBuilder query = new StringBuilder("SELECT * FROM `").append(getPrefix()).append(table).append("`");
+        List<Object> params = new ArrayList<Object>(3);
+        String keyword = " WHERE ";
+        if (range != null) {
+            query.append(keyword).append("`").append(keyField).append("` >= ?");
+            params.add(range.getFrom());
+            if (range.hasUpperBound()) {
+                query.append(" AND `").append(keyField).append("` < ?");
+                params.add(range.getTo());
+            }
+            keyword = " AND ";
+        }
+        if (afterKey != null) {
+            query.append(keyword).append("`").append(keyField).append("` > ?");
+            params.add(afterKey);
+        }
+        query.append(" ORDER BY `").append(keyField).append("` LIMIT ").append(pageSize);
+        return query(query.toString(), params.toArray());
+    }
+
+    /**
+     * Returns an iterator over the pages of a table, fetched lazily by {@link #getPage(String, String, Object, int)}.
+     *
+     * @param  table     the table, without prefix
+     * @param  keyField  the key field, which should be indexed
+     * @param  pageSize  the number of rows per page
+     * @return           the page iterator
+     */
+    public PageIterator pages(String table, String keyField, int pageSize) {
+        return new PageIterator(this, table, keyField, null, pageSize);
+    }
+
+    /**
+     * Returns an iterator over the pages of a range of keys, for example one returned by
+     * {@link #splitKeyRange(String, String, int)} to let several workers page through a table in parallel.
+     *
+     * @param  range     the range of keys
+     * @param  pageSize  the number of rows per page
+     * @return           the page iterator
+     */
+    public PageIterator pages(KeyRange range, int pageSize) {
+        return new PageIterator(this, range.getTable(), range.getKeyField(), range, pageSize);
+    }
+
+    /**
+     * Splits the keys of a table into ranges of equal width between the lowest and highest key.
+     * The key field must be an integer column.
+     * <p>
+     * The ranges can be paged through in parallel with {@link #pages(KeyRange, int)}; use pooled mode
+     * so the workers don't share a connection.
+     *
+     * @param  table         the table, without prefix
+     * @param  keyField      the key field, which should be indexed
+     * @param  parts         the maximum number of ranges
+     * @return               the ranges, empty if the table is empty
+     * @throws SQLException  if a database error occurs
+     */
+    public List<KeyRange> splitKeyRange(String table, String keyField, int parts) throws SQLException {
+        if (parts < 1) {
+            throw new IllegalArgumentException("Parameter 'parts' must be at least 1.");
+        }
+        List<KeyRange> ranges = new ArrayList<KeyRange>();
+        DataRow bounds = query("SELECT MIN(`" + keyField + "`) AS `min`, MAX(`" + keyField + "`) AS `max` FROM `"
+                + getPrefix() + table + "`").getFirstResult();
+        if (bounds == null || bounds.isNullField("min")) {
+            return ranges;
+        }
+        long min = bounds.getLongField("min"), max = bounds.getLongField("max");
+        // the span of keys can exceed a long, for example from Long.MIN_VALUE to Long.MAX_VALUE
+        BigInteger span = BigInteger.valueOf(max).subtract(BigInteger.valueOf(min)).add(BigInteger.ONE);
+        if (span.compareTo(BigInteger.valueOf(parts)) < 0) {
+            parts = span.intValue();
+        }
+        BigInteger[] division = span.divideAndRemainder(BigInteger.valueOf(parts));
+        BigInteger from = BigInteger.valueOf(min);
+        for (int i = 0; i < parts - 1; i++) {
+            BigInteger to = from.add(division[0]);
+            if (i < division[1].intValue()) {
+                to = to.add(BigInteger.ONE);
+            }
+            ranges.add(new KeyRange(table, keyField, from.longValue(), to.longValue()));
+            from = to;
+        }
+        // the last range is open-ended, as max + 1 would overflow for Long.MAX_VALUE
+        ranges.add(new KeyRange(table, keyField, from.longValue()));
+        return ranges;
+    }
+
+    /**
+     * Streams the results of a query to a file, without holding them in memory. The file is compressed with gzip
+     * if its name ends with {@code .gz}.
+     *
+     * @param  sql           the query, with {@code ?} placeholders for the parameters
+     * @param  file          the file to write, it is replaced if it exists
+     * @param  format        the file format
+     * @param  progress      the progress callback, or null
+     * @param  params        the parameters
+     * @return               the number of exported rows
+     * @throws SQLException  if a database error occurs
+     * @throws IOException   if the file could not be written
+     */
+    public long export(String sql, Path file, ExportFormat format, ExportProgress progress, Object... params)
+            throws SQLException, IOException {
+        return exportPart(sql, params, file, format, new AtomicLong(), progress);
+    }
+
+    /**
+     * Exports a table split by key ranges, each part on its own connection and thread, see
+     * {@link #splitKeyRange(String, String, int)}.
+     * <p>
+     * With more than one part, part {@code n} is written next to {@code file} with {@code -n} inserted before
+     * the extension, so {@code users.csv.gz} becomes {@code users-0.csv.gz}, {@code users-1.csv.gz} and so on.
+     *
+     * @param  table         the table, without prefix
+     * @param  keyField      the numeric key field, which should be indexed
+     * @param  parts         the number of parts to export in parallel
+     * @param  file          the file to write
+     * @param  format        the file format
+     * @param  progress      the progress callback, or null
+     * @return               the number of exported rows
+     * @throws SQLException  if a database error occurs
+     * @throws IOException   if a file could not be written
+     */
+    public long exportTable(String table, String keyField, int parts, Path file, final ExportFormat format,
+            final ExportProgress progress) throws SQLException, IOException {
+        List<KeyRange> ranges = splitKeyRange(table, keyField, parts);
+        if (ranges.size() <= 1) {
+            return export("SELECT * FROM `" + getPrefix() + table + "` ORDER BY `" + keyField + "`", file, format, progress);
+        }
+        final AtomicLong total = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(ranges.size(), new ThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DataManager-export-" + this.threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int i = 0; i < ranges.size(); i++) {
+                final KeyRange range = ranges.get(i);
+                final Path part = partFile(file, i);
+                final String sql = "SELECT * FROM `" + getPrefix() + table + "` WHERE `" + keyField + "` >= ?"
+                        + (range.hasUpperBound() ? " AND `" + keyField + "` < ?" : "") + " ORDER BY `" + keyField + "`";
+                final Object[] params = range.hasUpperBound() ? new Object[] { range.getFrom(), range.getTo() }
+                        : new Object[] { range.getFrom() };
+                futures.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return exportPart(sql, params, part, format, total, progress);
+                    }
+                }));
+            }
+            for (Future<Long> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while exporting '" + table + "'", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof SQLException) {
+                        throw (SQLException) cause;
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new SQLException("Could not export '" + table + "'", cause);
+                }
+            }
+            return total.get();
         } finally {
-            close();
+            executor.shutdownNow();
+        }
+    }
+
+    private static Path partFile(Path file, int part) {
+        String name = file.getFileName().toString();
+        int dot = name.indexOf('.');
+        String partName = dot < 0 ? name + "-" + part : name.substring(0, dot) + "-" + part + name.substring(dot);
+        return file.resolveSibling(partName);
+    }
+
+    private long exportPart(String sql, Object[] params, Path file, ExportFormat format, AtomicLong total, ExportProgress progress)
+            throws SQLException, IOException {
+        log(sql);
+        Connection connection = acquireDedicatedConnection();
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        OutputStream out = null;
+        Writer writer = null;
+        long start = System.nanoTime(), rows = 0;
+        try {
+            statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(this.datatype == DataType.MYSQL ? Integer.MIN_VALUE : DEFAULT_FETCH_SIZE);
+            setParameters(statement, params);
+            statementStarted(statement);
+            resultSet = statement.executeQuery();
+            ResultExporter exporter = new ResultExporter(format, getMetadata(sql, resultSet));
+            out = Channels.newOutputStream(FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+            if (file.getFileName().toString().endsWith(".gz")) {
+                out = new GZIPOutputStream(out, EXPORT_BUFFER_SIZE);
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), EXPORT_BUFFER_SIZE);
+            exporter.writeHeader(writer);
+            while (resultSet.next()) {
+                exporter.writeRow(resultSet, writer);
+                rows++;
+                long exported = total.incrementAndGet();
+                if (progress != null && rows % EXPORT_PROGRESS_ROWS == 0) {
+                    progress.onProgress(exported);
+                }
+            }
+            writer.close();
+            out = null;
+            writer = null;
+            queryFinished(sql, System.nanoTime() - start, rows);
+            if (progress != null) {
+                progress.onProgress(total.get());
+            }
+            return rows;
+        } finally {
+            Closeable closeable = writer != null ? writer : out;
+            if (closeable != null) {
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    getLogger().debug("Could not close '" + file + "': " + e.getMessage());
+                }
+            }
+            close(resultSet, null);
+            statementFinished(statement);
+            close(null, statement);
+            releaseDedicatedConnection(connection);
         }
     }
 
     @Deprecated
     public Map<String, Object> getArray(String query) {
+        Connection connection = null;
+        Statement statement = null;
+        ResultSet resultSet = null;
         try {
-            this.rs = getResultSet(query);
-            ResultSetMetaData metaData = this.rs.getMetaData();
+            log(query);
+            connection = acquireConnection();
+            statement = connection.createStatement();
+            resultSet = statement.executeQuery(query);
+            ResultSetMetaData metaData = resultSet.getMetaData();
             int numberOfColumns = metaData.getColumnCount();
             Map<String, Object> data = new HashMap<String, Object>();
-            while (this.rs.next()) {
+            while (resultSet.next()) {
                 for (int i = 1; i <= numberOfColumns; i++) {
-                    data.put(metaData.getColumnLabel(i), this.rs.getObject(i));
+                    data.put(metaData.getColumnLabel(i), resultSet.getObject(i));
                 }
             }
-            close();
             return data;
         } catch (SQLException e) {
-            close();
             getLogger().stackTrace(e);
+        } finally {
+            close(resultSet, statement);
+            releaseConnection(connection);
         }
         return null;
     }
 
     @Deprecated
     public List<HashMap<String, Object>> getArrayList(String query) {
+        Connection connection = null;
+        Statement statement = null;
+        ResultSet resultSet = null;
         try {
             List<HashMap<String, Object>> list = new ArrayList<HashMap<String, Object>>();
-            this.rs = getResultSet(query);
-            ResultSetMetaData metaData = this.rs.getMetaData();
+            log(query);
+            connection = acquireConnection();
+            statement = connection.createStatement();
+            resultSet = statement.executeQuery(query);
+            ResultSetMetaData metaData = resultSet.getMetaData();
             int numberOfColumns = metaData.getColumnCount();
-            while (this.rs.next()) {
+            while (resultSet.next()) {
                 HashMap<String, Object> data = new HashMap<String, Object>();
                 for (int i = 1; i <= numberOfColumns; i++) {
-                    data.put(metaData.getColumnLabel(i), this.rs.getString(i));
+                    data.put(metaData.getColumnLabel(i), resultSet.getString(i));
                 }
                 list.add(data);
             }
-            close();
             return list;
         } catch (SQLException e) {
-            close();
             getLogger().stackTrace(e);
+        } finally {
+            close(resultSet, statement);
+            releaseConnection(connection);
         }
         return null;
     }
 
+    /**
+     * Executes a query and returns the raw ResultSet.
+     * <p>
+     * The statement and connection stay open until {@link #close()} is called from the same thread.
+     *
+     * @param  query         the query to execute
+     * @return               the ResultSet
+     * @throws SQLException  if a database error occurs
+     */
     public ResultSet getResultSet(String query) throws SQLException {
-        connect();
         log(query);
-        if (this.con == null) {
-            throw new SQLException("Unable to connect to the database");
+        Connection connection = acquireConnection();
+        Statement statement = null;
+        try {
+            statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery(query);
+            this.openResults.get().add(new OpenResult(connection, statement, resultSet));
+            return resultSet;
+        } catch (SQLException e) {
+            close(null, statement);
+            releaseConnection(connection);
+            throw e;
         }
-        this.stmt = this.con.createStatement();
-        this.rs = this.stmt.executeQuery(query);
-        return this.rs;
     }
 
     protected void log(String query) {
         getLogger().debug("Executing " + this.datatype + " query: '" + query + "'");
         this.lastQuery = query;
-        this.queries.put(System.currentTimeMillis(), query);
-        this.queriesCount++;
+        this.queryLog.add(query);
+        this.queriesCount.incrementAndGet();
+    }
+
+    /**
+     * Records the latency of a successfully executed query, and logs it if it was slower
+     * than {@link #getSlowQueryThreshold()}.
+     *
+     * @param query  the query
+     * @param nanos  how long the query took, in nanoseconds
+     * @param rows   the number of rows returned or affected
+     */
+    protected void queryFinished(String query, long nanos, long rows) {
+        this.queryLog.record(query, nanos, rows);
+        long threshold = this.slowQueryThreshold;
+        if (threshold > 0 && nanos >= threshold * 1000000) {
+            getLogger().warning("Slow " + this.datatype + " query took " + (nanos / 1000000) + " ms (" + rows
+                    + " rows): '" + query + "'");
+        }
+    }
+
+    /**
+     * Returns the column metadata of a result set, reusing the metadata of earlier results of the same query
+     * if it has the same number of columns.
+     *
+     * @param  sql           the query
+     * @param  resultSet     the results of the query
+     * @return               the metadata
+     * @throws SQLException  if a database error occurs
+     */
+    protected ResultMetadata getMetadata(String sql, ResultSet resultSet) throws SQLException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        ResultMetadata metadata;
+        synchronized (this.metadataCache) {
+            metadata = this.metadataCache.get(sql);
+        }
+        if (metadata != null && metadata.getColumnCount() == metaData.getColumnCount()) {
+            return metadata;
+        }
+        metadata = new ResultMetadata(metaData);
+        synchronized (this.metadataCache) {
+            if (this.metadataCacheSize > 0) {
+                this.metadataCache.put(sql, metadata);
+                if (this.metadataCache.size() > this.metadataCacheSize) {
+                    this.metadataCache.remove(this.metadataCache.keySet().iterator().next());
+                }
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Picks the replica to send a query to, if it is a plain SELECT, no transaction is active on this thread
+     * and no write was made within the {@link #getReadYourWritesWindow() read-your-writes window}.
+     *
+     * @param  sql  the query
+     * @return      the replica, or null to use the primary database
+     */
+    protected Replica chooseReplica(String sql) {
+        if (this.replicas.isEmpty() || isInTransaction()
+                || System.currentTimeMillis() - this.lastWrite < this.readYourWritesWindow
+                || !READ_ONLY.matcher(sql).lookingAt() || LOCKING_READ.matcher(sql).find()) {
+            return null;
+        }
+        Replica chosen = null;
+        if (this.replicaSelection == ReplicaSelection.LEAST_LATENCY) {
+            for (Replica replica : this.replicas) {
+                if (replica.isAvailable() && (chosen == null || replica.getAverageLatency() < chosen.getAverageLatency())) {
+                    chosen = replica;
+                }
+            }
+        } else {
+            Replica[] replicas = this.replicas.toArray(new Replica[0]);
+            int start = this.nextReplica.getAndIncrement() & Integer.MAX_VALUE;
+            for (int i = 0; i < replicas.length && chosen == null; i++) {
+                Replica replica = replicas[(start + i) % replicas.length];
+                if (replica.isAvailable()) {
+                    chosen = replica;
+                }
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Drops the cached results of the tables written by a statement.
+     *
+     * @param sql  the statement
+     */
+    protected void tablesWritten(String sql) {
+        this.lastWrite = System.currentTimeMillis();
+        QueryCache cache = this.queryCache;
+        if (cache != null) {
+            cache.invalidate(sql);
+            Transaction transaction = this.transactions.get();
+            if (transaction != null) {
+                transaction.written.add(sql);
+            }
+        }
+    }
+
+    private static long rowCount(Object result) {
+        if (result instanceof Results) {
+            return ((Results) result).getArray().size();
+        } else if (result instanceof ColumnarResults) {
+            return ((ColumnarResults) result).size();
+        } else if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+        return result == null ? 0 : 1;
     }
 
     private void outputDrivers() {
@@ -711,9 +2269,14 @@ public class DataManager {
     }
 
     public boolean isConnected() {
+        if (this.pooled) {
+            ConnectionPool pool = this.pool;
+            return pool != null && !pool.isClosed() && pool.getActiveCount() + pool.getIdleCount() > 0;
+        }
         try {
-            if (this.con != null) {
-                return !this.con.isClosed();
+            Connection connection = this.con;
+            if (connection != null) {
+                return !connection.isClosed();
             }
         } catch (SQLException e) {
             getLogger().stackTrace(e);
@@ -723,77 +2286,385 @@ public class DataManager {
 
     public boolean hasConnection() {
         try {
-            boolean result = false;
+            Connection connection = acquireConnection();
+            try {
+                return !connection.isClosed();
+            } finally {
+                releaseConnection(connection);
+            }
+        } catch (SQLException e) {
+            getLogger().debug("No connection available for '" + this.datatype + "': " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Returns a connection for a single call, which must be given back with {@link #releaseConnection(Connection)}.
+     * <p>
+     * In pooled mode the connection is borrowed from the pool, otherwise the shared connection is used.
+     *
+     * @return               the connection
+     * @throws SQLException  if no connection could be established
+     */
+    protected Connection acquireConnection() throws SQLException {
+        Transaction transaction = this.transactions.get();
+        if (transaction != null) {
+            return transaction.connection;
+        }
+        if (this.pooled) {
+            return getConnectionPool().borrow();
+        }
+        synchronized (this.lock) {
             connect();
-            if (this.con != null) {
-                result = !this.con.isClosed();
+            if (this.con == null) {
+                throw new SQLException("Unable to connect to the database");
             }
-            close();
-            return result;
+            this.users++;
+            return this.con;
+        }
+    }
+
+    protected void releaseConnection(Connection connection) {
+        if (connection == null || isTransactionConnection(connection)) {
+            return;
+        }
+        if (this.pooled) {
+            ConnectionPool pool = this.pool;
+            if (pool != null) {
+                pool.release(connection);
+            }
+            return;
+        }
+        synchronized (this.lock) {
+            if (connection != this.con) {
+                return;
+            }
+            this.users--;
+            if (this.users == 0) {
+                closeConnection(false);
+            }
+        }
+    }
+
+    /**
+     * Returns a connection that is not shared with other threads, for operations that change its transaction state.
+     * It must be given back with {@link #releaseDedicatedConnection(Connection)}.
+     * <p>
+     * In pooled mode the connection is borrowed from the pool, otherwise a new connection is opened.
+     * Inside a transaction, the connection of the transaction is returned.
+     *
+     * @return               the connection
+     * @throws SQLException  if no connection could be established
+     */
+    protected Connection acquireDedicatedConnection() throws SQLException {
+        Transaction transaction = this.transactions.get();
+        if (transaction != null) {
+            return transaction.connection;
+        }
+        if (this.pooled) {
+            return getConnectionPool().borrow();
+        }
+        return newConnection(null);
+    }
+
+    protected void releaseDedicatedConnection(Connection connection) {
+        if (isTransactionConnection(connection)) {
+            return;
+        }
+        if (this.pooled) {
+            releaseConnection(connection);
+            return;
+        }
+        connectionClosed(connection);
+        try {
+            connection.close();
         } catch (SQLException e) {
             getLogger().stackTrace(e);
         }
-        return false;
     }
 
-    public void connect() {
-        if (this.url == null && !setURL()) {
+    private boolean isTransactionConnection(Connection connection) {
+        Transaction transaction = this.transactions.get();
+        return transaction != null && transaction.connection == connection;
+    }
+
+    public boolean isInTransaction() {
+        return this.transactions.get() != null;
+    }
+
+    /**
+     * Starts a transaction on the current thread. Until it is committed or rolled back, all queries made from this
+     * thread use the same connection with auto-commit disabled.
+     * <p>
+     * Inside a transaction, this sets a savepoint instead, which the matching {@link #commit()} releases and the
+     * matching {@link #rollback()} rolls back to.
+     *
+     * @throws SQLException  if a database error occurs
+     */
+    public void begin() throws SQLException {
+        Transaction transaction = this.transactions.get();
+        if (transaction != null) {
+            transaction.savepoints.add(transaction.connection.setSavepoint());
             return;
         }
-        if (this.con != null && isConnected()) {
+        Connection connection = acquireDedicatedConnection();
+        try {
+            transaction = new Transaction(connection, connection.getAutoCommit());
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            releaseDedicatedConnection(connection);
+            throw e;
+        }
+        this.transactions.set(transaction);
+    }
+
+    /**
+     * Commits the transaction of the current thread, or releases the last savepoint of a nested {@link #begin()}.
+     *
+     * @throws SQLException  if a database error occurs, the transaction is then rolled back
+     */
+    public void commit() throws SQLException {
+        Transaction transaction = currentTransaction();
+        if (!transaction.savepoints.isEmpty()) {
+            Savepoint savepoint = transaction.savepoints.remove(transaction.savepoints.size() - 1);
+            releaseSavepoint(transaction.connection, savepoint);
             return;
         }
-        long start = System.currentTimeMillis();
+        boolean failed = true;
+        try {
+            transaction.connection.commit();
+            failed = false;
+        } finally {
+            endTransaction(transaction, failed);
+        }
+    }
+
+    /**
+     * Rolls back the transaction of the current thread, or to the last savepoint of a nested {@link #begin()}.
+     *
+     * @throws SQLException  if a database error occurs
+     */
+    public void rollback() throws SQLException {
+        Transaction transaction = currentTransaction();
+        if (!transaction.savepoints.isEmpty()) {
+            Savepoint savepoint = transaction.savepoints.remove(transaction.savepoints.size() - 1);
+            transaction.connection.rollback(savepoint);
+            releaseSavepoint(transaction.connection, savepoint);
+            return;
+        }
+        endTransaction(transaction, true);
+    }
+
+    /**
+     * Sets a named savepoint in the transaction of the current thread.
+     *
+     * @param  name          the name of the savepoint
+     * @return               the savepoint
+     * @throws SQLException  if a database error occurs
+     */
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return currentTransaction().connection.setSavepoint(name);
+    }
+
+    public void rollback(Savepoint savepoint) throws SQLException {
+        currentTransaction().connection.rollback(savepoint);
+    }
+
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        currentTransaction().connection.releaseSavepoint(savepoint);
+    }
+
+    /**
+     * Runs a unit of work in a transaction, committing it if the work completes and rolling it back if it throws.
+     * If a transaction is already active on this thread, the work runs in a nested transaction using a savepoint.
+     *
+     * @param  callback      the work
+     * @return               the result of the work
+     * @throws SQLException  if the work or the commit failed
+     */
+    public <T> T inTransaction(TransactionCallback<T> callback) throws SQLException {
+        begin();
+        boolean committed = false;
+        try {
+            T result = callback.execute(this);
+            commit();
+            committed = true;
+            return result;
+        } finally {
+            if (!committed && isInTransaction()) {
+                try {
+                    rollback();
+                } catch (SQLException e) {
+                    getLogger().debug("Could not roll back the transaction: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private Transaction currentTransaction() throws SQLException {
+        Transaction transaction = this.transactions.get();
+        if (transaction == null) {
+            throw new SQLException("No transaction is active on this thread.");
+        }
+        return transaction;
+    }
+
+    private void releaseSavepoint(Connection connection, Savepoint savepoint) {
+        try {
+            connection.releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            getLogger().debug("Could not release savepoint: " + e.getMessage());
+        }
+    }
+
+    private void endTransaction(Transaction transaction, boolean rollback) throws SQLException {
+        this.transactions.remove();
+        try {
+            if (rollback) {
+                transaction.connection.rollback();
+            }
+        } finally {
+            // other threads may have cached the old values while the transaction was running
+            for (String sql : transaction.written) {
+                tablesWritten(sql);
+            }
+            try {
+                transaction.connection.setAutoCommit(transaction.autoCommit);
+            } catch (SQLException e) {
+                getLogger().debug("Could not restore auto-commit: " + e.getMessage());
+            }
+            releaseDedicatedConnection(transaction.connection);
+        }
+    }
+
+    public void connect() {
+        if (this.pooled) {
+            getConnectionPool().fill();
+            return;
+        }
+        synchronized (this.lock) {
+            if (this.url == null && !setURL()) {
+                return;
+            }
+            if (this.con != null && isConnected()) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                this.con = newConnection(null);
+                this.startup = System.currentTimeMillis() / 1000;
+            } catch (SQLException e) {
+                CircuitBreaker breaker = this.circuitBreaker;
+                if (e.getCause() instanceof ClassNotFoundException) {
+                    getLogger().error("Could not connect to the database due to no driver could be found for '" + this.datatype + "'.");
+                } else if (breaker != null && breaker.getState() != CircuitState.CLOSED) {
+                    // the breaker already reported the outage
+                    getLogger().debug("Could not connect to the database for '" + this.datatype + "': " + e.getMessage());
+                } else {
+                    getLogger().error("Could not connect to the database for '" + this.datatype + "': " + e.getMessage());
+                }
+                getLogger().debug("Connection attempt took " + new TimeUtil((System.currentTimeMillis() - start) / 1000).toString() + ".");
+                return;
+            }
+            getLogger().debug("Took " + new TimeUtil((System.currentTimeMillis() - start) / 1000).toString() +
+                    " to establish a connection for '" + this.datatype + "'.");
+        }
+    }
+
+    /**
+     * Opens a physical connection. Connections to the primary database are retried according to the
+     * {@link ReconnectPolicy} and fail immediately while the {@link CircuitBreaker} is open.
+     *
+     * @param  url           the JDBC URL of a replica, or {@code null} for the primary database
+     * @return               the connection
+     * @throws SQLException  if no connection could be opened
+     */
+    protected Connection newConnection(String url) throws SQLException {
+        if (url != null) {
+            return openConnection(url);
+        }
+        if (this.url == null && !setURL()) {
+            throw new SQLException("Could not set the URL for '" + this.datatype + "'");
+        }
+        CircuitBreaker breaker = this.circuitBreaker;
+        ReconnectPolicy policy = this.reconnectPolicy;
+        int attempt = 0;
+        while (true) {
+            if (breaker != null && !breaker.allowRequest()) {
+                throw new SQLException("The database for '" + this.datatype + "' is unavailable, retrying in "
+                        + breaker.getRemainingOpenTime() + " ms");
+            }
+            attempt++;
+            try {
+                Connection connection = openConnection(this.url);
+                if (breaker != null) {
+                    breaker.recordSuccess();
+                }
+                return connection;
+            } catch (SQLException e) {
+                if (breaker != null) {
+                    breaker.recordFailure(e);
+                }
+                if (policy == null || attempt >= policy.getMaxAttempts() || e.getCause() instanceof ClassNotFoundException) {
+                    throw e;
+                }
+                long delay = policy.getDelay(attempt);
+                getLogger().debug("Connection attempt " + attempt + " for '" + this.datatype + "' failed ("
+                        + e.getMessage() + "), retrying in " + delay + " ms.");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private Connection openConnection(String target) throws SQLException {
         try {
             switch (this.datatype) {
                 case MYSQL:
-                    getLogger().debug("Connecting to MYSQL with URL '" + this.url + "'.");
+                    getLogger().debug("Connecting to MYSQL with URL '" + target + "'.");
                     Class.forName("com.mysql.jdbc.Driver");
-                    this.con = DriverManager.getConnection(this.url, this.username, this.password);
                     break;
                 case H2:
-                    getLogger().debug("Connecting to H2 with URL '" + this.url + "'.");
+                    getLogger().debug("Connecting to H2 with URL '" + target + "'.");
                     Class.forName("org.h2.Driver");
-                    this.con = DriverManager.getConnection(this.url, this.username, this.password);
                     break;
             }
-            this.startup = System.currentTimeMillis() / 1000;
         } catch (ClassNotFoundException e) {
-            getLogger().error("Could not connect to the database due to no driver could be found for '" + this.datatype + "'.");
-            getLogger().debug("Connection attempt took " + new TimeUtil((System.currentTimeMillis() - start) / 1000).toString() + ".");
-            getLogger().stackTrace(e);
-            return;
-        } catch (SQLException e) {
-            getLogger().error("Could not connect to the database for '" + this.datatype + "' due to a SQL Exception.");
-            getLogger().debug("Connection attempt took " + new TimeUtil((System.currentTimeMillis() - start) / 1000).toString() + ".");
-            getLogger().stackTrace(e);
-            return;
+            throw new SQLException("No driver could be found for '" + this.datatype + "'", e);
         }
-        getLogger().debug("Took " + new TimeUtil((System.currentTimeMillis() - start) / 1000).toString() +
-                " to establish a connection for '" + this.datatype + "'.");
+        return DriverManager.getConnection(target, this.username, this.password);
     }
 
+    /**
+     * Closes the results opened by {@link #getResultSet(String)} on the current thread, and closes the connection
+     * if it is unused and keep-alive does not hold it open.
+     */
     public void close() {
         close(false);
     }
 
     public void close(boolean force) {
-        try {
-            if (this.rs != null) {
-                this.rs.close();
-                this.rs = null;
-            }
-            if (this.pStmt != null) {
-                this.pStmt.close();
-                this.pStmt = null;
-            }
-            if (this.stmt != null) {
-                this.stmt.close();
-                this.stmt = null;
+        List<OpenResult> open = this.openResults.get();
+        for (OpenResult result : open) {
+            close(result.resultSet, result.statement);
+            releaseConnection(result.connection);
+        }
+        open.clear();
+        if (this.pooled) {
+            return;
+        }
+        synchronized (this.lock) {
+            if (force || this.users == 0) {
+                closeConnection(force);
             }
-        } catch (SQLException e) {
-            getLogger().stackTrace(e);
         }
+    }
+
+    private void closeConnection(boolean force) {
         if (this.keepAlive && !this.reconnect && !force) {
             if (this.timeout == 0) {
                 return;
@@ -805,8 +2676,10 @@ public class DataManager {
         try {
             getLogger().debug("Closing connection for '" + this.datatype + "'. Uptime: " + new TimeUtil(getUptime()).toString() + ". Queries: " + getQueriesCount() + ".");
             if (this.con != null) {
+                connectionClosed(this.con);
                 this.con.close();
                 this.con = null;
+                this.users = 0;
             }
             if (this.keepAlive && !force) {
                 connect();
@@ -821,13 +2694,123 @@ public class DataManager {
                 " to CLOSE connection for '" + this.datatype + "'.");
     }
 
+    protected PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+        StatementCache cache = null;
+        if (this.statementCacheSize > 0) {
+            synchronized (this.statementCaches) {
+                cache = this.statementCaches.get(connection);
+                if (cache == null) {
+                    cache = new StatementCache(this.statementCacheSize);
+                    this.statementCaches.put(connection, cache);
+                }
+            }
+            PreparedStatement statement = cache.take(sql);
+            if (statement != null) {
+                this.statementCacheHits.incrementAndGet();
+                return statement;
+            }
+            this.statementCacheMisses.incrementAndGet();
+        }
+        return connection.prepareStatement(sql);
+    }
+
+    protected void releaseStatement(Connection connection, String sql, PreparedStatement statement, boolean failed) {
+        if (statement == null) {
+            return;
+        }
+        StatementCache cache;
+        synchronized (this.statementCaches) {
+            cache = this.statementCaches.get(connection);
+        }
+        if (cache != null && !failed) {
+            try {
+                statement.clearParameters();
+                cache.offer(sql, statement);
+                return;
+            } catch (SQLException ignore) {
+            }
+        }
+        close(null, statement);
+    }
+
+    /**
+     * Applies the timeout of the asynchronous query running on this thread, if any, to a statement
+     * and makes it cancellable through the query's future.
+     */
+    protected void statementStarted(Statement statement) throws SQLException {
+        QueryFuture<?> future = QueryFuture.current();
+        if (future != null) {
+            future.statementStarted(statement);
+        }
+    }
+
+    protected void statementFinished(Statement statement) {
+        QueryFuture<?> future = QueryFuture.current();
+        if (future != null && statement != null) {
+            future.statementFinished(statement);
+        }
+    }
+
+    protected void setParameters(PreparedStatement statement, Object... params) throws SQLException {
+        if (params == null) {
+            return;
+        }
+        for (int i = 0; i < params.length; i++) {
+            setParameter(statement, i + 1, params[i]);
+        }
+    }
+
+    protected void setParameter(PreparedStatement statement, int index, Object value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.NULL);
+        } else if (value instanceof Date && !(value instanceof java.sql.Date || value instanceof java.sql.Time)) {
+            statement.setTimestamp(index, new Timestamp(((Date) value).getTime()));
+        } else {
+            statement.setObject(index, value);
+        }
+    }
+
+    /**
+     * Called before a physical connection is closed, to drop the statements cached for it.
+     *
+     * @param connection  the connection that is about to be closed
+     */
+    protected void connectionClosed(Connection connection) {
+        StatementCache cache;
+        synchronized (this.statementCaches) {
+            cache = this.statementCaches.remove(connection);
+        }
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    protected void close(ResultSet resultSet, Statement statement) {
+        try {
+            if (resultSet != null) {
+                resultSet.close();
+            }
+        } catch (SQLException e) {
+            getLogger().stackTrace(e);
+        }
+        try {
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            getLogger().stackTrace(e);
+        }
+    }
+
     public void reconnect() {
         getLogger().debug("Attempting to reconnect connection for '" + this.datatype + "'.");
         long start = System.currentTimeMillis();
-        this.reconnect = true;
-        close();
-        connect();
-        this.reconnect = false;
+        synchronized (this.lock) {
+            this.reconnect = true;
+            close();
+            connect();
+            this.reconnect = false;
+        }
         getLogger().debug("Took " + new TimeUtil((System.currentTimeMillis() - start) / 1000).toString() +
                 " to attempt a reconnection connection for '" + this.datatype + "'.");
     }
@@ -875,4 +2858,78 @@ public class DataManager {
             return "'" + val.toString().replaceAll("'", "''") + "'";
         }
     }
+
+    /**
+     * Reads the result of a query executed by {@link DataManager#query(String, Object[], ResultHandler)}.
+     *
+     * @param <T>  the type of the result
+     */
+    protected interface ResultHandler<T> {
+        T handle(ResultSet resultSet, ResultMetadata metadata) throws SQLException;
+    }
+
+    private static class Transaction {
+        private final Connection connection;
+        private final boolean autoCommit;
+        private final List<Savepoint> savepoints = new ArrayList<Savepoint>();
+        private final Set<String> written = new HashSet<String>();
+
+        Transaction(Connection connection, boolean autoCommit) {
+            this.connection = connection;
+            this.autoCommit = autoCommit;
+        }
+    }
+
+    private static class OpenResult {
+        private final Connection connection;
+        private final Statement statement;
+        private final ResultSet resultSet;
+
+        OpenResult(Connection connection, Statement statement, ResultSet resultSet) {
+            this.connection = connection;
+            this.statement = statement;
+            this.resultSet = resultSet;
+        }
+    }
+
+    private static class RowValuesIterator implements Iterator<Object[]> {
+        private final List<String> columns;
+        private final Iterator<Map<String, Object>> rows;
+        private Map<String, Object> first;
+        private int index = 0;
+
+        RowValuesIterator(Map<String, Object> first, Iterator<Map<String, Object>> rows, List<String> columns) {
+            this.first = first;
+            this.rows = rows;
+            this.columns = columns;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.first != null || this.rows.hasNext();
+        }
+
+        @Override
+        public Object[] next() {
+            Map<String, Object> row = this.first;
+            if (row == null) {
+                row = this.rows.next();
+            }
+            this.first = null;
+            if (row.size() != this.columns.size() || !row.keySet().containsAll(this.columns)) {
+                throw new IllegalArgumentException("Row #" + this.index + " does not have the same columns as the first row.");
+            }
+            this.index++;
+            Object[] values = new Object[this.columns.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = row.get(this.columns.get(i));
+            }
+            return values;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -24,21 +24,67 @@ import java.math.BigInteger;
 import java.sql.Blob;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 
 import com.craftfire.commons.util.ValueType;
 
 
 public class DataRow extends ArrayList<DataField> {
-    public DataField get(String fieldName) {
-        Iterator<DataField> iterator = iterator();
-        while (iterator.hasNext()) {
-            DataField dataField = iterator.next();
-            if (dataField.getName().equalsIgnoreCase(fieldName)) {
-                return dataField;
+    private final ColumnIndex columns;
+
+    public DataRow() {
+        this(null);
+    }
+
+    /**
+     * Creates a row using a column index shared with the other rows of the same result set, so fields
+     * can be looked up by name in constant time.
+     *
+     * @param columns  the column index, or null to look up fields by scanning the row
+     */
+    public DataRow(ColumnIndex columns) {
+        super(columns == null ? 10 : columns.size());
+        this.columns = columns;
+    }
+
+    public ColumnIndex getColumns() {
+        return this.columns;
+    }
+
+    /**
+     * Returns the index of the first field with the given name, ignoring case.
+     *
+     * @param  fieldName  the field name
+     * @return            the index of the field, or -1 if there is no such field
+     */
+    public int getIndex(String fieldName) {
+        if (this.columns != null) {
+            int column = this.columns.indexOf(fieldName);
+            if (column >= 0 && column < size() && get(column).getName().equalsIgnoreCase(fieldName)) {
+                return column;
+            }
+            if (column < 0 && size() == this.columns.size()) {
+                return -1;
             }
         }
-        return null;
+        for (int i = 0; i < size(); i++) {
+            if (get(i).getName().equalsIgnoreCase(fieldName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public DataField get(String fieldName) {
+        int column = getIndex(fieldName);
+        return column < 0 ? null : get(column);
+    }
+
+    public int getIntField(int column) {
+        DataField f = get(column);
+        if (f != null) {
+            return f.getInt();
+        }
+        return 0;
     }
 
     public int getIntField(String fieldName) {
@@ -49,6 +95,14 @@ public class DataRow extends ArrayList<DataField> {
         return 0;
     }
 
+    public long getLongField(int column) {
+        DataField f = get(column);
+        if (f != null) {
+            return f.getLong();
+        }
+        return 0;
+    }
+
     public long getLongField(String fieldName) {
         DataField f = get(fieldName);
         if (f != null) {
@@ -57,6 +111,14 @@ public class DataRow extends ArrayList<DataField> {
         return 0;
     }
 
+    public double getDoubleField(int column) {
+        DataField f = get(column);
+        if (f != null) {
+            return f.getDouble();
+        }
+        return 0;
+    }
+
     public double getDoubleField(String fieldName) {
         DataField f = get(fieldName);
         if (f != null) {
@@ -65,6 +127,14 @@ public class DataRow extends ArrayList<DataField> {
         return 0;
     }
 
+    public float getFloatField(int column) {
+        DataField f = get(column);
+        if (f != null) {
+            return f.getFloat();
+        }
+        return 0;
+    }
+
     public float getFloatField(String fieldName) {
         DataField f = get(fieldName);
         if (f != null) {
@@ -73,6 +143,14 @@ public class DataRow extends ArrayList<DataField> {
         return 0;
     }
 
+    public boolean getBoolField(int column) {
+        DataField f = get(column);
+        if (f != null) {
+            return f.getBool();
+        }
+        return false;
+    }
+
     public boolean getBoolField(String fieldName) {
         DataField f = get(fieldName);
         if (f != null) {
@@ -81,6 +159,14 @@ public class DataRow extends ArrayList<DataField> {
         return false;
     }
 
+    public String getStringField(int column) {
+        DataField f = get(column);
+        if (f != null) {
+            return f.getString();
+        }
+        return null;
+    }
+
     public String getStringField(String fieldName) {
         DataField f = get(fieldName);
         if (f != null) {
@@ -89,6 +175,14 @@ public class DataRow extends ArrayList<DataField> {
         return null;
     }
 
+    public byte[] getBinaryField(int column) {
+        DataField f = get(column);
+        if (f != null) {
+            return f.getBytes();
+        }
+        return null;
+    }
+
     public byte[] getBinaryField(String fieldName) {
         DataField f = get(fieldName);
         if (f != null) {
@@ -97,6 +191,14 @@ public class DataRow extends ArrayList<DataField> {
         return null;
     }
 
+    public Blob getBlobField(int column) {
+        DataField f = get(column);
+        if (f != null) {
+            return f.getBlob();
+        }
+        return null;
+    }
+
     public Blob getBlobField(String fieldName) {
         DataField f = get(fieldName);
         if (f != null) {
@@ -105,6 +207,14 @@ public class DataRow extends ArrayList<DataField> {
         return null;
     }
 
+    public Date getDateField(int column) {
+        DataField f = get(column);
+        if (f != null) {
+            return f.getDate();
+        }
+        return null;
+    }
+
     public Date getDateField(String fieldName) {
         DataField f = get(fieldName);
         if (f != null) {
@@ -113,6 +223,14 @@ public class DataRow extends ArrayList<DataField> {
         return null;
     }
 
+    public BigInteger getBigIntField(int column) {
+        DataField f = get(column);
+        if (f != null) {
+            return f.getBigInt();
+        }
+        return null;
+    }
+
     public BigInteger getBigIntField(String fieldName) {
         DataField f = get(fieldName);
         if (f != null) {
@@ -121,6 +239,14 @@ public class DataRow extends ArrayList<DataField> {
         return null;
     }
 
+    public BigDecimal getDecimalField(int column) {
+        DataField f = get(column);
+        if (f != null) {
+            return f.getDecimal();
+        }
+        return null;
+    }
+
     public BigDecimal getDecimalField(String fieldName) {
         DataField f = get(fieldName);
         if (f != null) {
@@ -129,6 +255,11 @@ public class DataRow extends ArrayList<DataField> {
         return null;
     }
 
+    public boolean isNullField(int column) {
+        DataField f = get(column);
+        return f != null && f.isNull();
+    }
+
     public boolean isNullField(String fieldName) {
         DataField f = get(fieldName);
         return f != null && f.isNull();
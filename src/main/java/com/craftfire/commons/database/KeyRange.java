@@ -0,0 +1,97 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+/**
+ * A range of numeric keys of a table, from {@link #getFrom()} inclusive to {@link #getTo()} exclusive, or without
+ * an upper bound, as returned by {@link DataManager#splitKeyRange(String, String, int)} to page through a table with
+ * several workers.
+ */
+public class KeyRange {
+    private final String table, keyField;
+    private final long from, to;
+    private final boolean bounded;
+
+    public KeyRange(String table, String keyField, long from, long to) {
+        if (from > to) {
+            throw new IllegalArgumentException("The range start (" + from + ") is after its end (" + to + ").");
+        }
+        this.table = table;
+        this.keyField = keyField;
+        this.from = from;
+        this.to = to;
+        this.bounded = true;
+    }
+
+    /**
+     * Creates a range of all keys from {@code from} inclusive, without an upper bound.
+     *
+     * @param table     the table, without prefix
+     * @param keyField  the key field
+     * @param from      the first key
+     */
+    public KeyRange(String table, String keyField, long from) {
+        this.table = table;
+        this.keyField = keyField;
+        this.from = from;
+        this.to = Long.MAX_VALUE;
+        this.bounded = false;
+    }
+
+    /**
+     * Returns the table, without prefix.
+     *
+     * @return the table
+     */
+    public String getTable() {
+        return this.table;
+    }
+
+    public String getKeyField() {
+        return this.keyField;
+    }
+
+    public long getFrom() {
+        return this.from;
+    }
+
+    /**
+     * Returns the end of the range, exclusive. Only meaningful if {@link #hasUpperBound()} is true.
+     *
+     * @return the end of the range
+     */
+    public long getTo() {
+        return this.to;
+    }
+
+    public boolean hasUpperBound() {
+        return this.bounded;
+    }
+
+    public boolean isEmpty() {
+        return this.bounded && this.from == this.to;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyRange " + this.table + "." + this.keyField + " [" + this.from + ", "
+                + (this.bounded ? this.to + ")" : "...)");
+    }
+}
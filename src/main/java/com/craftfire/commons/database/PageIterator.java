@@ -0,0 +1,118 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over the pages of a table, ordered by a key field, returned by {@link DataManager#pages(String, String, int)}.
+ * <p>
+ * Each page is fetched with {@code WHERE key > last key ORDER BY key LIMIT page size}, so every page costs the same
+ * on an indexed key, unlike OFFSET paging. {@link SQLException}s are rethrown wrapped in an {@link IllegalStateException}.
+ */
+public class PageIterator implements Iterator<Results> {
+    private final DataManager dataManager;
+    private final String table, keyField;
+    private final KeyRange range;
+    private final int pageSize;
+    private Object lastKey = null;
+    private Results page = null;
+    private boolean finished = false;
+    private long rows = 0;
+    private int pages = 0;
+
+    protected PageIterator(DataManager dataManager, String table, String keyField, KeyRange range, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Parameter 'pageSize' must be at least 1.");
+        }
+        this.dataManager = dataManager;
+        this.table = table;
+        this.keyField = keyField;
+        this.range = range;
+        this.pageSize = pageSize;
+    }
+
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * Returns the key of the last row read, which can be passed to {@link DataManager#getPage(String, String, Object, int)}
+     * to resume paging later.
+     *
+     * @return the last key, or null if no row was read yet
+     */
+    public Object getLastKey() {
+        return this.lastKey;
+    }
+
+    public long getRowsRead() {
+        return this.rows;
+    }
+
+    public int getPagesRead() {
+        return this.pages;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (this.page == null && !this.finished) {
+            try {
+                this.page = this.dataManager.getPage(this.table, this.keyField, this.lastKey, this.range, this.pageSize);
+            } catch (SQLException e) {
+                this.finished = true;
+                throw new IllegalStateException("Could not read page " + (this.pages + 1) + " of '" + this.table + "'", e);
+            }
+            int size = this.page.getArray().size();
+            if (size == 0) {
+                this.page = null;
+                this.finished = true;
+            } else {
+                DataField key = this.page.getLastResult().get(this.keyField);
+                if (key == null) {
+                    throw new IllegalStateException("The pages of '" + this.table + "' don't contain the key field '"
+                            + this.keyField + "'.");
+                }
+                this.lastKey = key.getValue();
+                this.finished = size < this.pageSize;
+            }
+        }
+        return this.page != null;
+    }
+
+    @Override
+    public Results next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Results next = this.page;
+        this.page = null;
+        this.pages++;
+        this.rows += next.getArray().size();
+        return next;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
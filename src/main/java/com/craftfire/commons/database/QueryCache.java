@@ -0,0 +1,379 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A cache of query results used by {@link DataManager#setQueryCache(QueryCache)}.
+ * <p>
+ * Results are cached per query and parameters for a limited time, and dropped as soon as a statement executed
+ * through the DataManager writes to one of the tables they were read from. Writes whose tables can't be
+ * determined clear the whole cache. Queries whose tables can't be determined are not cached.
+ */
+public class QueryCache {
+    private static final String NAME = "(?:`[^`]+`|\"[^\"]+\"|\\w+)", QUALIFIED_NAME = "((?:" + NAME + "\\.)*" + NAME + ")";
+    private static final Pattern WRITE = Pattern.compile("^\\s*(?:INSERT\\s+(?:IGNORE\\s+)?INTO|REPLACE\\s+INTO|MERGE\\s+INTO"
+            + "|UPDATE(?:\\s+IGNORE)?|DELETE\\s+FROM|TRUNCATE(?:\\s+TABLE)?)\\s+" + QUALIFIED_NAME, Pattern.CASE_INSENSITIVE);
+    private static final Pattern MULTI_TABLE = Pattern.compile("\\bJOIN\\b|^\\s*UPDATE\\s+\\S+\\s*,", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SOURCE = Pattern.compile("\\b(?:FROM|JOIN)\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern TABLE = Pattern.compile("\\G" + QUALIFIED_NAME + "(?:\\s+(?:AS\\s+)?(\\w+))?\\s*(,\\s*)?",
+            Pattern.CASE_INSENSITIVE);
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("where", "join", "left", "right", "inner",
+            "outer", "cross", "natural", "full", "on", "using", "group", "order", "having", "limit", "offset", "union",
+            "for", "lock", "window", "straight_join"));
+    private final int maxSize;
+    private final long ttl;
+    private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final Map<String, Set<Key>> tables = new HashMap<String, Set<Key>>();
+    private long generation = 0, hits = 0, misses = 0, evictions = 0, expirations = 0, invalidations = 0;
+
+    public QueryCache(int maxSize, long ttl, TimeUnit unit) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Parameter 'maxSize' must be at least 1.");
+        }
+        this.maxSize = maxSize;
+        this.ttl = unit.toNanos(ttl);
+    }
+
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    public long getTTL(TimeUnit unit) {
+        return unit.convert(this.ttl, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Looks up the cached result of a query.
+     *
+     * @param  kind    the kind of result, since the same query can be read in different ways
+     * @param  sql     the query
+     * @param  params  the parameters of the query
+     * @return         the cache entry, or null on a miss
+     */
+    protected synchronized Entry get(String kind, String sql, Object[] params) {
+        Key key = new Key(kind, sql, params);
+        Entry entry = this.entries.get(key);
+        if (entry != null && entry.expires - System.nanoTime() <= 0) {
+            remove(key);
+            this.expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            this.misses++;
+        } else {
+            this.hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns a number that changes on every invalidation, to be passed to {@link #put(String, String, Object[], Object, long)}.
+     *
+     * @return the current generation
+     */
+    protected synchronized long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Caches the result of a query, unless the cache was invalidated since {@code generation} was read
+     * (the result may be stale then) or the tables of the query can't be determined.
+     *
+     * @param kind        the kind of result
+     * @param sql         the query
+     * @param params      the parameters of the query
+     * @param value       the result, may be null
+     * @param generation  the generation read before the query was executed
+     */
+    protected synchronized void put(String kind, String sql, Object[] params, Object value, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        Set<String> read = getReadTables(sql);
+        if (read == null) {
+            return;
+        }
+        Key key = new Key(kind, sql, params);
+        remove(key);
+        this.entries.put(key, new Entry(value, read, System.nanoTime() + this.ttl));
+        for (String table : read) {
+            Set<Key> keys = this.tables.get(table);
+            if (keys == null) {
+                keys = new HashSet<Key>();
+                this.tables.put(table, keys);
+            }
+            keys.add(key);
+        }
+        while (this.entries.size() > this.maxSize) {
+            remove(this.entries.keySet().iterator().next());
+            this.evictions++;
+        }
+    }
+
+    /**
+     * Drops the cached results read from the tables a statement writes to, or all results if they can't be determined.
+     *
+     * @param sql  the statement
+     */
+    public synchronized void invalidate(String sql) {
+        Set<String> written = getWrittenTables(sql);
+        if (written == null) {
+            clear();
+            return;
+        }
+        for (String table : written) {
+            invalidateTable(table);
+        }
+    }
+
+    /**
+     * Drops the cached results read from a table.
+     *
+     * @param table  the table name, including the prefix
+     */
+    public synchronized void invalidateTable(String table) {
+        this.generation++;
+        Set<Key> keys = this.tables.remove(normalizeTable(table));
+        if (keys == null) {
+            return;
+        }
+        for (Key key : keys) {
+            Entry entry = this.entries.remove(key);
+            if (entry != null) {
+                unindex(key, entry);
+                this.invalidations++;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        this.generation++;
+        this.invalidations += this.entries.size();
+        this.entries.clear();
+        this.tables.clear();
+    }
+
+    private void remove(Key key) {
+        Entry entry = this.entries.remove(key);
+        if (entry != null) {
+            unindex(key, entry);
+        }
+    }
+
+    private void unindex(Key key, Entry entry) {
+        for (String table : entry.tables) {
+            Set<Key> keys = this.tables.get(table);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    this.tables.remove(table);
+                }
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = this.hits + this.misses;
+        return total == 0 ? 0 : (double) this.hits / total;
+    }
+
+    /**
+     * Returns the number of results dropped because the cache was full.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return this.expirations;
+    }
+
+    /**
+     * Returns the number of results dropped because their tables were written to.
+     *
+     * @return the number of invalidations
+     */
+    public synchronized long getInvalidations() {
+        return this.invalidations;
+    }
+
+    public synchronized void resetStats() {
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+        this.expirations = 0;
+        this.invalidations = 0;
+    }
+
+    /**
+     * Returns the tables a SELECT query reads from, in lower case.
+     *
+     * @param  sql  the query
+     * @return      the tables, or null if the query is not a SELECT or its tables can't be determined
+     */
+    public static Set<String> getReadTables(String sql) {
+        if (!sql.trim().regionMatches(true, 0, "SELECT", 0, 6)) {
+            return null;
+        }
+        Set<String> read = new HashSet<String>();
+        Matcher source = SOURCE.matcher(sql);
+        Matcher table = TABLE.matcher(sql);
+        int position = 0;
+        while (position < sql.length() && source.find(position)) {
+            position = source.end();
+            while (table.find(position)) {
+                read.add(normalizeTable(table.group(1)));
+                position = table.end();
+                String alias = table.group(2);
+                if (table.group(3) == null || (alias != null && KEYWORDS.contains(alias.toLowerCase(Locale.ENGLISH)))) {
+                    break;
+                }
+            }
+        }
+        return read.isEmpty() ? null : read;
+    }
+
+    /**
+     * Returns the table an INSERT, REPLACE, MERGE, UPDATE, DELETE or TRUNCATE statement writes to, in lower case.
+     *
+     * @param  sql  the statement
+     * @return      the tables, or null if they can't be determined
+     */
+    public static Set<String> getWrittenTables(String sql) {
+        Matcher matcher = WRITE.matcher(sql);
+        if (!matcher.find() || MULTI_TABLE.matcher(sql).find()) {
+            return null;
+        }
+        Set<String> written = new HashSet<String>();
+        written.add(normalizeTable(matcher.group(1)));
+        return written;
+    }
+
+    private static String normalizeTable(String table) {
+        String name = table;
+        char last = name.charAt(name.length() - 1);
+        if (last == '`' || last == '"') {
+            name = name.substring(name.lastIndexOf(last, name.length() - 2) + 1, name.length() - 1);
+        } else {
+            name = name.substring(name.lastIndexOf('.') + 1);
+        }
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    protected static class Entry {
+        private final Object value;
+        private final Set<String> tables;
+        private final long expires;
+
+        Entry(Object value, Set<String> tables, long expires) {
+            this.value = value;
+            this.tables = tables;
+            this.expires = expires;
+        }
+
+        public Object getValue() {
+            return this.value;
+        }
+    }
+
+    /**
+     * Collapses whitespace outside of quoted literals and identifiers. Queries containing a backslash are kept as
+     * they are, since whether it escapes a quote depends on the database.
+     */
+    static String normalizeWhitespace(String sql) {
+        if (sql.indexOf('\\') >= 0) {
+            return sql;
+        }
+        StringBuilder normalized = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            if (quote == 0 && (c == '\'' || c == '"' || c == '`')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+
+    private static class Key {
+        private final String kind, sql;
+        private final Object[] params;
+        private final int hash;
+
+        Key(String kind, String sql, Object[] params) {
+            this.kind = kind;
+            this.sql = normalizeWhitespace(sql.trim());
+            this.params = params == null ? new Object[0] : params.clone();
+            this.hash = (kind.hashCode() * 31 + this.sql.hashCode()) * 31 + Arrays.deepHashCode(this.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this.hash == other.hash && this.kind.equals(other.kind) && this.sql.equals(other.sql)
+                    && Arrays.deepEquals(this.params, other.params);
+        }
+    }
+}
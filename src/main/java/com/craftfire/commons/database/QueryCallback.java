@@ -0,0 +1,39 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+/**
+ * Receives the outcome of a query submitted with one of the asynchronous {@link DataManager} methods.
+ * <p>
+ * The callback is called on the thread that executed (or cancelled) the query, not on the thread that submitted it.
+ *
+ * @param <T>  the type of the query result
+ */
+public interface QueryCallback<T> {
+    void onSuccess(T result);
+
+    /**
+     * Called if the query failed or was cancelled.
+     *
+     * @param error  the {@link java.sql.SQLException} thrown by the query, or a
+     *               {@link java.util.concurrent.CancellationException} if it was cancelled
+     */
+    void onFailure(Throwable error);
+}
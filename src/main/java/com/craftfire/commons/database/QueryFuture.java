@@ -0,0 +1,158 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A query running asynchronously on the executor of a {@link DataManager}.
+ * <p>
+ * Cancelling the future while the query runs cancels the JDBC statement, so the database stops working on it.
+ *
+ * @param <T>  the type of the query result
+ */
+public class QueryFuture<T> extends FutureTask<T> {
+    private static final ThreadLocal<QueryFuture<?>> CURRENT = new ThreadLocal<QueryFuture<?>>();
+    private final String query;
+    private final int timeout;
+    private final QueryCallback<T> callback;
+    private final Object statementLock = new Object();
+    private Statement statement = null;
+
+    protected QueryFuture(String query, int timeout, Callable<T> callable, QueryCallback<T> callback) {
+        super(callable);
+        this.query = query;
+        this.timeout = timeout;
+        this.callback = callback;
+    }
+
+    /**
+     * Returns the query running on the current thread, if it was submitted asynchronously.
+     *
+     * @return the current query, or null
+     */
+    protected static QueryFuture<?> current() {
+        return CURRENT.get();
+    }
+
+    public String getQuery() {
+        return this.query;
+    }
+
+    /**
+     * Returns the query timeout passed to {@link Statement#setQueryTimeout(int)}, in seconds.
+     *
+     * @return the timeout in seconds, 0 for no timeout
+     */
+    public int getTimeout() {
+        return this.timeout;
+    }
+
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        try {
+            super.run();
+        } finally {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Applies the timeout to a statement about to be executed for this query, and remembers it for cancellation.
+     *
+     * @param  statement     the statement
+     * @throws SQLException  if the query was cancelled, so the statement must not be executed, or if the timeout
+     *                       could not be set
+     */
+    protected void statementStarted(Statement statement) throws SQLException {
+        synchronized (this.statementLock) {
+            if (isCancelled()) {
+                throw new SQLException("The query was cancelled: " + this.query);
+            }
+            if (this.timeout > 0) {
+                statement.setQueryTimeout(this.timeout);
+            }
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * Clears the timeout of a statement after it was executed, so it can be reused by other queries. Once this
+     * returns, cancelling the future no longer touches the statement.
+     *
+     * @param statement  the statement
+     */
+    protected void statementFinished(Statement statement) {
+        synchronized (this.statementLock) {
+            this.statement = null;
+        }
+        if (this.timeout > 0) {
+            try {
+                statement.setQueryTimeout(0);
+            } catch (SQLException ignore) {
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            // the lock keeps the statement from being released to the statement cache while it is cancelled
+            synchronized (this.statementLock) {
+                if (this.statement != null) {
+                    try {
+                        this.statement.cancel();
+                    } catch (SQLException ignore) {
+                    }
+                }
+            }
+        }
+        return cancelled;
+    }
+
+    @Override
+    protected void done() {
+        if (this.callback == null) {
+            return;
+        }
+        T result;
+        try {
+            result = get();
+        } catch (CancellationException e) {
+            this.callback.onFailure(e);
+            return;
+        } catch (ExecutionException e) {
+            this.callback.onFailure(e.getCause());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.callback.onFailure(e);
+            return;
+        }
+        this.callback.onSuccess(result);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded log of the queries executed by a {@link DataManager}.
+ * <p>
+ * The most recent queries are kept in a ring buffer, and the latency of every query is recorded
+ * in the {@link QueryStats} of its shape, that is the query with its literals replaced by {@code ?}.
+ */
+public class QueryLog {
+    private final String[] recent;
+    private final long[] sequences;
+    private final int maxShapes;
+    private final ConcurrentMap<String, QueryStats> stats = new ConcurrentHashMap<String, QueryStats>();
+    private final AtomicLong droppedShapes = new AtomicLong();
+    private long sequence = 0;
+
+    public QueryLog(int capacity, int maxShapes) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Parameter 'capacity' must not be negative.");
+        }
+        this.recent = new String[capacity];
+        this.sequences = new long[capacity];
+        this.maxShapes = maxShapes;
+    }
+
+    public int getCapacity() {
+        return this.recent.length;
+    }
+
+    public int getMaxShapes() {
+        return this.maxShapes;
+    }
+
+    /**
+     * Adds a query to the recently executed queries.
+     *
+     * @param  query  the query
+     * @return        the sequence number of the query
+     */
+    protected long add(String query) {
+        synchronized (this.recent) {
+            long number = ++this.sequence;
+            if (this.recent.length > 0) {
+                int slot = (int) (number % this.recent.length);
+                this.recent[slot] = query;
+                this.sequences[slot] = number;
+            }
+            return number;
+        }
+    }
+
+    /**
+     * Records the latency of a query in the statistics of its shape.
+     *
+     * @param query  the query
+     * @param nanos  how long the query took, in nanoseconds
+     * @param rows   the number of rows returned or affected
+     */
+    protected void record(String query, long nanos, long rows) {
+        String shape = normalize(query);
+        QueryStats queryStats = this.stats.get(shape);
+        if (queryStats == null) {
+            if (this.stats.size() >= this.maxShapes) {
+                this.droppedShapes.incrementAndGet();
+                return;
+            }
+            queryStats = new QueryStats(shape);
+            QueryStats existing = this.stats.putIfAbsent(shape, queryStats);
+            if (existing != null) {
+                queryStats = existing;
+            }
+        }
+        queryStats.record(nanos, rows);
+    }
+
+    /**
+     * Returns the recently executed queries, oldest first, keyed by their sequence number.
+     *
+     * @return the recent queries
+     */
+    public Map<Long, String> getRecent() {
+        Map<Long, String> queries = new LinkedHashMap<Long, String>();
+        synchronized (this.recent) {
+            long first = Math.max(1, this.sequence - this.recent.length + 1);
+            for (long number = first; number <= this.sequence; number++) {
+                int slot = (int) (number % this.recent.length);
+                if (this.sequences[slot] == number) {
+                    queries.put(number, this.recent[slot]);
+                }
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Returns the number of queries logged since the log was created.
+     *
+     * @return the number of queries
+     */
+    public long getSequence() {
+        synchronized (this.recent) {
+            return this.sequence;
+        }
+    }
+
+    public Map<String, QueryStats> getStats() {
+        return Collections.unmodifiableMap(this.stats);
+    }
+
+    /**
+     * Returns the statistics of the shape of a query.
+     *
+     * @param  query  the query, with or without literals
+     * @return        the statistics, or null if no query of that shape was recorded
+     */
+    public QueryStats getStats(String query) {
+        return this.stats.get(normalize(query));
+    }
+
+    /**
+     * Returns the statistics of all shapes, slowest (by total time) first.
+     *
+     * @return the statistics
+     */
+    public List<QueryStats> getSlowest() {
+        List<QueryStats> list = new ArrayList<QueryStats>(this.stats.values());
+        Collections.sort(list, new Comparator<QueryStats>() {
+            @Override
+            public int compare(QueryStats first, QueryStats second) {
+                long a = first.getTotalTime(), b = second.getTotalTime();
+                return a > b ? -1 : a < b ? 1 : 0;
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Returns the number of query shapes that were not recorded because {@link #getMaxShapes()} was reached.
+     *
+     * @return the number of dropped shapes
+     */
+    public long getDroppedShapes() {
+        return this.droppedShapes.get();
+    }
+
+    public void reset() {
+        this.stats.clear();
+        this.droppedShapes.set(0);
+    }
+
+    /**
+     * Replaces the string and numeric literals of a query with {@code ?} and collapses whitespace, so queries
+     * differing only in their values have the same shape.
+     *
+     * @param  query  the query
+     * @return        the query shape
+     */
+    public static String normalize(String query) {
+        StringBuilder shape = new StringBuilder(query.length());
+        int length = query.length();
+        int i = 0;
+        while (i < length) {
+            char c = query.charAt(i);
+            if (c == '\'' || c == '"') {
+                i = skipQuoted(query, i, c);
+                shape.append('?');
+            } else if (c == '`') {
+                int end = query.indexOf('`', i + 1);
+                end = end < 0 ? length : end + 1;
+                shape.append(query, i, end);
+                i = end;
+            } else if (Character.isDigit(c) && !isWordChar(shape)) {
+                while (i < length && (Character.isLetterOrDigit(query.charAt(i)) || query.charAt(i) == '.')) {
+                    i++;
+                }
+                shape.append('?');
+            } else if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(query.charAt(i))) {
+                    i++;
+                }
+                if (shape.length() > 0 && i < length) {
+                    shape.append(' ');
+                }
+            } else {
+                shape.append(c);
+                i++;
+            }
+        }
+        return shape.toString();
+    }
+
+    private static int skipQuoted(String query, int start, char quote) {
+        int i = start + 1;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                if (i + 1 < query.length() && query.charAt(i + 1) == quote) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return query.length();
+    }
+
+    private static boolean isWordChar(StringBuilder shape) {
+        if (shape.length() == 0) {
+            return false;
+        }
+        char last = shape.charAt(shape.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_';
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+/**
+ * Latency statistics of all queries sharing the same shape, as recorded by {@link QueryLog}.
+ * <p>
+ * Latencies are kept in a log-linear histogram, so percentiles are accurate to about 12%.
+ */
+public class QueryStats {
+    private static final int LINEAR = 16, SUB_BUCKETS = 8, SUB_BITS = 3;
+    private final String shape;
+    private final long[] buckets = new long[LINEAR + (64 - 4) * SUB_BUCKETS];
+    private long count, totalTime, maxTime, rows;
+
+    protected QueryStats(String shape) {
+        this.shape = shape;
+    }
+
+    /**
+     * Returns the normalized query, with literals replaced by {@code ?}.
+     *
+     * @return the query shape
+     */
+    public String getShape() {
+        return this.shape;
+    }
+
+    protected synchronized void record(long nanos, long rows) {
+        long micros = Math.max(0, nanos / 1000);
+        this.buckets[bucket(micros)]++;
+        this.count++;
+        this.totalTime += nanos;
+        this.maxTime = Math.max(this.maxTime, nanos);
+        this.rows += Math.max(0, rows);
+    }
+
+    public synchronized long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Returns the number of rows returned or affected by the queries.
+     *
+     * @return the number of rows
+     */
+    public synchronized long getRows() {
+        return this.rows;
+    }
+
+    /**
+     * Returns the total time spent on the queries, in nanoseconds.
+     *
+     * @return the total time in nanoseconds
+     */
+    public synchronized long getTotalTime() {
+        return this.totalTime;
+    }
+
+    public synchronized long getAverageTime() {
+        return this.count == 0 ? 0 : this.totalTime / this.count;
+    }
+
+    public synchronized long getMaxTime() {
+        return this.maxTime;
+    }
+
+    /**
+     * Returns the latency below which the given fraction of the queries completed, in nanoseconds.
+     *
+     * @param  percentile  the percentile, between 0 and 1
+     * @return             the latency in nanoseconds
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (this.count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(1, Math.max(0, percentile)) * this.count));
+        long seen = 0;
+        for (int i = 0; i < this.buckets.length; i++) {
+            seen += this.buckets[i];
+            if (seen >= rank) {
+                return Math.min(this.maxTime, upperBound(i) * 1000);
+            }
+        }
+        return this.maxTime;
+    }
+
+    public long getP50() {
+        return getPercentile(0.5);
+    }
+
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+
+    private static int bucket(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket + 1;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return (1L << exponent) + ((long) (sub + 1) << (exponent - SUB_BITS));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "QueryStats '" + this.shape + "': " + this.count + " queries, " + this.rows + " rows, p50 "
+                + (getP50() / 1000) + " us, p99 " + (getP99() / 1000) + " us, max " + (this.maxTime / 1000) + " us";
+    }
+}
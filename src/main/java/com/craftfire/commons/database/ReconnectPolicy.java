@@ -0,0 +1,117 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how often and how fast {@link DataManager} retries to open a connection, using exponential backoff with
+ * random jitter.
+ */
+public class ReconnectPolicy {
+    private int maxAttempts = 3;
+    private long initialDelay = 100, maxDelay = 10000;
+    private double multiplier = 2, jitter = 0.5;
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * Sets how many times a connection is attempted before giving up, 1 disables retrying.
+     *
+     * @param maxAttempts  the number of attempts
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getInitialDelay() {
+        return this.initialDelay;
+    }
+
+    /**
+     * Sets the delay in milliseconds before the first retry.
+     *
+     * @param initialDelay  the delay in milliseconds
+     */
+    public void setInitialDelay(long initialDelay) {
+        this.initialDelay = Math.max(0, initialDelay);
+    }
+
+    public long getMaxDelay() {
+        return this.maxDelay;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = Math.max(0, maxDelay);
+    }
+
+    public double getMultiplier() {
+        return this.multiplier;
+    }
+
+    /**
+     * Sets the factor the delay grows by after each failed attempt.
+     *
+     * @param multiplier  the factor, at least 1
+     */
+    public void setMultiplier(double multiplier) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1");
+        }
+        this.multiplier = multiplier;
+    }
+
+    public double getJitter() {
+        return this.jitter;
+    }
+
+    /**
+     * Sets the fraction of each delay that is randomized, so clients don't retry in lockstep.
+     * With a jitter of 0.5, a delay of 100 ms becomes a random delay between 50 and 100 ms.
+     *
+     * @param jitter  the fraction, between 0 and 1
+     */
+    public void setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.jitter = jitter;
+    }
+
+    /**
+     * Returns the delay before the next attempt.
+     *
+     * @param  attempt  the number of failed attempts so far, starting at 1
+     * @return          the delay in milliseconds
+     */
+    public long getDelay(int attempt) {
+        double delay = this.initialDelay * Math.pow(this.multiplier, Math.max(0, attempt - 1));
+        delay = Math.min(delay, this.maxDelay);
+        if (this.jitter > 0) {
+            delay -= delay * this.jitter * ThreadLocalRandom.current().nextDouble();
+        }
+        return (long) delay;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read replica of the database, added with {@link DataManager#addReplica(String)}.
+ * <p>
+ * Each replica has its own {@link ConnectionPool} and keeps a moving average of its query latency.
+ */
+public class Replica {
+    private final String url;
+    private final ConnectionPool pool;
+    private final AtomicLong queries = new AtomicLong(), failures = new AtomicLong();
+    private volatile long averageLatency = 0, downUntil = 0;
+
+    protected Replica(DataManager dataManager, String url) {
+        this.url = url;
+        this.pool = new ConnectionPool(dataManager, url);
+    }
+
+    public String getURL() {
+        return this.url;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return this.pool;
+    }
+
+    public long getQueries() {
+        return this.queries.get();
+    }
+
+    /**
+     * Returns how many times no connection to the replica could be made.
+     *
+     * @return the number of failures
+     */
+    public long getFailures() {
+        return this.failures.get();
+    }
+
+    /**
+     * Returns the exponential moving average of the query latency, in nanoseconds.
+     *
+     * @return the average latency in nanoseconds, 0 if no query was made yet
+     */
+    public long getAverageLatency() {
+        return this.averageLatency;
+    }
+
+    /**
+     * Returns whether the replica can be used, that is its pool is open and it is not marked down.
+     *
+     * @return true if the replica is available
+     */
+    public boolean isAvailable() {
+        return !this.pool.isClosed() && System.currentTimeMillis() >= this.downUntil;
+    }
+
+    protected void recordLatency(long nanos) {
+        this.queries.incrementAndGet();
+        long average = this.averageLatency;
+        this.averageLatency = average == 0 ? nanos : average + (nanos - average) / 5;
+    }
+
+    /**
+     * Stops routing queries to the replica for a while after a connection failure.
+     *
+     * @param millis  how long to skip the replica, in milliseconds
+     */
+    protected void markDown(long millis) {
+        this.failures.incrementAndGet();
+        this.downUntil = System.currentTimeMillis() + millis;
+    }
+
+    @Override
+    public String toString() {
+        return "Replica " + this.url + " (" + getQueries() + " queries, average " + (this.averageLatency / 1000) + " us)";
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Writes rows of a result set as CSV or NDJSON. The way each column is written is decided once from the metadata.
+ */
+public class ResultExporter {
+    private static final int TEXT = 0, NUMBER = 1, BOOLEAN = 2, BINARY = 3;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private final ExportFormat format;
+    private final String[] names;
+    private final int[] kinds;
+
+    public ResultExporter(ExportFormat format, ResultMetadata metadata) {
+        this.format = format;
+        this.names = new String[metadata.getColumnCount()];
+        this.kinds = new int[this.names.length];
+        for (int i = 0; i < this.names.length; i++) {
+            this.names[i] = metadata.getName(i + 1);
+            this.kinds[i] = kind(metadata.getSQLType(i + 1), metadata.getSize(i + 1));
+        }
+    }
+
+    public ExportFormat getFormat() {
+        return this.format;
+    }
+
+    /**
+     * Writes the header row for CSV, nothing for NDJSON.
+     *
+     * @param  writer       the writer
+     * @throws IOException  if the header could not be written
+     */
+    public void writeHeader(Writer writer) throws IOException {
+        if (this.format != ExportFormat.CSV) {
+            return;
+        }
+        for (int i = 0; i < this.names.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeCSV(writer, this.names[i]);
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * Writes the current row of a result set.
+     *
+     * @param  resultSet     the result set, positioned on a row
+     * @param  writer        the writer
+     * @throws SQLException  if the row could not be read
+     * @throws IOException   if the row could not be written
+     */
+    public void writeRow(ResultSet resultSet, Writer writer) throws SQLException, IOException {
+        boolean json = this.format == ExportFormat.NDJSON;
+        if (json) {
+            writer.write('{');
+        }
+        for (int i = 0; i < this.names.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            if (json) {
+                writeJSON(writer, this.names[i]);
+                writer.write(':');
+            }
+            int column = i + 1;
+            switch (this.kinds[i]) {
+                case BOOLEAN:
+                    boolean bool = resultSet.getBoolean(column);
+                    writeRaw(writer, resultSet.wasNull() ? null : String.valueOf(bool), json);
+                    break;
+                case NUMBER:
+                    String number = resultSet.getString(column);
+                    if (json && number != null && (number.equals("NaN") || number.contains("Infinity"))) {
+                        number = null;
+                    }
+                    writeRaw(writer, number, json);
+                    break;
+                case BINARY:
+                    byte[] bytes = resultSet.getBytes(column);
+                    writeText(writer, bytes == null ? null : toHex(bytes), json);
+                    break;
+                default:
+                    writeText(writer, resultSet.getString(column), json);
+            }
+        }
+        writer.write(json ? "}\n" : "\n");
+    }
+
+    private static void writeRaw(Writer writer, String value, boolean json) throws IOException {
+        if (value != null) {
+            writer.write(value);
+        } else if (json) {
+            writer.write("null");
+        }
+    }
+
+    private static void writeText(Writer writer, String value, boolean json) throws IOException {
+        if (value == null) {
+            writeRaw(writer, null, json);
+        } else if (json) {
+            writeJSON(writer, value);
+        } else {
+            writeCSV(writer, value);
+        }
+    }
+
+    private static void writeCSV(Writer writer, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private static void writeJSON(Writer writer, String value) throws IOException {
+        writer.write('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            writer.write(value, start, i - start);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    writer.write("\\u00");
+                    writer.write(HEX[c >> 4]);
+                    writer.write(HEX[c & 0xF]);
+            }
+        }
+        writer.write(value, start, value.length() - start);
+        writer.write('"');
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static int kind(int sqltype, int size) {
+        switch (sqltype) {
+            case Types.TINYINT:
+                return size <= 1 ? BOOLEAN : NUMBER;
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.FLOAT:
+            case Types.REAL:
+            case Types.DOUBLE:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return NUMBER;
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            case Types.BIT:
+                return size <= 1 ? BOOLEAN : BINARY;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BINARY;
+            default:
+                return TEXT;
+        }
+    }
+}
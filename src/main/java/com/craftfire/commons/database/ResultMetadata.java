@@ -0,0 +1,107 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+import com.craftfire.commons.util.ValueType;
+
+/**
+ * The resolved column metadata of a result set, read once from the driver and cached by {@link DataManager}
+ * for queries with the same SQL text.
+ * <p>
+ * Like {@link ResultSetMetaData}, columns are numbered from 1.
+ */
+public class ResultMetadata {
+    private final String[] names, tables, classNames;
+    private final int[] sqltypes, sizes;
+    private final boolean[] unsigned;
+    private final ValueType[] types;
+    private final ColumnIndex columns;
+
+    public ResultMetadata(ResultSetMetaData metaData) throws SQLException {
+        int count = metaData.getColumnCount();
+        this.names = new String[count];
+        this.tables = new String[count];
+        this.classNames = new String[count];
+        this.sqltypes = new int[count];
+        this.sizes = new int[count];
+        this.unsigned = new boolean[count];
+        this.types = new ValueType[count];
+        for (int i = 0; i < count; i++) {
+            this.names[i] = metaData.getColumnLabel(i + 1);
+            this.tables[i] = metaData.getTableName(i + 1);
+            this.classNames[i] = metaData.getColumnClassName(i + 1);
+            this.sqltypes[i] = metaData.getColumnType(i + 1);
+            this.sizes[i] = metaData.getColumnDisplaySize(i + 1);
+            this.unsigned[i] = metaData.getColumnTypeName(i + 1).contains("UNSIGNED");
+            this.types[i] = DataField.sqlTypeParse(this.sqltypes[i], this.sizes[i]);
+        }
+        this.columns = new ColumnIndex(this.names);
+    }
+
+    public int getColumnCount() {
+        return this.names.length;
+    }
+
+    /**
+     * Returns the index of the column names, shared by the rows read with this metadata.
+     *
+     * @return the column index
+     */
+    public ColumnIndex getColumns() {
+        return this.columns;
+    }
+
+    public String getName(int column) {
+        return this.names[column - 1];
+    }
+
+    public String getTable(int column) {
+        return this.tables[column - 1];
+    }
+
+    public String getColumnClassName(int column) {
+        return this.classNames[column - 1];
+    }
+
+    public int getSQLType(int column) {
+        return this.sqltypes[column - 1];
+    }
+
+    public int getSize(int column) {
+        return this.sizes[column - 1];
+    }
+
+    public boolean isUnsigned(int column) {
+        return this.unsigned[column - 1];
+    }
+
+    /**
+     * Returns the ValueType of the non-null values of a column.
+     *
+     * @param  column  the column, starting at 1
+     * @return         the ValueType
+     */
+    public ValueType getType(int column) {
+        return this.types[column - 1];
+    }
+}
@@ -20,7 +20,6 @@
 package com.craftfire.commons.database;
 
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -28,18 +27,23 @@ import java.util.List;
 public class Results {
     private final String query;
     private final int rows;
+    private final ColumnIndex columns;
     private List<DataRow> array;
 
     public Results(String query, ResultSet rs) throws SQLException {
+        this(query, rs, new ResultMetadata(rs.getMetaData()));
+    }
+
+    public Results(String query, ResultSet rs, ResultMetadata metadata) throws SQLException {
         this.query = query;
         this.array = new ArrayList<DataRow>();
 
-        ResultSetMetaData metaData = rs.getMetaData();
-        this.rows = metaData.getColumnCount();
+        this.rows = metadata.getColumnCount();
+        this.columns = metadata.getColumns();
         while (rs.next()) {
-            DataRow data = new DataRow();
+            DataRow data = new DataRow(this.columns);
             for (int i = 1; i <= this.rows; i++) {
-                data.add(new DataField(i, rs));
+                data.add(new DataField(i, rs, metadata));
             }
             this.array.add(data);
         }
@@ -49,6 +53,15 @@ public class Results {
         return this.rows;
     }
 
+    /**
+     * Returns the column index shared by all rows of these results.
+     *
+     * @return the column index
+     */
+    public ColumnIndex getColumns() {
+        return this.columns;
+    }
+
     public String getQuery() {
         return this.query;
     }
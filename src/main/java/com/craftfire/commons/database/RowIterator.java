@@ -0,0 +1,131 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator reading rows lazily from an open ResultSet, returned by {@link DataManager#stream(String, int, Object...)}.
+ * <p>
+ * The iterator holds a database connection until it is exhausted or {@link #close()} is called, so it should be used
+ * in a try-with-resources block. {@link SQLException}s while reading are rethrown wrapped in an {@link IllegalStateException}.
+ */
+public class RowIterator implements Iterator<DataRow>, Closeable {
+    private final DataManager dataManager;
+    private final String query;
+    private final Connection connection;
+    private final Statement statement;
+    private final ResultSet resultSet;
+    private final ResultMetadata metadata;
+    private boolean fetched = false, hasNext = false, closed = false;
+    private long rows = 0;
+    private final long start = System.nanoTime();
+
+    protected RowIterator(DataManager dataManager, String query, Connection connection, Statement statement, ResultSet resultSet,
+            ResultMetadata metadata) {
+        this.dataManager = dataManager;
+        this.query = query;
+        this.connection = connection;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.metadata = metadata;
+    }
+
+    public String getQuery() {
+        return this.query;
+    }
+
+    /**
+     * Returns the number of rows read so far.
+     *
+     * @return the number of rows read
+     */
+    public long getRowsRead() {
+        return this.rows;
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (this.closed) {
+            return false;
+        }
+        if (!this.fetched) {
+            try {
+                this.hasNext = this.resultSet.next();
+            } catch (SQLException e) {
+                close();
+                throw new IllegalStateException("Could not read the next row of '" + this.query + "'", e);
+            }
+            this.fetched = true;
+            if (!this.hasNext) {
+                close();
+            }
+        }
+        return this.hasNext;
+    }
+
+    @Override
+    public DataRow next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        this.fetched = false;
+        try {
+            DataRow row = new DataRow(this.metadata.getColumns());
+            for (int i = 1; i <= this.metadata.getColumnCount(); i++) {
+                row.add(new DataField(i, this.resultSet, this.metadata));
+            }
+            this.rows++;
+            return row;
+        } catch (SQLException e) {
+            close();
+            throw new IllegalStateException("Could not read row #" + this.rows + " of '" + this.query + "'", e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Closes the ResultSet and gives the connection back to the DataManager. Calling it more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.dataManager.close(this.resultSet, this.statement);
+        this.dataManager.releaseDedicatedConnection(this.connection);
+        this.dataManager.queryFinished(this.query, System.nanoTime() - this.start, this.rows);
+    }
+}
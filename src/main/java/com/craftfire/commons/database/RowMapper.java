@@ -0,0 +1,452 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Blob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps rows of a result set to objects of a class.
+ * <p>
+ * Columns are bound to setters, fields or the parameters of a constructor annotated with {@link Column} once per
+ * result shape, and the bindings are cached as {@link MethodHandle}s. Each row is then mapped by reading the
+ * columns with the typed {@link ResultSet} getters and invoking the handles, without reflection or name lookups,
+ * and without boxing primitive values set through fields and setters.
+ * <p>
+ * Columns without a matching field or setter are ignored.
+ *
+ * @param <T>  the type of the mapped objects
+ */
+public class RowMapper<T> {
+    // kept with each class rather than in a map, so mapping a plugin's classes doesn't keep its class loader alive
+    private static final ClassValue<RowMapper<?>> MAPPERS = new ClassValue<RowMapper<?>>() {
+        @Override
+        protected RowMapper<?> computeValue(Class<?> type) {
+            return create(type);
+        }
+    };
+    private static final int INT = 0, LONG = 1, DOUBLE = 2, FLOAT = 3, BOOLEAN = 4, SHORT = 5, BYTE = 6, OBJECT = 7;
+    private static final int STRING = 0, BOXED = 1, BIG_DECIMAL = 2, BIG_INTEGER = 3, DATE = 4, SQL_DATE = 5, TIME = 6,
+            TIMESTAMP = 7, BYTES = 8, BLOB = 9, ENUM = 10, ANY = 11;
+    private final Class<T> type;
+    private final Map<String, Target> targets = new HashMap<String, Target>();
+    private final MethodHandle constructor;
+    private final String[] parameterNames;
+    private final Class<?>[] parameterTypes;
+    private final ConcurrentMap<String, Binding> bindings = new ConcurrentHashMap<String, Binding>();
+
+    /**
+     * Creates a mapper for a class, which must have a no-argument constructor or a constructor with all
+     * parameters annotated with {@link Column}.
+     *
+     * @param  type                      the class
+     * @throws IllegalArgumentException  if the class has no usable constructor
+     */
+    public RowMapper(Class<T> type) {
+        this.type = type;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Constructor<?> annotated = null;
+            Constructor<?> noArgs = null;
+            for (Constructor<?> candidate : type.getDeclaredConstructors()) {
+                if (candidate.getParameterTypes().length == 0) {
+                    noArgs = candidate;
+                } else if (annotated == null && columnNames(candidate.getParameterAnnotations()) != null) {
+                    annotated = candidate;
+                }
+            }
+            Constructor<?> chosen = annotated != null ? annotated : noArgs;
+            if (chosen == null) {
+                throw new IllegalArgumentException(type.getName() + " has no constructor without parameters or with @Column parameters");
+            }
+            chosen.setAccessible(true);
+            this.parameterTypes = chosen.getParameterTypes();
+            this.parameterNames = annotated == null ? new String[0] : columnNames(annotated.getParameterAnnotations());
+            this.constructor = lookup.unreflectConstructor(chosen)
+                    .asSpreader(Object[].class, this.parameterTypes.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+            for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    addTarget(field.getName(), field.getAnnotation(Column.class), lookup.unreflectSetter(field), field.getType(), 0);
+                }
+            }
+            for (Method method : type.getMethods()) {
+                if (Modifier.isStatic(method.getModifiers()) || method.getParameterTypes().length != 1
+                        || !method.getName().startsWith("set") || method.getName().length() == 3) {
+                    continue;
+                }
+                addTarget(method.getName().substring(3), method.getAnnotation(Column.class), lookup.unreflect(method),
+                        method.getParameterTypes()[0], 1);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot access the members of " + type.getName(), e);
+        }
+    }
+
+    /**
+     * Returns the shared mapper for a class, creating it on first use.
+     *
+     * @param  type  the class
+     * @return       the mapper
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> RowMapper<T> of(Class<T> type) {
+        return (RowMapper<T>) MAPPERS.get(type);
+    }
+
+    private static <T> RowMapper<T> create(Class<T> type) {
+        return new RowMapper<T>(type);
+    }
+
+    public Class<T> getType() {
+        return this.type;
+    }
+
+    /**
+     * Returns the number of result shapes bound so far.
+     *
+     * @return the number of cached bindings
+     */
+    public int getBindingCount() {
+        return this.bindings.size();
+    }
+
+    /**
+     * Maps all remaining rows of a result set.
+     *
+     * @param  resultSet     the result set
+     * @param  metadata      the metadata of the result set
+     * @return               the mapped objects
+     * @throws SQLException  if a database error occurs, or a value could not be set
+     */
+    public List<T> mapAll(ResultSet resultSet, ResultMetadata metadata) throws SQLException {
+        Binding binding = bind(metadata);
+        List<T> list = new ArrayList<T>();
+        while (resultSet.next()) {
+            list.add(map(resultSet, binding));
+        }
+        return list;
+    }
+
+    /**
+     * Maps the current row of a result set.
+     *
+     * @param  resultSet     the result set, positioned on a row
+     * @param  metadata      the metadata of the result set
+     * @return               the mapped object
+     * @throws SQLException  if a database error occurs, or a value could not be set
+     */
+    public T map(ResultSet resultSet, ResultMetadata metadata) throws SQLException {
+        return map(resultSet, bind(metadata));
+    }
+
+    public T map(ResultSet resultSet) throws SQLException {
+        return map(resultSet, new ResultMetadata(resultSet.getMetaData()));
+    }
+
+    private Binding bind(ResultMetadata metadata) throws SQLException {
+        StringBuilder key = new StringBuilder();
+        for (int i = 1; i <= metadata.getColumnCount(); i++) {
+            key.append(metadata.getName(i)).append(':').append(metadata.getSQLType(i)).append(',');
+        }
+        String shape = key.toString();
+        Binding binding = this.bindings.get(shape);
+        if (binding == null) {
+            binding = new Binding(metadata);
+            Binding existing = this.bindings.putIfAbsent(shape, binding);
+            if (existing != null) {
+                binding = existing;
+            }
+        }
+        return binding;
+    }
+
+    private T map(ResultSet resultSet, Binding binding) throws SQLException {
+        try {
+            Object[] arguments = new Object[binding.arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = readObject(resultSet, binding.arguments[i], binding.argumentKinds[i], this.parameterTypes[i]);
+            }
+            Object target = (Object) this.constructor.invokeExact(arguments);
+            for (int i = 0; i < binding.columns.length; i++) {
+                int column = binding.columns[i];
+                MethodHandle setter = binding.setters[i];
+                switch (binding.kinds[i]) {
+                    case INT:
+                        setter.invokeExact(target, resultSet.getInt(column));
+                        break;
+                    case LONG:
+                        setter.invokeExact(target, resultSet.getLong(column));
+                        break;
+                    case DOUBLE:
+                        setter.invokeExact(target, resultSet.getDouble(column));
+                        break;
+                    case FLOAT:
+                        setter.invokeExact(target, resultSet.getFloat(column));
+                        break;
+                    case BOOLEAN:
+                        setter.invokeExact(target, resultSet.getBoolean(column));
+                        break;
+                    case SHORT:
+                        setter.invokeExact(target, resultSet.getShort(column));
+                        break;
+                    case BYTE:
+                        setter.invokeExact(target, resultSet.getByte(column));
+                        break;
+                    default:
+                        setter.invokeExact(target, readObject(resultSet, column, binding.objectKinds[i], binding.types[i]));
+                }
+            }
+            return this.type.cast(target);
+        } catch (SQLException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new SQLException("Could not map a row to " + this.type.getName(), e);
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object readObject(ResultSet resultSet, int column, int kind, Class<?> type) throws SQLException {
+        Object value;
+        switch (kind) {
+            case STRING:
+                return resultSet.getString(column);
+            case BOXED:
+                value = readPrimitive(resultSet, column, type);
+                return resultSet.wasNull() && !type.isPrimitive() ? null : value;
+            case BIG_DECIMAL:
+                return resultSet.getBigDecimal(column);
+            case BIG_INTEGER:
+                BigDecimal decimal = resultSet.getBigDecimal(column);
+                return decimal == null ? null : decimal.toBigInteger();
+            case DATE:
+            case TIMESTAMP:
+                return resultSet.getTimestamp(column);
+            case SQL_DATE:
+                return resultSet.getDate(column);
+            case TIME:
+                return resultSet.getTime(column);
+            case BYTES:
+                return resultSet.getBytes(column);
+            case BLOB:
+                return resultSet.getBlob(column);
+            case ENUM:
+                String name = resultSet.getString(column);
+                return name == null ? null : Enum.valueOf((Class<? extends Enum>) type, name);
+            default:
+                return resultSet.getObject(column);
+        }
+    }
+
+    private static Object readPrimitive(ResultSet resultSet, int column, Class<?> type) throws SQLException {
+        if (type == Integer.class || type == int.class) {
+            return resultSet.getInt(column);
+        } else if (type == Long.class || type == long.class) {
+            return resultSet.getLong(column);
+        } else if (type == Double.class || type == double.class) {
+            return resultSet.getDouble(column);
+        } else if (type == Float.class || type == float.class) {
+            return resultSet.getFloat(column);
+        } else if (type == Boolean.class || type == boolean.class) {
+            return resultSet.getBoolean(column);
+        } else if (type == Short.class || type == short.class) {
+            return resultSet.getShort(column);
+        } else if (type == Byte.class || type == byte.class) {
+            return resultSet.getByte(column);
+        }
+        return resultSet.getObject(column);
+    }
+
+    private static int primitiveKind(Class<?> type) {
+        if (type == int.class) {
+            return INT;
+        } else if (type == long.class) {
+            return LONG;
+        } else if (type == double.class) {
+            return DOUBLE;
+        } else if (type == float.class) {
+            return FLOAT;
+        } else if (type == boolean.class) {
+            return BOOLEAN;
+        } else if (type == short.class) {
+            return SHORT;
+        } else if (type == byte.class) {
+            return BYTE;
+        }
+        return OBJECT;
+    }
+
+    private static int objectKind(Class<?> type) {
+        if (type == String.class) {
+            return STRING;
+        } else if (type.isPrimitive() || type == Integer.class || type == Long.class || type == Double.class
+                || type == Float.class || type == Boolean.class || type == Short.class || type == Byte.class) {
+            return BOXED;
+        } else if (type == BigDecimal.class) {
+            return BIG_DECIMAL;
+        } else if (type == BigInteger.class) {
+            return BIG_INTEGER;
+        } else if (type == java.util.Date.class) {
+            return DATE;
+        } else if (type == java.sql.Date.class) {
+            return SQL_DATE;
+        } else if (type == Time.class) {
+            return TIME;
+        } else if (type == Timestamp.class) {
+            return TIMESTAMP;
+        } else if (type == byte[].class) {
+            return BYTES;
+        } else if (type == Blob.class) {
+            return BLOB;
+        } else if (type.isEnum()) {
+            return ENUM;
+        }
+        return ANY;
+    }
+
+    private static String normalize(String name) {
+        return name.replace("_", "").toLowerCase(Locale.ENGLISH);
+    }
+
+    private static String[] columnNames(Annotation[][] annotations) {
+        String[] names = new String[annotations.length];
+        for (int i = 0; i < annotations.length; i++) {
+            for (Annotation annotation : annotations[i]) {
+                if (annotation instanceof Column) {
+                    names[i] = ((Column) annotation).value();
+                }
+            }
+            if (names[i] == null) {
+                return null;
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Registers a field or setter, preferring annotated members, then setters, then fields.
+     */
+    private void addTarget(String name, Column column, MethodHandle handle, Class<?> type, int priority) {
+        String key = normalize(column != null ? column.value() : name);
+        int rank = column != null ? priority + 2 : priority;
+        Target existing = this.targets.get(key);
+        if (existing != null && existing.rank >= rank) {
+            return;
+        }
+        int kind = primitiveKind(type);
+        MethodType setterType = MethodType.methodType(void.class, Object.class, kind == OBJECT ? Object.class : type);
+        this.targets.put(key, new Target(handle.asType(setterType), type, kind, rank));
+    }
+
+    private static class Target {
+        private final MethodHandle setter;
+        private final Class<?> type;
+        private final int kind, rank;
+
+        Target(MethodHandle setter, Class<?> type, int kind, int rank) {
+            this.setter = setter;
+            this.type = type;
+            this.kind = kind;
+            this.rank = rank;
+        }
+    }
+
+    /**
+     * The columns of one result shape, bound to the constructor parameters and setters.
+     */
+    private final class Binding {
+        private final int[] arguments, argumentKinds;
+        private final int[] columns, kinds, objectKinds;
+        private final MethodHandle[] setters;
+        private final Class<?>[] types;
+
+        Binding(ResultMetadata metadata) throws SQLException {
+            Map<String, Integer> columnsByName = new HashMap<String, Integer>();
+            for (int i = metadata.getColumnCount(); i >= 1; i--) {
+                columnsByName.put(normalize(metadata.getName(i)), i);
+            }
+            this.arguments = new int[RowMapper.this.parameterNames.length];
+            this.argumentKinds = new int[this.arguments.length];
+            List<Integer> used = new ArrayList<Integer>();
+            for (int i = 0; i < this.arguments.length; i++) {
+                Integer column = columnsByName.get(normalize(RowMapper.this.parameterNames[i]));
+                if (column == null) {
+                    throw new SQLException("No column '" + RowMapper.this.parameterNames[i] + "' for the constructor of "
+                            + RowMapper.this.type.getName());
+                }
+                this.arguments[i] = column;
+                this.argumentKinds[i] = objectKind(RowMapper.this.parameterTypes[i]);
+                used.add(column);
+            }
+            List<Integer> bound = new ArrayList<Integer>();
+            List<Target> boundTargets = new ArrayList<Target>();
+            for (int i = 1; i <= metadata.getColumnCount(); i++) {
+                String name = normalize(metadata.getName(i));
+                Target target = RowMapper.this.targets.get(name);
+                if (target != null && !used.contains(i) && columnsByName.get(name) == i) {
+                    bound.add(i);
+                    boundTargets.add(target);
+                }
+            }
+            this.columns = new int[bound.size()];
+            this.kinds = new int[bound.size()];
+            this.objectKinds = new int[bound.size()];
+            this.setters = new MethodHandle[bound.size()];
+            this.types = new Class<?>[bound.size()];
+            for (int i = 0; i < this.columns.length; i++) {
+                Target target = boundTargets.get(i);
+                this.columns[i] = bound.get(i);
+                this.kinds[i] = target.kind;
+                this.objectKinds[i] = objectKind(target.type);
+                this.setters[i] = target.setter;
+                this.types[i] = target.type;
+            }
+        }
+    }
+}
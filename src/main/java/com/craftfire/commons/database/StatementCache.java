@@ -0,0 +1,119 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of idle {@link PreparedStatement}s of a single connection, keyed by SQL text.
+ * <p>
+ * A statement is removed from the cache while it is in use, so two threads sharing a connection never get the same statement.
+ */
+public class StatementCache {
+    private final int capacity;
+    private final Map<String, PreparedStatement> statements;
+
+    public StatementCache(int capacity) {
+        this.capacity = capacity;
+        this.statements = new LruMap(capacity);
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public synchronized int size() {
+        return this.statements.size();
+    }
+
+    /**
+     * Takes the idle statement for the SQL out of the cache.
+     *
+     * @param sql  the SQL text
+     * @return     the statement, or {@code null} if there is no idle statement for the SQL
+     */
+    public synchronized PreparedStatement take(String sql) {
+        return this.statements.remove(sql);
+    }
+
+    /**
+     * Puts a statement back into the cache, closing it if an idle statement for the same SQL is already cached.
+     *
+     * @param sql        the SQL text
+     * @param statement  the statement
+     */
+    public void offer(String sql, PreparedStatement statement) {
+        synchronized (this) {
+            if (this.capacity > 0 && !this.statements.containsKey(sql)) {
+                this.statements.put(sql, statement);
+                return;
+            }
+        }
+        closeQuietly(statement);
+    }
+
+    /**
+     * Closes and removes all cached statements.
+     */
+    public void clear() {
+        List<PreparedStatement> toClose;
+        synchronized (this) {
+            toClose = new ArrayList<PreparedStatement>(this.statements.values());
+            this.statements.clear();
+        }
+        for (PreparedStatement statement : toClose) {
+            closeQuietly(statement);
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignore) {
+        }
+    }
+
+    /**
+     * Closes and drops the least recently used statement when the cache is over its capacity.
+     */
+    private static final class LruMap extends LinkedHashMap<String, PreparedStatement> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > this.capacity) {
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * This file is part of CraftCommons.
+ *
+ * Copyright (c) 2011 CraftFire <http://www.craftfire.com/>
+ * CraftCommons is licensed under the GNU Lesser General Public License.
+ *
+ * CraftCommons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CraftCommons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.craftfire.commons.database;
+
+import java.sql.SQLException;
+
+/**
+ * A unit of work executed by {@link DataManager#inTransaction(TransactionCallback)}.
+ *
+ * @param <T>  the type of the result
+ */
+public interface TransactionCallback<T> {
+    /**
+     * Executes the work. All queries made through the DataManager on the calling thread are part of the transaction.
+     *
+     * @param  dataManager   the DataManager running the transaction
+     * @return               the result of the work
+     * @throws SQLException  to roll back the transaction
+     */
+    T execute(DataManager dataManager) throws SQLException;
+}
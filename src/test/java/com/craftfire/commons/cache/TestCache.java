@@ -20,14 +20,31 @@
 package com.craftfire.commons.cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
 import com.craftfire.commons.cache.CacheManager;
 import com.craftfire.commons.cache.MetadatableCacheItem;
+import com.craftfire.commons.util.LoggingManager;
 
 public class TestCache {
 
@@ -77,4 +94,443 @@ public class TestCache {
         assertNull(mgr.getMetadatableItem("GrOuP", id).getMetaData("test.meta"));
     }
 
+    @Test
+    public void testLastID() {
+        CacheManager mgr = new CacheManager();
+        mgr.put("ids", 5, "five");
+        assertEquals(5, mgr.getLastID("ids"));
+        mgr.put("ids", "7", "seven");
+        assertEquals(7, mgr.getLastID("ids"));
+        mgr.put("ids", 3, "three");
+        assertEquals(7, mgr.getLastID("ids"));
+        assertEquals(8, mgr.put("ids", "eight"));
+        assertEquals("eight", mgr.getLast("ids"));
+    }
+
+    @Test
+    public void testConcurrentPut() throws InterruptedException {
+        final CacheManager mgr = new CacheManager();
+        final int threads = 8, puts = 1000;
+        final Set<Integer> ids = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < puts; j++) {
+                        int id = mgr.put("concurrent", j);
+                        ids.add(id);
+                        mgr.contains("concurrent", id);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(threads * puts, ids.size());
+        assertEquals(threads * puts, mgr.getLastID("concurrent"));
+        assertEquals(threads * puts, mgr.getCache("concurrent").size());
+    }
+
+    @Test
+    public void testBoundedLRU() {
+        CacheManager mgr = new CacheManager();
+        mgr.setMaxEntries("lru", 3);
+        mgr.put("lru", 1, "one");
+        mgr.put("lru", 2, "two");
+        mgr.put("lru", 3, "three");
+        assertEquals("one", mgr.get("lru", 1));
+        mgr.put("lru", 4, "four");
+        assertEquals(3, mgr.getCache("lru").size());
+        assertNull(mgr.get("lru", 2));
+        assertEquals("one", mgr.get("lru", 1));
+        assertEquals(1, mgr.getEvictionCount());
+        mgr.put("other", 1, "unbounded");
+        mgr.put("other", 2, "unbounded");
+        assertEquals(2, mgr.getCache("other").size());
+    }
+
+    @Test
+    public void testBoundedWeight() {
+        CacheManager mgr = new CacheManager();
+        mgr.setWeigher(new Weigher() {
+            @Override
+            public int weigh(Object id, Object object) {
+                return ((String) object).length();
+            }
+        });
+        mgr.setMaxWeight(10);
+        mgr.put("a", 1, "aaaa");
+        mgr.put("a", 2, "aaaa");
+        mgr.put("b", 1, "bb");
+        assertEquals(10, mgr.getWeight());
+        mgr.put("b", 2, "bb");
+        assertEquals(8, mgr.getWeight());
+        assertNull(mgr.get("a", 1));
+        assertEquals("aaaa", mgr.get("a", 2));
+        mgr.remove("b", 1);
+        assertEquals(6, mgr.getWeight());
+    }
+
+    @Test
+    public void testBoundedLFU() {
+        CacheManager mgr = new CacheManager();
+        mgr.setEvictionPolicy(Eviction.LFU);
+        mgr.setMaxEntries(2);
+        mgr.put(1, "one");
+        mgr.put(2, "two");
+        mgr.get(1);
+        mgr.get(1);
+        mgr.get(2);
+        mgr.put(3, "three");
+        assertEquals("one", mgr.get(1));
+        assertNull(mgr.get(2));
+        assertEquals("three", mgr.get(3));
+    }
+
+    @Test
+    public void testBoundedTinyLFU() {
+        CacheManager mgr = new CacheManager();
+        mgr.setEvictionPolicy(Eviction.TINY_LFU);
+        mgr.setMaxEntries("tiny", 100);
+        for (int i = 0; i < 100; i++) {
+            mgr.put("tiny", i, i);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                mgr.get("tiny", i);
+            }
+        }
+        // a scan of items read only once should not flush the frequently read ones
+        for (int i = 1000; i < 2000; i++) {
+            mgr.put("tiny", i, i);
+        }
+        assertEquals(100, mgr.getCache("tiny").size());
+        int kept = 0;
+        for (int i = 0; i < 50; i++) {
+            if (mgr.contains("tiny", i)) {
+                kept++;
+            }
+        }
+        assertTrue(kept >= 45);
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException {
+        CacheManager mgr = new CacheManager();
+        mgr.setMaintenanceInterval(0);
+        mgr.setCacheTime(50, TimeUnit.MILLISECONDS);
+        final List<String> expired = Collections.synchronizedList(new ArrayList<String>());
+        mgr.addRemovalListener(new RemovalListener() {
+            @Override
+            public void onRemoval(String group, CacheItem item, RemovalCause cause) {
+                if (cause == RemovalCause.EXPIRED) {
+                    expired.add(group + ":" + item.getID());
+                }
+            }
+        });
+        mgr.put("ttl", 1, "one");
+        mgr.put("ttl", 2, "two");
+        CacheItem item = mgr.getItem("ttl", 1);
+        assertEquals(50, item.getCacheTimeMillis());
+        assertTrue(item.getMillisLeft() > 0 && item.getMillisLeft() <= 50);
+        assertEquals(System.currentTimeMillis() / 1000, item.getTimeAdded(), 1);
+        mgr.setCacheTime(0);
+        mgr.put("ttl", 3, "forever");
+        assertFalse(mgr.getItem("ttl", 3).isExpiring());
+        Thread.sleep(1200);
+        assertNull(mgr.get("ttl", 1));
+        assertEquals(Collections.singletonList("ttl:1"), expired);
+        mgr.cleanUp();
+        assertEquals(2, expired.size());
+        assertEquals(1, mgr.getCache("ttl").size());
+        assertEquals("forever", mgr.get("ttl", 3));
+    }
+
+    @Test
+    public void testMaintenanceThread() throws InterruptedException {
+        CacheManager mgr = new CacheManager();
+        mgr.setMaintenanceInterval(100);
+        mgr.setCacheTime(10, TimeUnit.MILLISECONDS);
+        final CountDownLatch latch = new CountDownLatch(1);
+        mgr.addRemovalListener(new RemovalListener() {
+            @Override
+            public void onRemoval(String group, CacheItem item, RemovalCause cause) {
+                if (cause == RemovalCause.EXPIRED) {
+                    latch.countDown();
+                }
+            }
+        });
+        mgr.put("background", 1, "one");
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(mgr.getCache("background").isEmpty());
+    }
+
+    @Test
+    public void testRemovalListener() {
+        CacheManager mgr = new CacheManager();
+        final List<RemovalCause> causes = new ArrayList<RemovalCause>();
+        mgr.addRemovalListener(new RemovalListener() {
+            @Override
+            public void onRemoval(String group, CacheItem item, RemovalCause cause) {
+                causes.add(cause);
+            }
+        });
+        mgr.setMaxEntries("listen", 2);
+        mgr.put("listen", 1, "one");
+        mgr.put("listen", 1, "uno");
+        mgr.put("listen", 2, "two");
+        mgr.put("listen", 3, "three");
+        mgr.remove("listen", 3);
+        mgr.remove("listen", 3);
+        mgr.clear("listen");
+        assertEquals(Arrays.asList(RemovalCause.REPLACED, RemovalCause.SIZE, RemovalCause.EXPLICIT,
+                RemovalCause.EXPLICIT), causes);
+    }
+
+    @Test
+    public void testTimerWheel() {
+        long start = 1000000;
+        TimerWheel wheel = new TimerWheel(start);
+        long[] delays = { 0, 500, 3000, 90000, 5000000, 400000000 };
+        List<TimerWheel.Node> nodes = new ArrayList<TimerWheel.Node>();
+        for (long delay : delays) {
+            nodes.add(new TimerWheel.Node("wheel", new FixedItem(start + delay)));
+        }
+        for (TimerWheel.Node node : nodes) {
+            wheel.schedule(node);
+        }
+        wheel.deschedule(nodes.get(2));
+        assertEquals(5, wheel.size());
+        List<TimerWheel.Node> expired = new ArrayList<TimerWheel.Node>();
+        for (long time = start; time <= start + 400001000; time += 700) {
+            int before = expired.size();
+            wheel.advance(time, expired);
+            for (int i = before; i < expired.size(); i++) {
+                long expires = expired.get(i).getItem().getExpirationTime();
+                assertTrue(expires <= time);
+                assertTrue(time - expires < 2500);
+            }
+        }
+        assertEquals(5, expired.size());
+        assertEquals(0, wheel.size());
+        assertFalse(expired.contains(nodes.get(2)));
+    }
+
+    @Test
+    public void testLoadSingleFlight() throws InterruptedException {
+        final CacheManager mgr = new CacheManager();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CacheLoader loader = new CacheLoader() {
+            @Override
+            public Object load(String group, Object id) throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep(100);
+                return "loaded " + id;
+            }
+        };
+        final Set<Object> results = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+        Thread[] workers = new Thread[8];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results.add(mgr.get("load", 1, loader));
+                    } catch (Exception e) {
+                        results.add(e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(1, loads.get());
+        assertEquals(Collections.singleton("loaded 1"), results);
+        assertEquals("loaded 1", mgr.get("load", 1));
+    }
+
+    @Test
+    public void testLoadAll() throws CacheLoaderException {
+        CacheManager mgr = new CacheManager();
+        final List<Collection<Object>> calls = new ArrayList<Collection<Object>>();
+        CacheLoader loader = new CacheLoader() {
+            @Override
+            public Object load(String group, Object id) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Map<Object, Object> loadAll(String group, Collection<Object> ids) {
+                calls.add(new ArrayList<Object>(ids));
+                Map<Object, Object> objects = new HashMap<Object, Object>();
+                for (Object id : ids) {
+                    if ((Integer) id < 10) {
+                        objects.put(id, "loaded " + id);
+                    }
+                }
+                return objects;
+            }
+        };
+        mgr.put("bulk", 2, "cached 2");
+        Map<Object, Object> objects = mgr.getAll("bulk", Arrays.asList(3, 2, 1, 11, 3), loader);
+        assertEquals(Arrays.<Object>asList(3, 1, 11), calls.get(0));
+        assertEquals(Arrays.<Object>asList(3, 2, 1), new ArrayList<Object>(objects.keySet()));
+        assertEquals("cached 2", objects.get(2));
+        assertEquals("loaded 1", mgr.get("bulk", 1));
+        assertFalse(mgr.contains("bulk", 11));
+        mgr.getAll("bulk", Arrays.asList(1, 2, 3), loader);
+        assertEquals(1, calls.size());
+    }
+
+    @Test
+    public void testLoadFailure() throws CacheLoaderException {
+        CacheManager mgr = new CacheManager();
+        final IllegalStateException failure = new IllegalStateException("database down");
+        CacheLoader loader = new CacheLoader() {
+            @Override
+            public Object load(String group, Object id) {
+                throw failure;
+            }
+        };
+        try {
+            mgr.get("Fail", 1, loader);
+            fail();
+        } catch (CacheLoaderException e) {
+            assertSame(failure, e.getCause());
+            assertEquals("fail", e.getGroup());
+            assertEquals(1, e.getID());
+        }
+        assertFalse(mgr.contains("fail", 1));
+        assertNull(mgr.get("fail", 1, new CacheLoader() {
+            @Override
+            public Object load(String group, Object id) {
+                return null;
+            }
+        }));
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        CacheManager mgr = new CacheManager();
+        mgr.setRefreshTime(50, TimeUnit.MILLISECONDS);
+        final AtomicInteger version = new AtomicInteger();
+        final CountDownLatch reloaded = new CountDownLatch(1);
+        CacheLoader loader = new CacheLoader() {
+            @Override
+            public Object load(String group, Object id) {
+                return version.incrementAndGet();
+            }
+
+            @Override
+            public Object reload(String group, Object id, Object old) {
+                assertEquals(1, old);
+                try {
+                    return load(group, id);
+                } finally {
+                    reloaded.countDown();
+                }
+            }
+        };
+        assertEquals(1, mgr.get("refresh", 1, loader));
+        assertEquals(1, mgr.get("refresh", 1, loader));
+        Thread.sleep(100);
+        assertEquals(1, mgr.get("refresh", 1, loader));
+        assertTrue(reloaded.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Integer.valueOf(2).equals(mgr.get("refresh", 1)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, mgr.get("refresh", 1));
+        assertEquals(2, version.get());
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        CacheManager mgr = new CacheManager();
+        mgr.setMaxEntries("Stats", 2);
+        mgr.put("stats", 1, "one");
+        mgr.put("stats", 2, "two");
+        mgr.put("stats", 3, "three");
+        mgr.get("stats", 3);
+        mgr.get("stats", 1);
+        mgr.contains("stats", 3);
+        mgr.get("other", 1);
+        mgr.get("stats", 4, new CacheLoader() {
+            @Override
+            public Object load(String group, Object id) throws InterruptedException {
+                Thread.sleep(5);
+                return "four";
+            }
+        });
+        CacheStats stats = mgr.getStats("stats");
+        assertEquals("stats", stats.getGroup());
+        assertEquals(2, stats.getHitCount());
+        assertEquals(2, stats.getMissCount());
+        assertEquals(0.5, stats.getHitRate(), 0.001);
+        assertEquals(4, stats.getPutCount());
+        assertEquals(2, stats.getEvictionCount());
+        assertEquals(1, stats.getLoadCount());
+        assertTrue(stats.getAverageLoadPenalty() >= 5000000);
+        assertEquals(2, stats.getSize());
+        assertEquals(240, stats.getEstimatedMemory());
+
+        CacheStats total = mgr.getStats();
+        assertNull(total.getGroup());
+        assertEquals(3, total.getMissCount());
+        assertEquals(2, total.getSize());
+        mgr.clear("stats");
+        assertEquals(2, mgr.getStats("stats").getRemovalCount(RemovalCause.EXPLICIT));
+
+        final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch dumped = new CountDownLatch(3);
+        mgr.setStatsLogger(new LoggingManager("CraftFire.CacheManager", "[CacheManager]") {
+            @Override
+            public void info(String line) {
+                lines.add(line);
+                dumped.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        assertTrue(dumped.await(5, TimeUnit.SECONDS));
+        mgr.setStatsLogger(null, 0, TimeUnit.MILLISECONDS);
+        assertTrue(lines.get(0).startsWith("CacheStats 'other': 0 hits, 1 misses"));
+        assertTrue(lines.get(2).startsWith("CacheStats (all): 2 hits, 3 misses"));
+
+        mgr.resetStats();
+        assertEquals(0, mgr.getStats().getRequestCount());
+        assertEquals(0, mgr.getStats().getEvictionCount());
+    }
+
+    private static class FixedItem extends CacheItem {
+        private final long expires;
+
+        FixedItem(long expires) {
+            super(expires, null, 1, TimeUnit.MILLISECONDS);
+            this.expires = expires;
+        }
+
+        @Override
+        public long getExpirationTime() {
+            return this.expires;
+        }
+
+        @Override
+        public boolean isExpired(long now) {
+            return now >= this.expires;
+        }
+    }
 }
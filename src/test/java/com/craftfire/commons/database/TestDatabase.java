@@ -26,21 +26,43 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -91,6 +113,51 @@ public class TestDatabase {
         assertTrue(datamanager.getConnection().isValid(1));
     }
 
+    @Test
+    public void testCircuitBreaker() {
+        DataManager broken = new DataManager(DataType.H2, user, password) {
+            @Override
+            protected String buildURL(String host) {
+                return "jdbc:h2:./target/test-classes/missing;IFEXISTS=TRUE";
+            }
+        };
+        broken.getLogger().getLogger().setLevel(Level.OFF);
+        broken.setDatabase("missing");
+        broken.setDirectory("./target/test-classes/");
+        ReconnectPolicy policy = new ReconnectPolicy();
+        policy.setMaxAttempts(2);
+        policy.setInitialDelay(1);
+        policy.setJitter(0);
+        broken.setReconnectPolicy(policy);
+        assertEquals(1, policy.getDelay(1));
+        assertEquals(2, policy.getDelay(2));
+        CircuitBreaker breaker = broken.getCircuitBreaker();
+        breaker.setFailureThreshold(2);
+        breaker.setOpenTime(60000);
+        final List<CircuitState> states = new ArrayList<CircuitState>();
+        breaker.addListener(new CircuitBreakerListener() {
+            @Override
+            public void stateChanged(CircuitBreaker breaker, CircuitState from, CircuitState to, Throwable cause) {
+                states.add(to);
+            }
+        });
+
+        assertFalse(broken.hasConnection());
+        assertEquals(CircuitState.OPEN, breaker.getState());
+        assertEquals(2, breaker.getFailures());
+        assertFalse(broken.hasConnection());
+        assertEquals(2, breaker.getFailures());
+        assertTrue(breaker.getRemainingOpenTime() > 0);
+
+        policy.setMaxAttempts(1);
+        breaker.setOpenTime(0);
+        assertFalse(broken.hasConnection());
+        assertEquals(Arrays.asList(CircuitState.OPEN, CircuitState.HALF_OPEN, CircuitState.OPEN), states);
+        breaker.reset();
+        assertEquals(CircuitState.CLOSED, breaker.getState());
+        assertEquals(CircuitState.CLOSED, datamanager.getCircuitBreaker().getState());
+    }
+
     @Test
     public void testExist() {
         assertTrue(datamanager.tableExist(table));
@@ -229,6 +296,747 @@ public class TestDatabase {
         datamanager.setTimeout(0);
     }
 
+    @Test
+    public void testParameterizedQuery() throws SQLException {
+        Results results = datamanager.query("SELECT `id`, `vchar` FROM `" + table + "` WHERE `id` = ?", 1);
+        assertEquals(1, results.getArray().size());
+        assertEquals(1, results.getFirstResult().getIntField("id"));
+        assertEquals(0, datamanager.query("SELECT `id` FROM `" + table + "` WHERE `id` = ?", 2).getArray().size());
+        String sql = "UPDATE `" + wrtable + "` SET `txt` = `txt` WHERE `id` = ?";
+        assertEquals(1, datamanager.update(sql, 1));
+        long hits = datamanager.getStatementCacheHits();
+        assertEquals(1, datamanager.update(sql, 1));
+        assertEquals(hits + 1, datamanager.getStatementCacheHits());
+        assertEquals("CraftFire!", datamanager.queryField(ValueType.STRING, "SELECT `txt` FROM `" + wrtable + "` WHERE `id` = ?", 1).getString());
+        assertNull(datamanager.queryField(ValueType.STRING, "SELECT `txt` FROM `" + wrtable + "` WHERE `txt` = ?", "' OR '1' = '1"));
+        assertTrue(datamanager.getStatementCacheMisses() > 0);
+    }
+
+    @Test
+    public void testBatch() throws SQLException {
+        String batchtable = "batchtest";
+        datamanager.executeQuery("CREATE TABLE IF NOT EXISTS `" + batchtable + "` (`id` INT PRIMARY KEY, `txt` VARCHAR(32), `x` INT)");
+        datamanager.executeQuery("DELETE FROM `" + batchtable + "`");
+        int oldSize = datamanager.getBatchSize();
+        datamanager.setBatchSize(100);
+        List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+        for (int i = 1; i <= 250; i++) {
+            Map<String, Object> row = new HashMap<String, Object>();
+            row.put("id", i);
+            row.put("txt", "row" + i);
+            row.put("x", i * 2);
+            rows.add(row);
+        }
+        BatchResult result = datamanager.insertBatch(rows, batchtable);
+        assertEquals(250, result.getRows());
+        assertEquals(3, result.getBatches());
+        assertEquals(3, result.getBatchTimes().length);
+        assertTrue(result.getRowsPerSecond() > 0);
+        assertEquals(250, datamanager.getCount(batchtable));
+        assertEquals("row42", datamanager.getStringField(batchtable, "txt", "`id` = 42"));
+
+        for (Map<String, Object> row : rows) {
+            row.put("x", 0);
+        }
+        result = datamanager.updateBatch(rows, batchtable, "id");
+        assertEquals(250, result.getRows());
+        assertEquals(0, datamanager.getCount(batchtable, "`x` <> 0"));
+
+        List<Object[]> params = new ArrayList<Object[]>();
+        for (int i = 1; i <= 250; i += 2) {
+            params.add(new Object[] { i });
+        }
+        result = datamanager.executeBatch("DELETE FROM `" + batchtable + "` WHERE `id` = ?", params);
+        assertEquals(125, result.getRows());
+        assertEquals(125, datamanager.getCount(batchtable));
+
+        rows.get(1).remove("txt");
+        try {
+            datamanager.insertBatch(rows, batchtable);
+            fail("Expected IllegalArgumentException for rows with different columns");
+        } catch (IllegalArgumentException expected) {
+        }
+        datamanager.setBatchSize(oldSize);
+    }
+
+    @Test
+    public void testStream() throws SQLException {
+        RowIterator rows = datamanager.stream("SELECT `id`, `vchar` FROM `" + table + "` WHERE `id` >= ?", 10, 0);
+        try {
+            assertTrue(rows.hasNext());
+            DataRow row = rows.next();
+            assertEquals(1, row.getIntField("id"));
+            assertNotNull(row.getStringField("vchar"));
+            assertFalse(rows.hasNext());
+            assertTrue(rows.isClosed());
+            assertEquals(1, rows.getRowsRead());
+        } finally {
+            rows.close();
+        }
+        rows = datamanager.stream("SELECT `id` FROM `" + table + "`");
+        rows.close();
+        assertFalse(rows.hasNext());
+    }
+
+    @Test
+    public void testColumnLookup() throws SQLException {
+        Results results = datamanager.getResults("SELECT * FROM `" + table + "`");
+        DataRow row = results.getFirstResult();
+        assertNotNull(row.getColumns());
+        assertSame(results.getColumns(), row.getColumns());
+        DataRow plain = new DataRow();
+        plain.addAll(row);
+        for (int i = 0; i < row.size(); i++) {
+            String name = row.get(i).getName();
+            int index = row.getIndex(name.toLowerCase());
+            assertEquals(plain.getIndex(name), index);
+            assertEquals(index, row.getIndex(name.toUpperCase()));
+            assertEquals(name, row.getStringField(index), row.getStringField(name));
+            assertEquals(name, row.getLongField(index), row.getLongField(name));
+            assertEquals(name, row.isNullField(index), row.isNullField(name));
+        }
+        assertEquals(-1, row.getIndex("thisFieldShouldNeverExist"));
+        assertEquals(-1, plain.getIndex("thisFieldShouldNeverExist"));
+        assertNull(row.get("thisFieldShouldNeverExist"));
+    }
+
+    @Test
+    public void testColumnarResults() throws SQLException {
+        String query = "SELECT * FROM `" + table + "`";
+        DataRow row = datamanager.getResults(query).getFirstResult();
+        ColumnarResults results = datamanager.getColumnarResults(query);
+        assertEquals(1, results.size());
+        assertEquals(row.size(), results.getColumnCount());
+        ColumnarRow columnar = results.getFirstResult();
+        for (DataField field : row) {
+            String name = field.getName();
+            assertEquals(name, field.getType(), columnar.getFieldType(name));
+            assertEquals(name, field.getSQLType(), columnar.getFieldSQLType(name));
+            assertEquals(name, field.getSize(), columnar.getFieldSize(name));
+            assertEquals(name, field.isNull(), columnar.isNullField(name));
+            assertEquals(name, field.getString(), columnar.getStringField(name));
+            assertEquals(name, field.getInt(), columnar.getIntField(name));
+            assertEquals(name, field.getLong(), columnar.getLongField(name));
+            assertEquals(name, field.getDouble(), columnar.getDoubleField(name), 0);
+            assertEquals(name, field.getFloat(), columnar.getFloatField(name), 0);
+            assertEquals(name, field.getBool(), columnar.getBoolField(name));
+            assertEquals(name, field.getDate(), columnar.getDateField(name));
+            assertEquals(name, field.getBigInt(), columnar.getBigIntField(name));
+            assertEquals(name, field.getDecimal(), columnar.getDecimalField(name));
+            assertArrayEquals(name, field.getBytes(), columnar.getBinaryField(name));
+            if (field.getType() != ValueType.BINARY && field.getType() != ValueType.BLOB) {
+                assertEquals(name, field.getValue(), columnar.get(name).getValue());
+            }
+        }
+        assertNull(columnar.get("thisFieldShouldNeverExist"));
+        assertEquals(0, columnar.getIntField("thisFieldShouldNeverExist"));
+        assertFalse(columnar.fieldExist("thisFieldShouldNeverExist"));
+        assertTrue(datamanager.getColumnarResults("SELECT * FROM `empty`").isEmpty());
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        QueryFuture<Results> results = datamanager.getResultsAsync("SELECT * FROM `" + table + "` WHERE `id` = ?", 1);
+        assertEquals(1, results.get(10, TimeUnit.SECONDS).getArray().size());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Object> outcome = Collections.synchronizedList(new ArrayList<Object>());
+        datamanager.executeQueryAsync("UPDATE `writetest` SET `X` = ? WHERE 1 = 0", new Object[] { 1 }, 5, TimeUnit.SECONDS,
+                new QueryCallback<Integer>() {
+                    @Override
+                    public void onSuccess(Integer result) {
+                        outcome.add(result);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable error) {
+                        outcome.add(error);
+                        latch.countDown();
+                    }
+                });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(0, outcome.get(0));
+
+        QueryFuture<Results> slow = datamanager.getResultsAsync("SELECT SUM(X) FROM SYSTEM_RANGE(1, 10000000000)",
+                new Object[0], 1, TimeUnit.SECONDS, null);
+        assertEquals(1, slow.getTimeout());
+        try {
+            slow.get(30, TimeUnit.SECONDS);
+            fail("The query should have timed out.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+
+        QueryFuture<Results> cancelled = datamanager.getResultsAsync("SELECT SUM(X) FROM SYSTEM_RANGE(1, 10000000000)");
+        Thread.sleep(200);
+        assertTrue(cancelled.cancel(true));
+        assertTrue(cancelled.isCancelled());
+        assertEquals(1, datamanager.query("SELECT * FROM `" + table + "` WHERE `id` = ?", 1).getArray().size());
+
+        QueryFuture<Integer> early = new QueryFuture<Integer>("SELECT 1", 0, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 1;
+            }
+        }, null);
+        assertTrue(early.cancel(false));
+        try {
+            early.statementStarted(null);
+            fail("A cancelled query must not execute its statement.");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().contains("cancelled"));
+        }
+    }
+
+    @Test
+    public void testQueryLog() throws SQLException {
+        assertEquals("SELECT * FROM `t1` WHERE `a` = ? AND b IN (?, ?) AND c2 = ?",
+                QueryLog.normalize("SELECT  *\nFROM `t1` WHERE `a` = 'it''s' AND b IN (1, 2.5) AND c2 = \"x\""));
+        QueryLog old = datamanager.getQueryLog();
+        try {
+            datamanager.setQueryLog(new QueryLog(5, 10));
+            for (int i = 0; i < 8; i++) {
+                datamanager.getResults("SELECT * FROM `" + table + "` WHERE `id` = " + i);
+            }
+            datamanager.query("SELECT * FROM `" + table + "` WHERE `id` = ?", 1);
+            Map<Long, String> queries = datamanager.getQueries();
+            assertEquals(5, queries.size());
+            assertEquals(Long.valueOf(9), Collections.max(queries.keySet()));
+            assertTrue(queries.containsValue("SELECT * FROM `" + table + "` WHERE `id` = 7"));
+
+            QueryStats stats = datamanager.getQueryLog().getStats("SELECT * FROM `" + table + "` WHERE `id` = 123");
+            assertNotNull(stats);
+            assertEquals(9, stats.getCount());
+            assertEquals(2, stats.getRows());
+            assertTrue(stats.getMaxTime() > 0);
+            assertTrue(stats.getP50() <= stats.getP99());
+            assertTrue(stats.getP99() <= stats.getMaxTime());
+            assertEquals(1, datamanager.getQueryLog().getStats().size());
+        } finally {
+            datamanager.setQueryLog(old);
+        }
+    }
+
+    @Test
+    public void testTransaction() throws SQLException {
+        final String txtable = "transactiontest";
+        final String insert = "INSERT INTO `" + txtable + "` (`id`, `txt`) VALUES (?, ?)";
+        datamanager.executeQuery("CREATE TABLE IF NOT EXISTS `" + txtable + "` (`id` INT PRIMARY KEY, `txt` VARCHAR(32))");
+        datamanager.executeQuery("DELETE FROM `" + txtable + "`");
+
+        int inserted = datamanager.inTransaction(new TransactionCallback<Integer>() {
+            @Override
+            public Integer execute(DataManager dataManager) throws SQLException {
+                assertTrue(dataManager.isInTransaction());
+                int rows = dataManager.update(insert, 1, "one") + dataManager.update(insert, 2, "two");
+                try {
+                    dataManager.inTransaction(new TransactionCallback<Void>() {
+                        @Override
+                        public Void execute(DataManager dataManager) throws SQLException {
+                            dataManager.update(insert, 3, "three");
+                            throw new SQLException("Nested failure");
+                        }
+                    });
+                    fail("The nested transaction should have failed.");
+                } catch (SQLException e) {
+                    assertEquals("Nested failure", e.getMessage());
+                }
+                assertTrue(dataManager.isInTransaction());
+                return rows;
+            }
+        });
+        assertEquals(2, inserted);
+        assertFalse(datamanager.isInTransaction());
+        assertEquals(2, datamanager.getCount(txtable));
+        assertFalse(datamanager.exist(txtable, "id", 3));
+
+        datamanager.begin();
+        datamanager.update(insert, 4, "four");
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (int i = 5; i < 10; i++) {
+            rows.add(new Object[] { i, "row" + i });
+        }
+        datamanager.executeBatch(insert, rows);
+        assertEquals(8, datamanager.getCount(txtable));
+        datamanager.rollback();
+        assertFalse(datamanager.isInTransaction());
+        assertEquals(2, datamanager.getCount(txtable));
+
+        try {
+            datamanager.commit();
+            fail("Commit without a transaction should fail.");
+        } catch (SQLException e) {
+        }
+    }
+
+    @Test
+    public void testQueryCache() throws SQLException {
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")),
+                QueryCache.getReadTables("SELECT * FROM `a` x, b AS y LEFT JOIN db.`C` ON x.id = c.id WHERE 1"));
+        assertEquals(Collections.singleton("pre_t"), QueryCache.getWrittenTables("UPDATE `pre_t` SET `x` = 1, `y` = 2"));
+        assertNull(QueryCache.getWrittenTables("UPDATE a, b SET a.x = b.x"));
+        assertNull(QueryCache.getWrittenTables("DROP TABLE a"));
+        assertNull(QueryCache.getReadTables("SELECT 1"));
+
+        QueryCache cache = new QueryCache(100, 1, TimeUnit.MINUTES);
+        datamanager.setQueryCache(cache);
+        try {
+            int count = datamanager.getCount("writetest");
+            assertEquals(count, datamanager.getCount("writetest"));
+            assertEquals(1, cache.getHits());
+            assertEquals(1, cache.getMisses());
+            datamanager.getIntegerField("SELECT 1");
+            datamanager.getIntegerField("SELECT 1");
+            assertEquals(1, cache.getHits());
+
+            datamanager.updateField("writetest", "X", 1, "1 = 0");
+            assertEquals(1, cache.getInvalidations());
+            assertEquals(0, cache.size());
+            assertEquals(count, datamanager.getCount("writetest"));
+            assertEquals(1, cache.getHits());
+            assertEquals(0.2, cache.getHitRatio(), 0.0001);
+
+            String from = " FROM `" + table + "` LIMIT 1";
+            assertEquals("a  b", datamanager.getStringField("SELECT 'a  b'" + from));
+            assertEquals("a b", datamanager.getStringField("SELECT 'a b'" + from));
+            assertEquals("a b", datamanager.getStringField("SELECT   'a b' " + from));
+            assertEquals(2, cache.getHits());
+            assertEquals("SELECT \"x  y\" FROM `t  u` WHERE a = 'it''s  ok'",
+                    QueryCache.normalizeWhitespace("SELECT  \"x  y\"\nFROM `t  u` WHERE a =  'it''s  ok'"));
+        } finally {
+            datamanager.setQueryCache(null);
+        }
+    }
+
+    @Test
+    public void testMetadataCache() throws SQLException {
+        String query = "SELECT * FROM `" + table + "`";
+        Results first = datamanager.query(query);
+        Results second = datamanager.query(query);
+        assertSame(first.getColumns(), second.getColumns());
+
+        ResultSet resultSet = datamanager.getResultSet(query);
+        try {
+            assertTrue(resultSet.next());
+            DataRow row = first.getFirstResult();
+            for (int i = 1; i <= row.size(); i++) {
+                DataField legacy = new DataField(i, resultSet);
+                DataField field = row.get(i - 1);
+                assertEquals(legacy.getName(), field.getName());
+                assertEquals(legacy.getType(), field.getType());
+                assertEquals(legacy.getSQLType(), field.getSQLType());
+                assertEquals(legacy.getSize(), field.getSize());
+                assertEquals(legacy.getTable(), field.getTable());
+                assertEquals(legacy.getString(), field.getString());
+            }
+        } finally {
+            datamanager.close();
+        }
+
+        datamanager.executeQuery("CREATE TABLE IF NOT EXISTS `metadatatest` (`id` INT)");
+        datamanager.executeQuery("ALTER TABLE `metadatatest` ADD COLUMN IF NOT EXISTS `extra` INT");
+        assertEquals(2, datamanager.query("SELECT * FROM `metadatatest`").getRowsCount());
+        datamanager.executeQuery("ALTER TABLE `metadatatest` DROP COLUMN `extra`");
+        assertEquals(1, datamanager.query("SELECT * FROM `metadatatest`").getRowsCount());
+    }
+
+    @Test
+    public void testPages() throws SQLException {
+        String pagetable = "pagetest";
+        datamanager.executeQuery("CREATE TABLE IF NOT EXISTS `" + pagetable + "` (`id` INT PRIMARY KEY, `txt` VARCHAR(32))");
+        datamanager.executeQuery("DELETE FROM `" + pagetable + "`");
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (int i = 1; i <= 250; i++) {
+            rows.add(new Object[] { i * 2, "row" + i });
+        }
+        datamanager.executeBatch("INSERT INTO `" + pagetable + "` (`id`, `txt`) VALUES (?, ?)", rows);
+
+        PageIterator pages = datamanager.pages(pagetable, "id", 100);
+        int last = 0;
+        while (pages.hasNext()) {
+            for (DataRow row : pages.next().getArray()) {
+                assertTrue(row.getIntField("id") > last);
+                last = row.getIntField("id");
+            }
+        }
+        assertEquals(500, last);
+        assertEquals(3, pages.getPagesRead());
+        assertEquals(250, pages.getRowsRead());
+
+        assertEquals(102, datamanager.getPage(pagetable, "id", 100, 10).getFirstResult().getIntField("id"));
+
+        List<KeyRange> ranges = datamanager.splitKeyRange(pagetable, "id", 4);
+        assertEquals(4, ranges.size());
+        assertEquals(2, ranges.get(0).getFrom());
+        assertFalse(ranges.get(3).hasUpperBound());
+        long total = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            if (i > 0) {
+                assertEquals(ranges.get(i - 1).getTo(), ranges.get(i).getFrom());
+            }
+            PageIterator rangePages = datamanager.pages(ranges.get(i), 30);
+            while (rangePages.hasNext()) {
+                rangePages.next();
+            }
+            total += rangePages.getRowsRead();
+        }
+        assertEquals(250, total);
+        assertTrue(datamanager.splitKeyRange("empty", "I", 4).isEmpty());
+
+        String widetable = "widekeytest";
+        datamanager.executeQuery("CREATE TABLE IF NOT EXISTS `" + widetable + "` (`id` BIGINT PRIMARY KEY)");
+        datamanager.executeQuery("DELETE FROM `" + widetable + "`");
+        List<Object[]> keys = new ArrayList<Object[]>();
+        for (long key : new long[] { Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE - 1, Long.MAX_VALUE }) {
+            keys.add(new Object[] { key });
+        }
+        datamanager.executeBatch("INSERT INTO `" + widetable + "` VALUES (?)", keys);
+        ranges = datamanager.splitKeyRange(widetable, "id", 3);
+        assertEquals(3, ranges.size());
+        assertEquals(Long.MIN_VALUE, ranges.get(0).getFrom());
+        total = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            if (i > 0) {
+                assertEquals(ranges.get(i - 1).getTo(), ranges.get(i).getFrom());
+            }
+            assertTrue(i == ranges.size() - 1 ? !ranges.get(i).hasUpperBound()
+                    : ranges.get(i).getFrom() < ranges.get(i).getTo());
+            PageIterator rangePages = datamanager.pages(ranges.get(i), 2);
+            while (rangePages.hasNext()) {
+                rangePages.next();
+            }
+            total += rangePages.getRowsRead();
+        }
+        assertEquals(6, total);
+    }
+
+    @Test
+    public void testExportWideKeys() throws SQLException, IOException {
+        String widetable = "widekeyexport";
+        datamanager.executeQuery("CREATE TABLE IF NOT EXISTS `" + widetable + "` (`id` BIGINT PRIMARY KEY)");
+        datamanager.executeQuery("DELETE FROM `" + widetable + "`");
+        List<Object[]> keys = new ArrayList<Object[]>();
+        for (long key : new long[] { 1, Long.MAX_VALUE / 2, Long.MAX_VALUE }) {
+            keys.add(new Object[] { key });
+        }
+        datamanager.executeBatch("INSERT INTO `" + widetable + "` VALUES (?)", keys);
+        Path directory = Paths.get("./target/test-classes/export");
+        Files.createDirectories(directory);
+        assertEquals(3, datamanager.exportTable(widetable, "id", 3, directory.resolve("widekeys.csv"), ExportFormat.CSV, null));
+    }
+
+    @Test
+    public void testUpsert() throws SQLException {
+        String upserttable = "upserttest";
+        datamanager.executeQuery("CREATE TABLE IF NOT EXISTS `" + upserttable + "` (`id` INT PRIMARY KEY, `txt` VARCHAR(32), `x` INT)");
+        datamanager.executeQuery("DELETE FROM `" + upserttable + "`");
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("id", 1);
+        data.put("txt", "first");
+        data.put("x", 1);
+        assertEquals(1, datamanager.upsertFields(data, upserttable, "id"));
+        data.put("txt", "second");
+        assertEquals(1, datamanager.upsertFields(data, upserttable, "id"));
+        assertEquals(1, datamanager.getCount(upserttable));
+        assertEquals("second", datamanager.getStringField(upserttable, "txt", "`id` = 1"));
+
+        List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+        for (int i = 1; i <= 150; i++) {
+            Map<String, Object> row = new HashMap<String, Object>();
+            row.put("id", i);
+            row.put("txt", "row" + i);
+            row.put("x", i);
+            rows.add(row);
+        }
+        BatchResult result = datamanager.upsertBatch(rows, upserttable);
+        assertEquals(150, result.getRows());
+        assertEquals(150, datamanager.getCount(upserttable));
+        assertEquals("row1", datamanager.getStringField(upserttable, "txt", "`id` = 1"));
+        try {
+            datamanager.upsertFields(data, upserttable, "missing");
+            fail("Upserting without the key field should fail.");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testBlobStreams() throws SQLException, IOException {
+        String blobtable = "blobtest";
+        datamanager.executeQuery("CREATE TABLE IF NOT EXISTS `" + blobtable + "` (`id` INT PRIMARY KEY, `b` BLOB)");
+        datamanager.executeQuery("DELETE FROM `" + blobtable + "`");
+        datamanager.executeQuery("INSERT INTO `" + blobtable + "` VALUES (1, NULL)");
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+
+        assertEquals(1, datamanager.updateBlob(blobtable, "b", "`id` = 1", new ByteArrayInputStream(data), data.length));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(data.length, datamanager.readBlob(blobtable, "b", "`id` = 1", out));
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(data.length, datamanager.getField(ValueType.BLOB, blobtable, "b", "`id` = 1").getBinaryLength());
+
+        BlobOutputStream blobOut = datamanager.openBlobOutputStream(blobtable, "b", "`id` = 1");
+        blobOut.write(data, 0, 1000);
+        blobOut.close();
+        assertEquals(1000, blobOut.getBytesWritten());
+        InputStream in = datamanager.openBlobInputStream(blobtable, "b", "`id` = 1");
+        try {
+            byte[] read = new byte[1000];
+            int n = 0;
+            while (n < read.length) {
+                n += in.read(read, n, read.length - n);
+            }
+            assertArrayEquals(Arrays.copyOf(data, 1000), read);
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+        assertNull(datamanager.openBlobInputStream(blobtable, "b", "`id` = 2"));
+        assertEquals(-1, datamanager.readBlob(blobtable, "b", "`id` = 2", new ByteArrayOutputStream()));
+    }
+
+    public static enum Kind {
+        ADMIN, USER
+    }
+
+    public static class MappedUser {
+        private int id;
+        private String userName;
+        private double score;
+        private Integer bonus;
+        private Kind kind;
+        @Column("created")
+        private Date createdAt;
+        private boolean setterCalled;
+
+        public void setUserName(String userName) {
+            this.userName = userName;
+            this.setterCalled = true;
+        }
+    }
+
+    public static class ImmutableUser {
+        private final int id;
+        private final String name;
+        private long score;
+
+        public ImmutableUser(@Column("id") int id, @Column("user_name") String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    @Test
+    public void testRowMapper() throws SQLException {
+        String maptable = "maptest";
+        datamanager.executeQuery("CREATE TABLE IF NOT EXISTS `" + maptable + "` (`id` INT PRIMARY KEY, `user_name` VARCHAR(32), "
+                + "`score` DOUBLE, `bonus` INT, `kind` VARCHAR(8), `created` TIMESTAMP, `extra` INT)");
+        datamanager.executeQuery("DELETE FROM `" + maptable + "`");
+        datamanager.update("INSERT INTO `" + maptable + "` VALUES (1, 'alice', 1.5, 7, 'ADMIN', ?, 0)", new Date(1000000000000L));
+        datamanager.update("INSERT INTO `" + maptable + "` VALUES (2, 'bob', 2.25, NULL, NULL, NULL, 0)");
+
+        List<MappedUser> users = datamanager.getObjects(MappedUser.class, "SELECT * FROM `" + maptable + "` ORDER BY `id`");
+        assertEquals(2, users.size());
+        MappedUser alice = users.get(0);
+        assertEquals(1, alice.id);
+        assertEquals("alice", alice.userName);
+        assertTrue(alice.setterCalled);
+        assertEquals(1.5, alice.score, 0);
+        assertEquals(Integer.valueOf(7), alice.bonus);
+        assertEquals(Kind.ADMIN, alice.kind);
+        assertEquals(1000000000000L, alice.createdAt.getTime());
+        MappedUser bob = users.get(1);
+        assertNull(bob.bonus);
+        assertNull(bob.kind);
+        assertNull(bob.createdAt);
+
+        RowMapper<MappedUser> mapper = RowMapper.of(MappedUser.class);
+        assertSame(mapper, RowMapper.of(MappedUser.class));
+        assertEquals(1, mapper.getBindingCount());
+        datamanager.getObjects(mapper, "SELECT * FROM `" + maptable + "` WHERE `id` = ?", 2);
+        assertEquals(1, mapper.getBindingCount());
+        assertEquals("bob", datamanager.getObject(mapper, "SELECT `id`, `user_name` FROM `" + maptable + "` WHERE `id` = 2").userName);
+        assertEquals(2, mapper.getBindingCount());
+        assertNull(datamanager.getObject(mapper, "SELECT * FROM `" + maptable + "` WHERE `id` = 3"));
+
+        ImmutableUser immutable = datamanager.getObject(ImmutableUser.class, "SELECT `id`, `user_name`, `score` FROM `" + maptable + "` WHERE `id` = 2");
+        assertEquals(2, immutable.id);
+        assertEquals("bob", immutable.name);
+        assertEquals(2, immutable.score);
+    }
+
+    @Test
+    public void testExport() throws SQLException, IOException {
+        String exporttable = "exporttest";
+        datamanager.executeQuery("CREATE TABLE IF NOT EXISTS `" + exporttable + "` (`id` INT PRIMARY KEY, `txt` VARCHAR(32), `x` DOUBLE)");
+        datamanager.executeQuery("DELETE FROM `" + exporttable + "`");
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (int i = 1; i <= 250; i++) {
+            rows.add(new Object[] { i, i == 1 ? "a \"quoted\", text" : "row" + i, i / 2.0 });
+        }
+        datamanager.executeBatch("INSERT INTO `" + exporttable + "` VALUES (?, ?, ?)", rows);
+        Path directory = Paths.get("./target/test-classes/export");
+        Files.createDirectories(directory);
+
+        Path csv = directory.resolve("export.csv");
+        assertEquals(1, datamanager.export("SELECT * FROM `" + exporttable + "` WHERE `id` = ?", csv, ExportFormat.CSV, null, 1));
+        assertEquals(Arrays.asList("ID,TXT,X", "1,\"a \"\"quoted\"\", text\",0.5"), Files.readAllLines(csv, Charset.forName("UTF-8")));
+
+        final List<Long> progress = Collections.synchronizedList(new ArrayList<Long>());
+        Path json = directory.resolve("export.ndjson.gz");
+        assertEquals(250, datamanager.exportTable(exporttable, "id", 3, json, ExportFormat.NDJSON, new ExportProgress() {
+            @Override
+            public void onProgress(long rows) {
+                progress.add(rows);
+            }
+        }));
+        assertEquals(250L, (long) Collections.max(progress));
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(
+                    directory.resolve("export-" + i + ".ndjson.gz"))), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        assertEquals(250, lines.size());
+        assertEquals("{\"ID\":1,\"TXT\":\"a \\\"quoted\\\", text\",\"X\":0.5}", lines.get(0));
+        assertEquals("{\"ID\":250,\"TXT\":\"row250\",\"X\":125.0}", lines.get(249));
+    }
+
+    @Test
+    public void testPooled() throws SQLException {
+        DataManager pooled = new DataManager(DataType.H2, user, password);
+        pooled.getLogger().getLogger().setLevel(Level.OFF);
+        pooled.setDatabase("test");
+        pooled.setDirectory("./target/test-classes/");
+        pooled.setPooled(true);
+        ConnectionPool pool = pooled.getConnectionPool();
+        assertNotNull(pool);
+        pool.setMinIdle(1);
+        pool.setMaxActive(1);
+        pool.setBorrowTimeout(100);
+        assertEquals(1, pooled.getCount(table));
+        assertTrue(pooled.exist(table, "ID", 1));
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(1, pool.getCreatedCount());
+        assertTrue(pool.getBorrowCount() >= 2);
+
+        Connection first = pool.borrow();
+        try {
+            pool.borrow();
+            fail("Expected SQLException when the pool is exhausted");
+        } catch (SQLException expected) {
+        }
+        assertEquals(1, pool.getTimeoutsCount());
+        pool.release(first);
+        assertEquals(1, pool.getIdleCount());
+
+        pooled.setPooled(false);
+        assertNull(pooled.getConnectionPool());
+        assertTrue(pool.isClosed());
+        assertEquals(1, pooled.getCount(table));
+        pooled.close(true);
+    }
+
+    @Test
+    public void testReplicas() throws SQLException {
+        DataManager replicaManager = new DataManager(DataType.H2, user, password);
+        replicaManager.getLogger().getLogger().setLevel(Level.OFF);
+        replicaManager.setDatabase("test");
+        replicaManager.setDirectory("./target/test-classes/replica/");
+        replicaManager.executeQuery("CREATE TABLE IF NOT EXISTS `replicatest` (`id` INT PRIMARY KEY, `txt` VARCHAR(32))");
+        replicaManager.executeQuery("MERGE INTO `replicatest` KEY(`id`) VALUES (1, 'replica')");
+        replicaManager.close(true);
+
+        DataManager split = new DataManager(DataType.H2, user, password);
+        split.getLogger().getLogger().setLevel(Level.OFF);
+        split.setDatabase("test");
+        split.setDirectory("./target/test-classes/");
+        split.executeQuery("CREATE TABLE IF NOT EXISTS `replicatest` (`id` INT PRIMARY KEY, `txt` VARCHAR(32))");
+        split.executeQuery("MERGE INTO `replicatest` KEY(`id`) VALUES (1, 'primary')");
+        try {
+            Replica replica = split.addReplica("./target/test-classes/replica/");
+            split.setReadYourWritesWindow(200);
+            assertEquals("primary", split.getStringField("replicatest", "txt", "`id` = 1"));
+            assertEquals(0, replica.getQueries());
+            try {
+                Thread.sleep(250);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            assertEquals("replica", split.getStringField("replicatest", "txt", "`id` = 1"));
+            assertEquals(1, split.getCount("replicatest"));
+            assertEquals(2, replica.getQueries());
+            assertTrue(replica.getAverageLatency() > 0);
+
+            split.setReplicaSelection(ReplicaSelection.LEAST_LATENCY);
+            Replica broken = split.addReplicaURL("jdbc:h2:./target/test-classes/missing/test;IFEXISTS=TRUE");
+            assertEquals("primary", split.getStringField("replicatest", "txt", "`id` = 1"));
+            assertEquals(1, broken.getFailures());
+            assertFalse(broken.isAvailable());
+            assertEquals("replica", split.getStringField("replicatest", "txt", "`id` = 1"));
+
+            split.updateField("replicatest", "txt", "primary", "`id` = 1");
+            assertEquals("primary", split.getStringField("replicatest", "txt", "`id` = 1"));
+        } finally {
+            split.clearReplicas();
+            split.close(true);
+        }
+    }
+
+    @Test
+    public void testConcurrentQueries() throws Throwable {
+        final int threads = 8;
+        final int iterations = 50;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < iterations; i++) {
+                            Results results = datamanager.getResults("SELECT `id`, `int` FROM `" + table + "`");
+                            assertEquals(1, results.getArray().size());
+                            assertEquals(1, results.getFirstResult().getIntField("id"));
+                            datamanager.executeQuery("UPDATE `" + wrtable + "` SET `txt` = `txt` WHERE `id` = '1'");
+                            assertEquals(1, datamanager.getCount(table));
+                            if (id % 2 == 0) {
+                                ResultSet resultSet = datamanager.getResultSet("SELECT `id` FROM `" + table + "`");
+                                assertTrue(resultSet.next());
+                                assertEquals(1, resultSet.getInt(1));
+                                datamanager.close();
+                                assertTrue(resultSet.isClosed());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        assertTrue(datamanager.isConnected());
+    }
+
     @Test
     public void testBInt() throws SQLException, ParseException, IOException {
         final String name = "bint";